@@ -1,12 +1,14 @@
 package net.sony.dpt;
 
 import net.sony.dpt.error.SonyException;
+import net.sony.dpt.persistence.DaemonStore;
 import net.sony.dpt.persistence.DeviceInfoStore;
 import net.sony.dpt.persistence.LastCommandRunStore;
 import net.sony.dpt.persistence.RegistrationTokenStore;
 import net.sony.dpt.persistence.SyncStore;
 import net.sony.dpt.ui.cli.Command;
 import net.sony.dpt.ui.cli.DigitalPaperCLI;
+import net.sony.dpt.ui.daemon.DaemonClient;
 import net.sony.util.CryptographyUtils;
 import net.sony.util.DiffieHelman;
 
@@ -18,6 +20,13 @@ public class DigitalPaperApp {
     public static void main(String[] args)  {
         Path homeFolder = Path.of(System.getProperty("user.home"));
 
+        // If a dpt daemon is running, it is already connected and authenticated: we let it do the work
+        Integer daemonExitCode = new DaemonClient(new DaemonStore(homeFolder), System.out::println, System.err::println).forward(args);
+        if (daemonExitCode != null) {
+            System.out.flush();
+            System.exit(daemonExitCode);
+        }
+
         DigitalPaperCLI digitalPaperCLI = new DigitalPaperCLI(
                 new DiffieHelman(),
                 new CryptographyUtils(),
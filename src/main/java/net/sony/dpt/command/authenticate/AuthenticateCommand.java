@@ -25,8 +25,7 @@ public class AuthenticateCommand {
         );
 
         AuthenticationRequest authenticationRequest = new AuthenticationRequest(registrationResponse.getClientId(), signedNonce);
-        String credentials = digitalPaperEndpoint.authenticate(authenticationRequest.toMap());
-        return new AuthenticationCookie(credentials);
+        return digitalPaperEndpoint.authenticate(authenticationRequest.toMap());
     }
 
 }
@@ -3,22 +3,46 @@ package net.sony.dpt.command.authenticate;
 import java.net.CookieManager;
 import java.net.HttpCookie;
 import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
 
 public class AuthenticationCookie {
 
+    // When the device does not say how long the session lasts. Only a hint: a stale cookie costs one 401 and a new authentication
+    public static final Duration DEFAULT_LIFETIME = Duration.ofHours(12);
+    // We don't reuse a cookie about to expire, it could die in the middle of a command
+    private static final Duration EXPIRY_MARGIN = Duration.ofMinutes(1);
+
     /**
      * Credentials: base64 token
      */
     private final String credentials;
+    private final Instant expiresAt;
 
     public AuthenticationCookie(String credentials) {
+        this(credentials, null);
+    }
+
+    /**
+     * @param expiresAt Null if unknown
+     */
+    public AuthenticationCookie(String credentials, Instant expiresAt) {
         this.credentials = credentials;
+        this.expiresAt = expiresAt != null ? expiresAt : Instant.now().plus(DEFAULT_LIFETIME);
     }
 
     public String getCredentials() {
         return credentials;
     }
 
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
+
+    public boolean expired() {
+        return !Instant.now().plus(EXPIRY_MARGIN).isBefore(expiresAt);
+    }
+
     public void insertInRequest(Request req) {
         req.setHeader("Cookie", "Credentials=" + credentials);
     }
@@ -37,6 +61,7 @@ public class AuthenticationCookie {
     public String toString() {
         return "AuthenticationCookie{" +
                 "credentials='" + credentials + '\'' +
+                ", expiresAt=" + expiresAt +
                 '}';
     }
 
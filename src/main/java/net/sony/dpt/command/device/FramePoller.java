@@ -0,0 +1,84 @@
+package net.sony.dpt.command.device;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Captures the screen again and again, but only hands over the frames that changed, before anyone decodes them.
+ *
+ * The e-ink screen is still most of the time: every unchanged frame doubles the delay before the next capture,
+ * up to the maximum, and a change brings it back to the minimum. Not thread safe, one capture loop owns it.
+ */
+public class FramePoller {
+
+    public static final long DEFAULT_MIN_INTERVAL_MS = 250;
+    public static final long DEFAULT_MAX_INTERVAL_MS = 4000;
+
+    @FunctionalInterface
+    public interface Capture {
+        InputStream capture() throws IOException, InterruptedException;
+    }
+
+    @FunctionalInterface
+    public interface FrameConsumer {
+        void accept(byte[] jpeg) throws IOException;
+    }
+
+    private final Capture capture;
+    private final long minIntervalMs;
+    private final long maxIntervalMs;
+    private final MessageDigest digest;
+    private byte[] lastHash;
+    private long intervalMs;
+
+    public FramePoller(final Capture capture, final long minIntervalMs, final long maxIntervalMs) {
+        this.capture = capture;
+        this.minIntervalMs = minIntervalMs;
+        this.maxIntervalMs = maxIntervalMs;
+        this.intervalMs = minIntervalMs;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public FramePoller(final Capture capture) {
+        this(capture, DEFAULT_MIN_INTERVAL_MS, DEFAULT_MAX_INTERVAL_MS);
+    }
+
+    /**
+     * Captures one frame, and gives it to the consumer if it's not the same as the last one
+     *
+     * @return How long to wait before the next poll
+     */
+    public long poll(FrameConsumer consumer) throws IOException, InterruptedException {
+        byte[] jpeg;
+        try (InputStream screenshot = capture.capture()) {
+            jpeg = IOUtils.toByteArray(screenshot);
+        }
+
+        byte[] hash = digest.digest(jpeg);
+        if (Arrays.equals(hash, lastHash)) return idle();
+
+        lastHash = hash;
+        intervalMs = minIntervalMs;
+        consumer.accept(jpeg);
+        return intervalMs;
+    }
+
+    /**
+     * Nothing new this time, e.g. the capture failed: we back off
+     *
+     * @return How long to wait before the next poll
+     */
+    public long idle() {
+        intervalMs = Math.min(intervalMs * 2, maxIntervalMs);
+        return intervalMs;
+    }
+}
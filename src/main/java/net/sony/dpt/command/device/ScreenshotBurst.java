@@ -0,0 +1,125 @@
+package net.sony.dpt.command.device;
+
+import net.sony.util.LogWriter;
+import org.apache.commons.io.IOUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Screenshots back to back, or at a fixed pace for a time-lapse, numbered name-00001.png, name-00002.png...
+ *
+ * We capture with the fast JPEG screenshot, one request right after the other, and the PNG conversion runs on a
+ * pool of encoders meanwhile. When the encoders fall behind, the capture thread encodes too: it slows down the
+ * capture instead of piling up frames in memory.
+ */
+public class ScreenshotBurst {
+
+    private static final int PROGRESS_EVERY = 50;
+    private static final long STOP_TIMEOUT_SECONDS = 30;
+
+    private final FramePoller.Capture capture;
+    private final int encoders;
+    private final LogWriter logWriter;
+    private volatile boolean stopped;
+    private final CountDownLatch finished;
+
+    public ScreenshotBurst(final FramePoller.Capture capture, final int encoders, final LogWriter logWriter) {
+        this.capture = capture;
+        this.encoders = encoders;
+        this.logWriter = logWriter;
+        this.finished = new CountDownLatch(1);
+    }
+
+    static Path framePath(Path target, int index) {
+        String name = target.getFileName().toString();
+        if (name.toLowerCase().endsWith(".png")) name = name.substring(0, name.length() - ".png".length());
+        return target.resolveSibling(String.format("%s-%05d.png", name, index));
+    }
+
+    /**
+     * @param count      How many frames, 0 to go on until stop()
+     * @param intervalMs Between the start of two captures, 0 for back to back
+     * @return How many frames were written
+     */
+    public int capture(Path target, int count, long intervalMs) throws IOException, InterruptedException {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(encoders, encoders, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(encoders * 2), new ThreadPoolExecutor.CallerRunsPolicy());
+        List<Future<?>> encoding = new ArrayList<>();
+        int captured = 0;
+        try {
+            long start = System.currentTimeMillis();
+            while (!stopped && (count == 0 || captured < count)) {
+                long wait = start + captured * intervalMs - System.currentTimeMillis();
+                if (wait > 0) Thread.sleep(wait);
+
+                byte[] jpeg;
+                try (InputStream screenshot = capture.capture()) {
+                    jpeg = IOUtils.toByteArray(screenshot);
+                }
+                Path path = framePath(target, ++captured);
+                encoding.add(executor.submit(() -> {
+                    encode(jpeg, path);
+                    return null;
+                }));
+
+                checkEncoded(encoding, false);
+                if (captured % PROGRESS_EVERY == 0) logWriter.log(captured + " frames captured");
+            }
+            executor.shutdown();
+            checkEncoded(encoding, true);
+            logWriter.log(captured + " frames written next to " + target);
+            return captured;
+        } finally {
+            executor.shutdownNow();
+            finished.countDown();
+        }
+    }
+
+    /**
+     * Ends a capture with no count, once the frames already captured are written
+     */
+    public void stop() {
+        stopped = true;
+        try {
+            finished.await(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void encode(byte[] jpeg, Path path) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        if (image == null) throw new IOException("The device sent a frame we can't read for " + path);
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        if (!ImageIO.write(image, "png", tmp.toFile())) throw new IOException("No PNG encoder available");
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Fails the burst on the first frame we couldn't write
+     */
+    private static void checkEncoded(List<Future<?>> encoding, boolean all) throws IOException, InterruptedException {
+        for (Iterator<Future<?>> iterator = encoding.iterator(); iterator.hasNext(); ) {
+            Future<?> future = iterator.next();
+            if (!all && !future.isDone()) continue;
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            }
+            iterator.remove();
+        }
+    }
+}
@@ -3,12 +3,17 @@ package net.sony.dpt.command.documents;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import net.sony.dpt.error.SonyException;
 import net.sony.dpt.network.DigitalPaperEndpoint;
+import net.sony.util.MimeMultipartData;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 import static net.sony.util.JsonUtils.fromJSON;
 
@@ -16,36 +21,142 @@ public class DocumentCommand {
 
     private static final Path REMOTE_ROOT = Path.of("Document");
     private final DigitalPaperEndpoint digitalPaperEndpoint;
+    private final EntryIdCache entryIdCache;
     private static final ObjectMapper objectMapper = new ObjectMapper();
 
     public DocumentCommand(DigitalPaperEndpoint digitalPaperEndpoint) {
+        this(digitalPaperEndpoint, new EntryIdCache());
+    }
+
+    /**
+     * @param entryIdCache Share the same cache between commands talking to the same device
+     */
+    public DocumentCommand(DigitalPaperEndpoint digitalPaperEndpoint, EntryIdCache entryIdCache) {
         this.digitalPaperEndpoint = digitalPaperEndpoint;
+        this.entryIdCache = entryIdCache;
+    }
+
+    public EntryIdCache getEntryIdCache() {
+        return entryIdCache;
+    }
+
+    /**
+     * Resolves through the cache first, the device is only asked on a miss
+     */
+    public String resolveEntryId(Path remotePath) throws IOException, InterruptedException {
+        String entryId = entryIdCache.get(remotePath);
+        if (entryId == null) {
+            entryId = digitalPaperEndpoint.resolveObjectByPath(remotePath);
+            entryIdCache.put(remotePath, entryId);
+        }
+        return entryId;
+    }
+
+    /**
+     * Runs an operation on the entry at this path. If the id came from the cache and the device does not know it
+     * anymore, the entry was changed behind our back: we forget it, resolve it again and retry once.
+     */
+    private <T> T onEntry(Path remotePath, EntryOperation<T> operation) throws IOException, InterruptedException {
+        boolean cached = entryIdCache.contains(remotePath);
+        try {
+            return operation.apply(resolveEntryId(remotePath));
+        } catch (SonyException e) {
+            if (!cached || e.getCodeParsed() != SonyException.ErrorCode.RESOURCE_NOT_FOUND) throw e;
+            entryIdCache.invalidate(remotePath);
+            return operation.apply(resolveEntryId(remotePath));
+        }
     }
 
     public InputStream download(Path remotePath) throws IOException, InterruptedException {
         remotePath = resolveRemotePath(remotePath);
-        String remoteId = digitalPaperEndpoint.resolveObjectByPath(remotePath);
+        return onEntry(remotePath, digitalPaperEndpoint::downloadByRemoteId);
+    }
+
+    /**
+     * @param entryId Straight from a DocumentEntry, no path resolution
+     */
+    public byte[] downloadRange(String entryId, long from, long to) throws IOException, InterruptedException {
+        return digitalPaperEndpoint.downloadRange(entryId, from, to);
+    }
 
-        return digitalPaperEndpoint.downloadByRemoteId(remoteId);
+    public void downloadTo(Path remotePath, Path localPath) throws IOException, InterruptedException {
+        remotePath = resolveRemotePath(remotePath);
+        onEntry(remotePath, remoteId -> {
+            DocumentEntry entry = documentInfo(remoteId);
+            digitalPaperEndpoint.downloadTo(localPath, remoteId, entry.getFileRevisiion(), entry.getFileSize());
+            return null;
+        });
     }
 
     public void delete(Path path) throws IOException, InterruptedException {
         path = resolveRemotePath(path);
-        String remoteId = digitalPaperEndpoint.resolveObjectByPath(path);
-        if (remoteId != null) {
-            digitalPaperEndpoint.deleteByDocumentId(remoteId);
+        onEntry(path, remoteId -> {
+            if (remoteId != null) {
+                digitalPaperEndpoint.deleteByDocumentId(remoteId);
+            }
+            return null;
+        });
+        entryIdCache.invalidate(path);
+    }
+
+    /**
+     * Creates every folder needed by those documents in one pass, parents first, see FolderPlanner.
+     * Uploading them afterwards finds all their parents in the cache.
+     */
+    public Map<Path, String> createFolders(Collection<Path> remoteDocumentPaths) throws IOException, InterruptedException {
+        List<Path> resolved = new ArrayList<>();
+        for (Path remoteDocumentPath : remoteDocumentPaths) {
+            resolved.add(resolveRemotePath(remoteDocumentPath));
         }
+        return new FolderPlanner(digitalPaperEndpoint, entryIdCache).createFolders(resolved);
     }
 
     public String createFolderRecursively(Path folderPath) throws IOException, InterruptedException {
+        // Already created or planned, no need to walk down from the root
+        if (entryIdCache.contains(folderPath)) {
+            String folderId = entryIdCache.get(folderPath);
+            if (folderId != null) return folderId;
+        }
+        List<Path> cachedFolders = new ArrayList<>();
+        try {
+            return createFolderRecursivelyOnce(folderPath, cachedFolders);
+        } catch (SonyException e) {
+            // A cached folder may have been deleted on the device, we retry asking the device for everything
+            if (cachedFolders.isEmpty() || e.getCodeParsed() != SonyException.ErrorCode.RESOURCE_NOT_FOUND) throw e;
+            entryIdCache.invalidate(cachedFolders.get(0));
+            return createFolderRecursivelyOnce(folderPath, new ArrayList<>());
+        }
+    }
+
+    /**
+     * Runs the operation with the id of the folder, created if needed. A folder id from the cache may be stale:
+     * if the device doesn't know it anymore, we find or create the folder again and retry.
+     */
+    private String intoFolder(Path folderPath, EntryOperation<String> operation) throws IOException, InterruptedException {
+        boolean cached = entryIdCache.contains(folderPath);
+        try {
+            return operation.apply(createFolderRecursively(folderPath));
+        } catch (SonyException e) {
+            if (!cached || e.getCodeParsed() != SonyException.ErrorCode.RESOURCE_NOT_FOUND) throw e;
+            entryIdCache.invalidate(folderPath);
+            return operation.apply(createFolderRecursively(folderPath));
+        }
+    }
+
+    /**
+     * @param cachedFolders Filled with the folders whose id came from the cache, shallowest first
+     */
+    private String createFolderRecursivelyOnce(Path folderPath, List<Path> cachedFolders) throws IOException, InterruptedException {
         String parentId = "root";
         String currentId = null;
         Path base = Path.of("");
         for (Path subDirectory : folderPath) {
             base = base.resolve(subDirectory);
-            currentId = digitalPaperEndpoint.resolveObjectByPath(base);
+            if (entryIdCache.contains(base)) cachedFolders.add(base);
+            currentId = resolveEntryId(base);
             if (currentId == null) {
                 currentId = digitalPaperEndpoint.createDirectory(base, parentId);
+                entryIdCache.put(base, currentId);
             }
             parentId = currentId;
         }
@@ -54,23 +165,28 @@ public class DocumentCommand {
 
     public void deleteFolder(Path remotePath) throws IOException, InterruptedException {
         remotePath = resolveRemotePath(remotePath);
-        String remoteId = digitalPaperEndpoint.resolveObjectByPath(remotePath);
-        digitalPaperEndpoint.deleteFolderByRemoteId(remoteId);
+        onEntry(remotePath, remoteId -> {
+            digitalPaperEndpoint.deleteFolderByRemoteId(remoteId);
+            return null;
+        });
+        entryIdCache.invalidate(remotePath);
     }
 
     public String create(Path remotePath) throws IOException, InterruptedException {
         Path directory = remotePath.getParent();
 
-        String parentId = createFolderRecursively(directory);
-        return digitalPaperEndpoint.touchFile(remotePath.getFileName().toString(), parentId);
+        String documentId = intoFolder(directory, parentId -> digitalPaperEndpoint.touchFile(remotePath.getFileName().toString(), parentId));
+        entryIdCache.put(remotePath, documentId);
+        return documentId;
     }
 
     public String upload(Path localPath, Path remotePath) throws IOException, InterruptedException {
         delete(remotePath);
         Path directory = remotePath.getParent();
 
-        String parentId = createFolderRecursively(directory);
-        return digitalPaperEndpoint.uploadFile(localPath, parentId);
+        String documentId = intoFolder(directory, parentId -> digitalPaperEndpoint.uploadFile(localPath, parentId));
+        entryIdCache.put(remotePath, documentId);
+        return documentId;
     }
 
     public String upload(byte[] content, Path remotePath) throws IOException, InterruptedException {
@@ -81,8 +197,22 @@ public class DocumentCommand {
         }
         Path directory = remotePath.getParent();
 
-        String parentId = createFolderRecursively(directory);
-        return digitalPaperEndpoint.uploadFile(remotePath.getFileName().toString(), content, parentId);
+        String documentId = intoFolder(directory, parentId -> digitalPaperEndpoint.uploadFile(remotePath.getFileName().toString(), content, parentId));
+        entryIdCache.put(remotePath, documentId);
+        return documentId;
+    }
+
+    public String upload(MimeMultipartData.StreamSupplier content, long length, Path remotePath) throws IOException, InterruptedException {
+        try {
+            delete(remotePath);
+        } catch (SonyException e) {
+            if (e.getCodeParsed() != SonyException.ErrorCode.RESOURCE_NOT_FOUND) throw e;
+        }
+        Path directory = remotePath.getParent();
+
+        String documentId = intoFolder(directory, parentId -> digitalPaperEndpoint.uploadFile(remotePath.getFileName().toString(), content, length, parentId));
+        entryIdCache.put(remotePath, documentId);
+        return documentId;
     }
 
     private Path resolveRemotePath(Path remotePath) {
@@ -95,7 +225,6 @@ public class DocumentCommand {
     public String move(Path from, Path to) throws IOException, InterruptedException {
         from = resolveRemotePath(from);
         to = resolveRemotePath(to);
-        String oldId = digitalPaperEndpoint.resolveObjectByPath(from);
 
         String newParentFolderId;
         // We assume here we'll only transfer extension-suffixed files
@@ -104,7 +233,13 @@ public class DocumentCommand {
         if (!matcher.matches(to.getFileName())) {
             // We may just want to mv a folder
             if (!matcher.matches(from.getFileName())) {
-                digitalPaperEndpoint.updateFolder(oldId, newParentFolderId, to.getName(to.getNameCount() - 1).toString());
+                String folderParentId = newParentFolderId;
+                String folderName = to.getName(to.getNameCount() - 1).toString();
+                onEntry(from, oldId -> {
+                    digitalPaperEndpoint.updateFolder(oldId, folderParentId, folderName);
+                    return null;
+                });
+                entryIdCache.moved(from, to);
                 return newParentFolderId;
             } else {
                 newParentFolderId = createFolderRecursively(to);
@@ -116,7 +251,13 @@ public class DocumentCommand {
         if (!from.getFileName().equals(to.getFileName())) {
             newFileName = to.getFileName().toString();
         }
-        digitalPaperEndpoint.setFileInfo(oldId, newParentFolderId, newFileName);
+        String fileParentId = newParentFolderId;
+        String fileName = newFileName;
+        onEntry(from, oldId -> {
+            digitalPaperEndpoint.setFileInfo(oldId, fileParentId, fileName);
+            return null;
+        });
+        entryIdCache.moved(from, to);
         return newParentFolderId;
     }
 
@@ -124,8 +265,6 @@ public class DocumentCommand {
         from = resolveRemotePath(from);
         to = resolveRemotePath(to);
 
-        String fromId = digitalPaperEndpoint.resolveObjectByPath(from);
-
         String toFolder;
         // We assume here we'll only transfer extension-suffixed files
         PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:*.*");
@@ -143,26 +282,35 @@ public class DocumentCommand {
             toFilename = to.getFileName().toString();
         }
 
-        digitalPaperEndpoint.copy(fromId, toFolder, toFilename);
+        String copyFolder = toFolder;
+        String copyFilename = toFilename;
+        onEntry(from, fromId -> {
+            digitalPaperEndpoint.copy(fromId, copyFolder, copyFilename);
+            return null;
+        });
     }
 
     public DocumentListResponse listContent(String folderId) throws IOException, InterruptedException {
-        return fromJson(digitalPaperEndpoint.getFolderContent(folderId));
+        return seed(fromJson(digitalPaperEndpoint.getFolderContent(folderId)));
     }
 
     public DocumentListResponse listDocuments() throws IOException, InterruptedException {
         String json = digitalPaperEndpoint.listDocuments();
-        return fromJson(json);
+        return seed(fromJson(json));
     }
 
     public DocumentListResponse listDocuments(EntryType entryType) throws IOException, InterruptedException {
         String json = digitalPaperEndpoint.listDocuments(entryType);
-        return fromJson(json);
+        return seed(fromJson(json));
+    }
+
+    private DocumentListResponse seed(DocumentListResponse documentListResponse) {
+        entryIdCache.seed(documentListResponse.getEntryList());
+        return documentListResponse;
     }
 
     public DocumentEntry documentInfo(Path remotePath) throws IOException, InterruptedException {
-        String documentId = digitalPaperEndpoint.resolveObjectByPath(remotePath);
-        return documentInfo(documentId);
+        return onEntry(remotePath, this::documentInfo);
     }
 
 
@@ -173,4 +321,9 @@ public class DocumentCommand {
     public static DocumentListResponse fromJson(String json) throws IOException {
         return objectMapper.readValue(json, DocumentListResponse.class);
     }
+
+    @FunctionalInterface
+    private interface EntryOperation<T> {
+        T apply(String entryId) throws IOException, InterruptedException;
+    }
 }
@@ -0,0 +1,114 @@
+package net.sony.dpt.command.documents;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which entry_id lives at which remote path, so we can skip the /resolve/entry/path round trip.
+ *
+ * It is seeded from the /documents2 listings (documents and their parent folders), kept up to date by our own
+ * create/move/delete calls, and must be invalidated when the device answers RESOURCE_NOT_FOUND for a cached id:
+ * someone else (the device UI, another client) changed the tree behind our back.
+ *
+ * Paths are the remote ones, e.g. Document/Folder/file.pdf
+ */
+public class EntryIdCache {
+
+    private final ConcurrentMap<Path, String> idByPath;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    public EntryIdCache() {
+        idByPath = new ConcurrentHashMap<>();
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+    }
+
+    /**
+     * @return The cached id, or null if we have to ask the device. Counts as a hit or a miss.
+     */
+    public String get(Path remotePath) {
+        String entryId = idByPath.get(remotePath);
+        if (entryId == null) misses.incrementAndGet();
+        else hits.incrementAndGet();
+        return entryId;
+    }
+
+    public boolean contains(Path remotePath) {
+        return remotePath != null && idByPath.containsKey(remotePath);
+    }
+
+    public void put(Path remotePath, String entryId) {
+        if (remotePath == null || entryId == null) return;
+        idByPath.put(remotePath, entryId);
+    }
+
+    /**
+     * Documents carry both their own id and their parent folder id, so one listing gives us every folder
+     * holding at least one document for free.
+     */
+    public void seed(Collection<DocumentEntry> entries) {
+        if (entries == null) return;
+        for (DocumentEntry entry : entries) {
+            if (entry.getEntryPath() == null) continue;
+            Path path = Path.of(entry.getEntryPath());
+            put(path, entry.getEntryId());
+            if (path.getParent() != null) put(path.getParent(), entry.getParentFolderId());
+        }
+    }
+
+    public void remove(Path remotePath) {
+        if (remotePath == null) return;
+        idByPath.remove(remotePath);
+    }
+
+    /**
+     * Forgets the path and everything below it
+     */
+    public void invalidate(Path remotePath) {
+        if (remotePath == null) return;
+        idByPath.keySet().removeIf(path -> path.startsWith(remotePath));
+    }
+
+    /**
+     * Re-keys the path and everything below it: ids do not change when an entry is moved or renamed
+     */
+    public void moved(Path from, Path to) {
+        Map<Path, String> movedEntries = new HashMap<>();
+        for (Map.Entry<Path, String> entry : idByPath.entrySet()) {
+            Path path = entry.getKey();
+            if (path.startsWith(from) && idByPath.remove(path, entry.getValue())) {
+                movedEntries.put(to.resolve(from.relativize(path)), entry.getValue());
+            }
+        }
+        idByPath.putAll(movedEntries);
+    }
+
+    public void clear() {
+        idByPath.clear();
+    }
+
+    public int size() {
+        return idByPath.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Each hit is a /resolve/entry/path request we did not send
+     */
+    public String summary() {
+        return "Path cache saved " + hits.get() + " round trips (" + misses.get() + " lookups went to the device)";
+    }
+}
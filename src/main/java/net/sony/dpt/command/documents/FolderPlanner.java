@@ -0,0 +1,93 @@
+package net.sony.dpt.command.documents;
+
+import net.sony.dpt.error.SonyException;
+import net.sony.dpt.network.DigitalPaperEndpoint;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Creates all the folders needed by a batch of documents at once.
+ *
+ * Calling createFolderRecursively for each file walks the whole tree from the root, with a resolve request per
+ * level: N files at depth D cost N x D requests. Here we collect the distinct folders first, and visit them
+ * parents first: a folder is only resolved if its parent already existed, since anything below a folder we just
+ * created is missing for sure. Every id ends in the shared EntryIdCache, so the uploads that follow never
+ * resolve their parent again.
+ * A folder found in the cache may have been deleted on the device since: if the device says so, we forget what
+ * came from the cache and go through the folders again.
+ */
+public class FolderPlanner {
+
+    private static final String ROOT_FOLDER_ID = "root";
+
+    private final DigitalPaperEndpoint digitalPaperEndpoint;
+    private final EntryIdCache entryIdCache;
+
+    public FolderPlanner(final DigitalPaperEndpoint digitalPaperEndpoint, final EntryIdCache entryIdCache) {
+        this.digitalPaperEndpoint = digitalPaperEndpoint;
+        this.entryIdCache = entryIdCache;
+    }
+
+    /**
+     * @return All the folders containing the documents, ordered parents first
+     */
+    public static SortedSet<Path> plan(Collection<Path> remoteDocumentPaths) {
+        SortedSet<Path> folders = new TreeSet<>(
+                Comparator.comparingInt(Path::getNameCount).thenComparing(Comparator.naturalOrder())
+        );
+        for (Path documentPath : remoteDocumentPaths) {
+            Path folder = documentPath.getParent();
+            while (folder != null && folders.add(folder)) {
+                folder = folder.getParent();
+            }
+        }
+        return folders;
+    }
+
+    /**
+     * @param remoteDocumentPaths The documents we are about to create, e.g. Document/Folder/file.pdf
+     * @return The id of every folder containing those documents
+     */
+    public Map<Path, String> createFolders(Collection<Path> remoteDocumentPaths) throws IOException, InterruptedException {
+        SortedSet<Path> folders = plan(remoteDocumentPaths);
+        List<Path> fromCache = new ArrayList<>();
+        try {
+            return createFolders(folders, fromCache);
+        } catch (SonyException e) {
+            if (fromCache.isEmpty() || e.getCodeParsed() != SonyException.ErrorCode.RESOURCE_NOT_FOUND) throw e;
+            fromCache.forEach(entryIdCache::invalidate);
+            return createFolders(folders, new ArrayList<>());
+        }
+    }
+
+    private Map<Path, String> createFolders(SortedSet<Path> folders, List<Path> fromCache) throws IOException, InterruptedException {
+        Map<Path, String> folderIds = new HashMap<>();
+        Set<Path> createdByUs = new HashSet<>();
+
+        for (Path folder : folders) {
+            Path parent = folder.getParent();
+            String folderId = null;
+
+            if (parent == null || !createdByUs.contains(parent)) {
+                folderId = entryIdCache.get(folder);
+                if (folderId == null) {
+                    folderId = digitalPaperEndpoint.resolveObjectByPath(folder);
+                } else {
+                    fromCache.add(folder);
+                }
+            }
+
+            if (folderId == null) {
+                String parentId = parent == null ? ROOT_FOLDER_ID : folderIds.get(parent);
+                folderId = digitalPaperEndpoint.createDirectory(folder, parentId);
+                createdByUs.add(folder);
+            }
+
+            entryIdCache.put(folder, folderId);
+            folderIds.put(folder, folderId);
+        }
+        return folderIds;
+    }
+}
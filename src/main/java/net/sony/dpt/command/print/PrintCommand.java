@@ -3,20 +3,11 @@ package net.sony.dpt.command.print;
 import net.sony.dpt.network.DigitalPaperEndpoint;
 import net.sony.dpt.command.dialog.DialogCommand;
 import net.sony.dpt.command.documents.DocumentCommand;
-import net.sony.dpt.command.ping.PingCommand;
 import net.sony.util.LogWriter;
 
 import java.io.IOException;
-import java.net.URISyntaxException;
-import java.nio.file.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.file.Path;
 import java.util.UUID;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-
-import static java.nio.file.StandardWatchEventKinds.*;
 
 /**
  * Print a local document:
@@ -24,6 +15,7 @@ import static java.nio.file.StandardWatchEventKinds.*;
  * 2. Send the document
  * 3. Open it remotely
  * 4. Close the modal
+ * Watching a folder is done by the PrintSpooler.
  */
 public class PrintCommand {
 
@@ -32,22 +24,15 @@ public class PrintCommand {
     private final DocumentCommand documentCommand;
     private final static Path PRINT_ROOT = Path.of("Document/Received/");
     private final LogWriter logWriter;
-    private final PingCommand pingCommand;
-
-    private final List<Path> printQueue;
 
     public PrintCommand(final DigitalPaperEndpoint digitalPaperEndpoint,
                         final DialogCommand dialogCommand,
                         final DocumentCommand documentCommand,
-                        final LogWriter logWriter,
-                        final PingCommand pingCommand) {
+                        final LogWriter logWriter) {
         this.digitalPaperEndpoint = digitalPaperEndpoint;
         this.dialogCommand = dialogCommand;
         this.documentCommand = documentCommand;
         this.logWriter = logWriter;
-        this.pingCommand = pingCommand;
-
-        this.printQueue = new ArrayList<>();
     }
 
     public UUID openPrintModal(Path remotePath) throws IOException, InterruptedException {
@@ -88,50 +73,4 @@ public class PrintCommand {
 
         logWriter.log("Print job finished");
     }
-
-    @SuppressWarnings("unchecked")
-    public void processFileCreate(Path parent, WatchKey watchKey) throws IOException, InterruptedException, URISyntaxException {
-        if (watchKey == null) return;
-
-        for (WatchEvent<?> event : watchKey.pollEvents()) {
-            WatchEvent.Kind<?> kind = event.kind();
-            if (kind == OVERFLOW) continue;
-
-            WatchEvent<Path> ev = (WatchEvent<Path>) event;
-            Path newFile = parent.resolve(ev.context());
-
-            if (!"application/pdf".equals(Files.probeContentType(newFile))) {
-                logWriter.log(String.format("New file '%s'" + " is not a pdf", newFile));
-                continue;
-            }
-            // We ping the device: if on, we print, if off we add to the queue
-            if (pingCommand.pingQuiet()) print(newFile, false);
-            else printQueue.add(newFile);
-        }
-        watchKey.reset();
-    }
-    public void watch(Path localFolderToWatch) throws IOException {
-        WatchService watcher = FileSystems.getDefault().newWatchService();
-        localFolderToWatch.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
-
-        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
-        executor.scheduleAtFixedRate(() -> {
-            WatchKey key = watcher.poll();
-            try {
-                processPrintQueue();
-                processFileCreate(localFolderToWatch, key);
-            } catch (Exception e) {
-                logWriter.log("An " + e.getClass() + " occurred while printing, resetting the watcher...");
-                if (key != null) key.reset();
-            }
-        }, 0, 5000, TimeUnit.MILLISECONDS);
-    }
-
-    private void processPrintQueue() throws IOException, URISyntaxException, InterruptedException {
-        if (!printQueue.isEmpty() && pingCommand.pingQuiet()) {
-            for (Path path : printQueue) {
-                print(path, true);
-            }
-        }
-    }
 }
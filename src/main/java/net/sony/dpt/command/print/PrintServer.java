@@ -0,0 +1,124 @@
+package net.sony.dpt.command.print;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.sony.dpt.persistence.PrintQueueStore;
+import net.sony.util.LogWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Takes print jobs over HTTP, for the CUPS post-processing script: no JVM start, discovery or authentication per job.
+ * Runs inside the daemon, with its connection and its token.
+ *
+ *  POST /print, the pdf as the body, headers X-Dpt-Token (the daemon token) and X-File-Name
+ *  -> 202 once the file is in the spool folder, the PrintSpooler sends it with the other jobs of the burst
+ *
+ * We listen on the loopback interface only, the port is the third field of ~/.dpt/daemon.session.
+ */
+public class PrintServer {
+
+    private static final String TOKEN_HEADER = "X-Dpt-Token";
+    private static final String NAME_HEADER = "X-File-Name";
+    private static final int MAX_CLIENTS = 4;
+
+    private final PrintSpooler printSpooler;
+    private final PrintQueueStore printQueueStore;
+    private final LogWriter logWriter;
+    private volatile String token;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public PrintServer(final PrintSpooler printSpooler,
+                       final PrintQueueStore printQueueStore,
+                       final LogWriter logWriter) {
+        this.printSpooler = printSpooler;
+        this.printQueueStore = printQueueStore;
+        this.logWriter = logWriter;
+    }
+
+    /**
+     * @param port  0 for any free port
+     * @param token What the clients must present, the one of the daemon
+     * @return The port we listen on
+     */
+    public int bind(int port, String token) throws IOException {
+        this.token = token;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 50);
+        executor = Executors.newFixedThreadPool(MAX_CLIENTS);
+        server.setExecutor(executor);
+        server.createContext("/print", this::handle);
+        printSpooler.start();
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    public void close() {
+        if (server != null) server.stop(0);
+        if (executor != null) executor.shutdownNow();
+        printSpooler.stop();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "Send the pdf with a POST");
+                return;
+            }
+            String clientToken = String.valueOf(exchange.getRequestHeaders().getFirst(TOKEN_HEADER));
+            if (!MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), clientToken.getBytes(StandardCharsets.UTF_8))) {
+                respond(exchange, 403, "Invalid daemon token");
+                return;
+            }
+
+            Path job = printQueueStore.newSpoolFile(fileName(exchange.getRequestHeaders().getFirst(NAME_HEADER)));
+            try (InputStream body = exchange.getRequestBody()) {
+                Files.copy(body, job);
+                if (Files.size(job) == 0) {
+                    printQueueStore.removeSpooled(job);
+                    respond(exchange, 400, "Empty print job");
+                    return;
+                }
+            } catch (IOException e) {
+                // The client went away before sending the whole file
+                printQueueStore.removeSpooled(job);
+                throw e;
+            }
+
+            printSpooler.submit(job);
+            logWriter.log("Received " + job.getFileName());
+            respond(exchange, 202, "Queued, " + printSpooler.pending() + " jobs waiting");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(body);
+        }
+    }
+
+    /**
+     * The name shown on the device, never a path: the header comes from the outside
+     */
+    static String fileName(String requested) {
+        String name = requested == null ? "" : requested.replaceAll(".*[/\\\\]", "").strip();
+        if (name.isEmpty() || name.startsWith(".")) name = "print-" + System.currentTimeMillis();
+        if (!name.toLowerCase().endsWith(".pdf")) name += ".pdf";
+        return name;
+    }
+}
@@ -0,0 +1,335 @@
+package net.sony.dpt.command.print;
+
+import net.sony.dpt.command.ping.PingCommand;
+import net.sony.dpt.persistence.PrintQueueStore;
+import net.sony.util.LogWriter;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Prints the pdfs dropped in a folder, or submitted directly, whether the device is reachable at that moment or not.
+ *
+ * - A new or modified file is only printed once its size and modification time stayed the same for a while:
+ *   a file still being written is left alone.
+ * - The queue is stored after every change, the jobs of a previous run are printed on start.
+ * - The jobs go out in parallel, the LimitedHttpClient keeps the device from being overloaded. Jobs with the
+ *   same name go one after the other.
+ * - If the device doesn't answer the ping, or a job fails, we try again later, doubling the wait every time.
+ * - We wait a little before sending, so that a burst of jobs goes out as one batch after a single ping.
+ */
+public class PrintSpooler {
+
+    public static final int DEFAULT_PARALLEL = 4;
+    private static final long STABLE_MS = 2000;
+    private static final long DEFAULT_MIN_RETRY_MS = 1000;
+    private static final long MAX_RETRY_MS = 60_000;
+    private static final int MAX_ATTEMPTS = 10;
+    private static final long BATCH_MS = 200;
+
+    private static class Candidate {
+        private final long size;
+        private final long modified;
+        private final long since;
+
+        private Candidate(final long size, final long modified, final long since) {
+            this.size = size;
+            this.modified = modified;
+            this.since = since;
+        }
+    }
+
+    private final PrintCommand printCommand;
+    private final PingCommand pingCommand;
+    private final PrintQueueStore printQueueStore;
+    private final LogWriter logWriter;
+    private final long minRetryMs;
+
+    // Guarded by itself
+    private final Set<Path> queue;
+    private final Map<Path, Integer> attempts;
+    private final Map<Path, Candidate> candidates;
+    // What each file looked like when we printed it, a modification event alone doesn't print it again
+    private final Map<Path, String> printed;
+
+    private final ScheduledExecutorService debouncer;
+    private final ScheduledExecutorService dispatcher;
+    private final ExecutorService uploaders;
+    private final AtomicBoolean checkScheduled;
+    private final AtomicBoolean dispatchScheduled;
+    private long retryMs;
+
+    public PrintSpooler(final PrintCommand printCommand,
+                        final PingCommand pingCommand,
+                        final PrintQueueStore printQueueStore,
+                        final LogWriter logWriter,
+                        final int parallel) {
+        this(printCommand, pingCommand, printQueueStore, logWriter, parallel, DEFAULT_MIN_RETRY_MS);
+    }
+
+    PrintSpooler(final PrintCommand printCommand,
+                 final PingCommand pingCommand,
+                 final PrintQueueStore printQueueStore,
+                 final LogWriter logWriter,
+                 final int parallel,
+                 final long minRetryMs) {
+        this.printCommand = printCommand;
+        this.pingCommand = pingCommand;
+        this.printQueueStore = printQueueStore;
+        this.logWriter = logWriter;
+        this.minRetryMs = minRetryMs;
+        this.retryMs = minRetryMs;
+
+        this.queue = new LinkedHashSet<>();
+        this.attempts = new HashMap<>();
+        this.candidates = new ConcurrentHashMap<>();
+        this.printed = new ConcurrentHashMap<>();
+        this.debouncer = Executors.newSingleThreadScheduledExecutor(daemon("print-debounce"));
+        this.dispatcher = Executors.newSingleThreadScheduledExecutor(daemon("print-dispatch"));
+        this.uploaders = Executors.newFixedThreadPool(parallel, daemon("print-upload"));
+        this.checkScheduled = new AtomicBoolean();
+        this.dispatchScheduled = new AtomicBoolean();
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Picks up the jobs left by the previous run
+     */
+    public void start() {
+        List<Path> previous = printQueueStore.retrieveQueue();
+        if (!previous.isEmpty()) logWriter.log(previous.size() + " print jobs left from last time");
+        synchronized (queue) {
+            queue.addAll(previous);
+        }
+        requestDispatch();
+    }
+
+    public void stop() {
+        debouncer.shutdownNow();
+        dispatcher.shutdownNow();
+        uploaders.shutdownNow();
+    }
+
+    /**
+     * Blocks, printing every pdf written to the folder
+     */
+    public void watch(Path folder) throws IOException, InterruptedException {
+        start();
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            folder.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+            logWriter.log("Watching " + folder + ", the pdfs written there will be printed. Ctrl+C to stop.");
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) continue;
+                    fileChanged(folder.resolve((Path) event.context()));
+                }
+                if (!key.reset()) throw new IOException(folder + " can't be watched anymore");
+            }
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * The file is being written, or was just written: we'll print it once it stays the same
+     */
+    public void fileChanged(Path file) {
+        candidates.put(file, new Candidate(-1, -1, System.currentTimeMillis()));
+        if (checkScheduled.compareAndSet(false, true)) {
+            debouncer.schedule(this::checkCandidates, STABLE_MS / 2, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void checkCandidates() {
+        checkScheduled.set(false);
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Path, Candidate> entry : candidates.entrySet()) {
+            Path file = entry.getKey();
+            Candidate candidate = entry.getValue();
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (IOException e) {
+                // Gone already, a temporary file
+                candidates.remove(file, candidate);
+                continue;
+            }
+
+            long size = attributes.size();
+            long modified = attributes.lastModifiedTime().toMillis();
+            if (size != candidate.size || modified != candidate.modified) {
+                candidates.replace(file, candidate, new Candidate(size, modified, now));
+            } else if (size > 0 && now - candidate.since >= STABLE_MS && candidates.remove(file, candidate)) {
+                if (!isPdf(file)) {
+                    logWriter.log(String.format("New file '%s'" + " is not a pdf", file));
+                } else if (!fingerprint(size, modified).equals(printed.get(file))) {
+                    submit(file);
+                }
+            }
+        }
+        if (!candidates.isEmpty() && checkScheduled.compareAndSet(false, true)) {
+            debouncer.schedule(this::checkCandidates, STABLE_MS / 2, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static boolean isPdf(Path file) {
+        try {
+            if ("application/pdf".equals(Files.probeContentType(file))) return true;
+        } catch (IOException ignored) {
+        }
+        return file.getFileName().toString().toLowerCase().endsWith(".pdf");
+    }
+
+    private static String fingerprint(long size, long modified) {
+        return size + "@" + modified;
+    }
+
+    /**
+     * Queues a file ready to be printed
+     */
+    public void submit(Path file) {
+        synchronized (queue) {
+            if (!queue.add(file)) return;
+            persist();
+        }
+        requestDispatch();
+    }
+
+    public int pending() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    private void persist() {
+        try {
+            printQueueStore.storeQueue(queue);
+        } catch (IOException e) {
+            logWriter.log("Could not store the print queue, it won't survive a restart: " + e.getMessage());
+        }
+    }
+
+    private void requestDispatch() {
+        if (dispatchScheduled.compareAndSet(false, true)) dispatcher.schedule(this::dispatch, BATCH_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void dispatch() {
+        List<Path> jobs;
+        synchronized (queue) {
+            jobs = new ArrayList<>(queue);
+        }
+
+        boolean retry = false;
+        if (!jobs.isEmpty()) {
+            if (!reachable()) {
+                retry = true;
+            } else {
+                // One job is shown and opened on the device, a batch goes in quietly
+                boolean quiet = jobs.size() > 1;
+                // Jobs of the same name go to the same document on the device, in parallel each upload would delete the other
+                Map<Path, List<Path>> byName = new LinkedHashMap<>();
+                for (Path job : jobs) byName.computeIfAbsent(job.getFileName(), name -> new ArrayList<>()).add(job);
+                List<Future<Boolean>> results = new ArrayList<>();
+                for (List<Path> sameName : byName.values()) {
+                    results.add(uploaders.submit(() -> {
+                        boolean printedAll = true;
+                        for (Path job : sameName) printedAll &= printJob(job, quiet);
+                        return printedAll;
+                    }));
+                }
+                try {
+                    for (Future<Boolean> result : results) {
+                        if (!result.get()) retry = true;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    retry = true;
+                }
+            }
+        }
+
+        if (retry) {
+            logWriter.log("The device is not reachable or failed to print, trying again in " + retryMs / 1000 + "s");
+            dispatcher.schedule(this::dispatch, retryMs, TimeUnit.MILLISECONDS);
+            retryMs = Math.min(retryMs * 2, MAX_RETRY_MS);
+            return;
+        }
+        retryMs = minRetryMs;
+        dispatchScheduled.set(false);
+        // Submitted while we were busy
+        if (pending() > 0) requestDispatch();
+    }
+
+    private boolean reachable() {
+        try {
+            return pingCommand.pingQuiet();
+        } catch (IOException | URISyntaxException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return False if the job should be tried again
+     */
+    private boolean printJob(Path job, boolean quiet) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(job, BasicFileAttributes.class);
+            printCommand.print(job, quiet);
+            printed.put(job, fingerprint(attributes.size(), attributes.lastModifiedTime().toMillis()));
+            done(job);
+            return true;
+        } catch (NoSuchFileException e) {
+            logWriter.log(job + " was removed before we could print it");
+            done(job);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            int attempt;
+            synchronized (queue) {
+                attempt = attempts.merge(job, 1, Integer::sum);
+            }
+            if (attempt >= MAX_ATTEMPTS) {
+                logWriter.log("Giving up on " + job + " after " + attempt + " attempts: " + e.getMessage());
+                done(job);
+                return true;
+            }
+            logWriter.log("Could not print " + job + ": " + e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void done(Path job) {
+        synchronized (queue) {
+            queue.remove(job);
+            attempts.remove(job);
+            persist();
+        }
+        if (!printQueueStore.isSpooled(job)) return;
+        // Each job sent to the print server has its own file, nothing to remember once it's gone
+        printed.remove(job);
+        try {
+            printQueueStore.removeSpooled(job);
+        } catch (IOException e) {
+            logWriter.log("Could not remove " + job + " from the spool folder: " + e.getMessage());
+        }
+    }
+}
@@ -8,7 +8,6 @@ import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.InvalidAlgorithmParameterException;
@@ -27,14 +26,12 @@ public class FirmwareCommand {
     }
 
     public void unpack(final Path pkg, final Path target) throws IOException, NoSuchPaddingException, InvalidKeyException, NoSuchAlgorithmException, IllegalBlockSizeException, BadPaddingException, SignatureException, InvalidAlgorithmParameterException {
-        InputStream firmware = Files.newInputStream(pkg);
-
         Files.createDirectories(target);
 
         Path targetData = target.resolve("decryptedData.tar.gz");
         Path targetAnimation = target.resolve("decryptedAnimation.tar.gz");
 
-        firmwarePacker.unpack(firmware, targetData, targetAnimation);
+        firmwarePacker.unpack(pkg, targetData, targetAnimation);
         logWriter.log("Unpacked data to " + targetData);
         logWriter.log("Unpacked animation to " + targetAnimation);
     }
@@ -5,17 +5,23 @@ import net.sony.dpt.command.documents.DocumentEntry;
 import net.sony.dpt.command.documents.DocumentListResponse;
 import net.sony.dpt.command.documents.DocumentCommand;
 import net.sony.dpt.persistence.SyncStore;
+import net.sony.util.HashUtils;
 import net.sony.util.LogWriter;
 import net.sony.util.ProgressBar;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.file.*;
 import java.util.*;
 
 public class SyncCommand {
 
     private static final Path remoteRoot = Path.of("Document");
+    private static final String FETCHING = "Fetching from DPT";
+    private static final String SENDING = "Sending to DPT";
+    private static final String DELETING_LOCALLY = "Deleting locally";
+    private static final String DELETING_REMOTELY = "Deleting on the DPT";
+    private static final double MAX_DELETED_FRACTION = 0.5;
+    private static final int MIN_GUARDED_DELETIONS = 5;
     private final DigitalPaperEndpoint digitalPaperEndpoint;
     private final SyncStore syncStore;
     private final LogWriter logWriter;
@@ -33,6 +39,12 @@ public class SyncCommand {
 
     private final ProgressBar progressBar;
 
+    // Null when running without history, e.g. from the tests: we then fall back to sizes and the last sync date
+    private SyncManifest manifest;
+
+    private int maxConcurrency = TransferScheduler.DEFAULT_MAX_CONCURRENCY;
+    private boolean force;
+
     int documentsToSyncCount;
     int documentsToSyncSizeMB;
     private int handledSoFarMB = 0;
@@ -65,6 +77,11 @@ public class SyncCommand {
         documentsToSyncSizeMB = 0;
     }
 
+    // For the tests, sync(boolean) reads it from the SyncStore
+    void setManifest(SyncManifest manifest) {
+        this.manifest = manifest;
+    }
+
     public Map<Path, DocumentEntry> loadRemoteDocuments(DocumentListResponse documentListResponse) {
         remoteFileMap.clear();
 
@@ -115,11 +132,20 @@ public class SyncCommand {
         loadLocalDocuments(localRoot, dryrun);
 
         Date lastSyncDate = syncStore.retrieveLastSyncDate();
+        manifest = syncStore.retrieveManifest(localRoot);
         if (dryrun) {
             logWriter.log("Synchronization dry-run starting...");
         }
 
-        sync(lastSyncDate, dryrun);
+        try {
+            sync(lastSyncDate, dryrun);
+        } finally {
+            // Even after a failure, what was transferred so far is recorded and won't be redone
+            if (!dryrun) {
+                recordUnchanged();
+                syncStore.storeManifest(localRoot, manifest);
+            }
+        }
 
         if (!dryrun) {
             syncStore.storeLastSyncDate(new Date());
@@ -132,11 +158,26 @@ public class SyncCommand {
         } else {
             logWriter.log("Synchronized " + documentsToSyncCount + " files in " + delay / 1000 + " seconds.");
         }
+        logWriter.log(documentCommand.getEntryIdCache().summary());
     }
 
     public void sync(Date lastSync, boolean dryrun) throws IOException, InterruptedException {
-        // We are in initialization mode for the remote
-        if (remoteFileMap.isEmpty() && !localFileMap.isEmpty()) {
+        if (manifest != null && !manifest.isEmpty()) {
+            // With history, an empty side was emptied by the user: the manifest tells deletions from new files
+            logWriter.log("Starting incremental sync...");
+
+            // Never synced before: nothing can have been deleted, so no last sync date for those
+            Map<Path, DocumentEntry> localNew = new HashMap<>(localFileMap);
+            Map<Path, DocumentEntry> remoteNew = new HashMap<>(remoteFileMap);
+            localNew.keySet().removeIf(manifest::contains);
+            remoteNew.keySet().removeIf(manifest::contains);
+            handleExistOnlyInRemote(localNew, remoteNew, null);
+            handleExistOnlyInLocal(localNew, remoteNew, null);
+            handleFileDifference(localNew, remoteNew);
+
+            handleKnownFiles();
+        } else if (remoteFileMap.isEmpty() && !localFileMap.isEmpty()) {
+            // We are in initialization mode for the remote
             logWriter.log("Initial sync, sending all to remote...");
             toSend.addAll(localFileMap.keySet());
         } else if (!remoteFileMap.isEmpty() && localFileMap.isEmpty()) {
@@ -152,6 +193,7 @@ public class SyncCommand {
             handleExistOnlyInLocal(localFileMap, remoteFileMap, lastSync);
             handleFileDifference(localFileMap, remoteFileMap);
         }
+        guardMassDeletion();
         calculateStatistics();
 
         runAllTasks(dryrun);
@@ -205,6 +247,63 @@ public class SyncCommand {
         }
     }
 
+    /**
+     * For files present at the last sync, we know what each side looked like, no need to guess with dates.
+     */
+    private void handleKnownFiles() throws IOException {
+        for (String key : manifest.getEntries().keySet()) {
+            Path path = Path.of(key);
+            SyncManifest.Entry known = manifest.get(path);
+            DocumentEntry local = localFileMap.get(path);
+            DocumentEntry remote = remoteFileMap.get(path);
+
+            if (local == null && remote == null) {
+                manifest.remove(path);
+                continue;
+            }
+
+            boolean localChanged = local != null && SyncManifest.localChanged(known, localRoot.resolve(path));
+            boolean remoteChanged = remote != null && SyncManifest.remoteChanged(known, remote);
+
+            if (local == null) {
+                if (remoteChanged) toFetch.add(path);
+                else toDeleteRemotely.add(path);
+            } else if (remote == null) {
+                if (localChanged) toSend.add(path);
+                else toDeleteLocally.add(path);
+            } else if (localChanged && remoteChanged) {
+                // Since we can't merge, the most recent takes priority
+                if (local.getModifiedDate().compareTo(remote.getModifiedDate()) > 0) {
+                    toSend.add(path);
+                } else {
+                    toFetch.add(path);
+                }
+            } else if (localChanged) {
+                toSend.add(path);
+            } else if (remoteChanged) {
+                toFetch.add(path);
+            }
+        }
+    }
+
+    /**
+     * Files identical on both sides we had no history for: we hash them now, so that a later touch
+     * isn't taken for an edit.
+     */
+    private void recordUnchanged() throws IOException {
+        Set<Path> transferred = new HashSet<>(toSend);
+        transferred.addAll(toFetch);
+        for (Map.Entry<Path, DocumentEntry> remote : remoteFileMap.entrySet()) {
+            Path path = remote.getKey();
+            if (manifest.contains(path) || !localFileMap.containsKey(path)) continue;
+            if (transferred.contains(path)) continue;
+            Path localFile = localRoot.resolve(path);
+            if (Files.exists(localFile)) {
+                manifest.put(path, SyncManifest.entry(localFile, remote.getValue(), HashUtils.sha256Hex(localFile)));
+            }
+        }
+    }
+
     private void handleFileDifference(Map<Path, DocumentEntry> localFileMap,
                                       Map<Path, DocumentEntry> remoteFileMap) {
 
@@ -232,6 +331,31 @@ public class SyncCommand {
         }
     }
 
+    /**
+     * An empty or partial listing (device reset, another device, another root) looks exactly like the user deleting
+     * everything on that side: we don't propagate that without -force.
+     */
+    private void guardMassDeletion() {
+        int deletions = toDeleteLocally.size() + toDeleteRemotely.size();
+        if (force || deletions == 0) return;
+
+        int known = manifest != null && !manifest.isEmpty()
+                ? manifest.getEntries().size()
+                : Math.max(localFileMap.size(), remoteFileMap.size());
+        boolean sideEmptied = (remoteFileMap.isEmpty() && !toDeleteLocally.isEmpty())
+                || (localFileMap.isEmpty() && !toDeleteRemotely.isEmpty());
+        boolean tooMany = deletions > MIN_GUARDED_DELETIONS && deletions > known * MAX_DELETED_FRACTION;
+        if (!sideEmptied && !tooMany) return;
+
+        logWriter.log("Refusing to delete " + deletions + " of the " + known + " synchronized files, "
+                + "the device or the local folder may not be the one synchronized last time:");
+        toDeleteLocally.forEach(path -> logWriter.log("  would delete locally " + path));
+        toDeleteRemotely.forEach(path -> logWriter.log("  would delete on the DPT " + path));
+        logWriter.log("If that's what you want, synchronize again with -force.");
+        toDeleteLocally.clear();
+        toDeleteRemotely.clear();
+    }
+
     private void calculateStatistics() {
         logWriter.log("We will send " + toSend.size() + " files to the Digital Paper");
         logWriter.log("We will receive " + toFetch.size() + " files from the Digital Paper");
@@ -255,90 +379,103 @@ public class SyncCommand {
         }
     }
 
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * @param force Deletes even when most of one side is gone, see guardMassDeletion
+     */
+    public void setForce(boolean force) {
+        this.force = force;
+    }
+
     private void runAllTasks(boolean dryrun) throws IOException, InterruptedException {
 
         if (progressBar != null) {
             progressBar.progressed(0, documentsToSyncCount);
             progressBar.progressed(0, documentsToSyncSizeMB);
-            progressBar.remaining("Fetching from DPT", toFetch.size());
-            progressBar.remaining("Sending to DPT", toSend.size());
-            progressBar.remaining("Deleting locally", toDeleteLocally.size());
-            progressBar.remaining("Deleting on the DPT", toDeleteRemotely.size());
+            progressBar.remaining(FETCHING, toFetch.size());
+            progressBar.remaining(SENDING, toSend.size());
+            progressBar.remaining(DELETING_LOCALLY, toDeleteLocally.size());
+            progressBar.remaining(DELETING_REMOTELY, toDeleteRemotely.size());
             progressBar.current(null);
             progressBar.repaint();
         }
 
-        int progress = 0;
-        int localProgress = 0;
-        for (Path path : toFetch) {
-            localProgress += 1;
-            progress += 1;
-            notifyProgress(
-                    "Fetching " + path.getFileName(),
-                    "Fetching from DPT",
-                    toFetch.size() - localProgress,
-                    progress,
-                    documentsToSyncCount,
-                    (int) remoteFileMap.get(path).getFileSize(),
-                    documentsToSyncSizeMB
-            );
-            fetchRemoteFile(path, dryrun);
+        if (!dryrun && !toSend.isEmpty()) {
+            // All the missing folders at once, instead of walking the tree again for every file
+            List<Path> remotePaths = new ArrayList<>();
+            toSend.forEach(path -> remotePaths.add(remoteRoot.resolve(path)));
+            documentCommand.createFolders(remotePaths);
         }
 
-        localProgress = 0;
+        TransferScheduler scheduler = new TransferScheduler(dryrun ? 1 : maxConcurrency);
+        for (Path path : toFetch) {
+            // downloadTo resumes on its own when the connection drops
+            scheduler.addRetriedByAction("Fetching " + path.getFileName(), FETCHING, remoteFileMap.get(path).getFileSize(),
+                    () -> fetchRemoteFile(path, dryrun));
+        }
         for (Path path : toSend) {
-            localProgress += 1;
-            progress += 1;
-            notifyProgress(
-                    "Sending " + path.getFileName(),
-                    "Sending to DPT",
-                    toSend.size() - localProgress,
-                    progress,
-                    documentsToSyncCount,
-                    (int) localFileMap.get(path).getFileSize(),
-                    documentsToSyncSizeMB
-            );
-            sendLocalFile(path, dryrun);
+            scheduler.add("Sending " + path.getFileName(), SENDING, localFileMap.get(path).getFileSize(),
+                    () -> sendLocalFile(path, dryrun));
         }
-
-        localProgress = 0;
         for (Path path : toDeleteLocally) {
-            localProgress += 1;
-            progress += 1;
-            notifyProgress(
-                    "Deleting locally " + path.getFileName(),
-                    "Deleting locally",
-                    toDeleteLocally.size() - localProgress,
-                    progress,
-                    documentsToSyncCount,
-                    0,
-                    documentsToSyncSizeMB
-            );
-
-            deleteLocalFile(path, dryrun);
+            scheduler.add("Deleting locally " + path.getFileName(), DELETING_LOCALLY, 0,
+                    () -> deleteLocalFile(path, dryrun));
         }
-
-        localProgress = 0;
         for (Path path : toDeleteRemotely) {
-            localProgress += 1;
-            progress += 1;
-            notifyProgress(
-                    "Deleting on the DPT " + path.getFileName(),
-                    "Deleting on the DPT",
-                    toDeleteRemotely.size() - localProgress,
-                    progress,
-                    documentsToSyncCount,
-                    0,
-                    documentsToSyncSizeMB
-            );
-            deleteRemoteFile(path, dryrun);
+            scheduler.add("Deleting on the DPT " + path.getFileName(), DELETING_REMOTELY, 0,
+                    () -> deleteRemoteFile(path, dryrun));
         }
+
+        Map<String, Integer> remainingPerGroup = new HashMap<>();
+        remainingPerGroup.put(FETCHING, toFetch.size());
+        remainingPerGroup.put(SENDING, toSend.size());
+        remainingPerGroup.put(DELETING_LOCALLY, toDeleteLocally.size());
+        remainingPerGroup.put(DELETING_REMOTELY, toDeleteRemotely.size());
+
+        scheduler.run(new TransferScheduler.Listener() {
+            @Override
+            public void started(TransferScheduler.Transfer transfer) {
+                if (progressBar != null) {
+                    progressBar.current(transfer.getDescription());
+                    progressBar.repaint();
+                }
+            }
+
+            @Override
+            public void completed(TransferScheduler.Transfer transfer, int done, int total, long bytesDone, long bytesPerSecond, int concurrency) {
+                int remaining = remainingPerGroup.merge(transfer.getGroup(), -1, Integer::sum);
+                notifyProgress(
+                        transfer.getDescription() + " (" + bytesPerSecond / 1024 + " kB/s, " + concurrency + " in parallel)",
+                        transfer.getGroup(),
+                        remaining,
+                        done,
+                        documentsToSyncCount,
+                        (int) transfer.getBytes(),
+                        documentsToSyncSizeMB
+                );
+            }
+
+            @Override
+            public void retrying(TransferScheduler.Transfer transfer, Throwable cause) {
+                logWriter.log(transfer.getDescription() + " failed (" + cause.getMessage() + "), retrying");
+            }
+        });
+
         if (progressBar != null) progressBar.stop();
     }
 
     private void sendLocalFile(Path path, boolean dryrun) throws IOException, InterruptedException {
         if (!dryrun) {
-            documentCommand.upload(localRoot.resolve(path), remoteRoot.resolve(path));
+            Path source = localRoot.resolve(path);
+            String documentId = documentCommand.upload(source, remoteRoot.resolve(path));
+            if (manifest != null) {
+                // The revision the device gave to our upload, so we don't fetch it back next time
+                DocumentEntry sent = documentCommand.documentInfo(documentId);
+                manifest.put(path, SyncManifest.entry(source, sent, HashUtils.sha256Hex(source)));
+            }
         }
     }
 
@@ -346,27 +483,25 @@ public class SyncCommand {
         if (!dryrun) {
             Path target = localRoot.resolve(path);
             Files.createDirectories(target.getParent());
-            try (InputStream inputStream = digitalPaperEndpoint.downloadByRemoteId(
-                    remoteFileMap.get(path).getEntryId()
-            )) {
-                Files.copy(
-                        inputStream,
-                        localRoot.resolve(path),
-                        StandardCopyOption.REPLACE_EXISTING
-                );
+            DocumentEntry remote = remoteFileMap.get(path);
+            digitalPaperEndpoint.downloadTo(target, remote.getEntryId(), remote.getFileRevisiion(), remote.getFileSize());
+            if (manifest != null) {
+                manifest.put(path, SyncManifest.entry(target, remote, HashUtils.sha256Hex(target)));
             }
         }
     }
 
     private void deleteRemoteFile(Path path, boolean dryrun) throws IOException, InterruptedException {
         if (!dryrun) {
-            digitalPaperEndpoint.deleteByDocumentId(remoteFileMap.get(path).getEntryId());
+            documentCommand.delete(remoteRoot.resolve(path));
+            if (manifest != null) manifest.remove(path);
         }
     }
 
     private void deleteLocalFile(Path path, boolean dryrun) throws IOException {
         if (!dryrun) {
             Files.delete(localRoot.resolve(path));
+            if (manifest != null) manifest.remove(path);
         }
     }
 
@@ -0,0 +1,146 @@
+package net.sony.dpt.command.sync;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import net.sony.dpt.command.documents.DocumentEntry;
+import net.sony.util.HashUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What both sides looked like at the end of the last sync of one local folder, file by file.
+ *
+ * Locally, a file whose size and mtime did not move is unchanged without reading it; otherwise we hash it, which
+ * catches same-size edits and ignores a simple touch. Remotely, the device bumps file_revision on every change.
+ * A path that disappeared on one side while unchanged on the other was deleted there.
+ *
+ * Keys are the paths relative to the sync root, with forward slashes.
+ */
+public class SyncManifest {
+
+    @JsonProperty("entries")
+    private Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public Map<String, Entry> getEntries() {
+        return entries;
+    }
+
+    public void setEntries(Map<String, Entry> entries) {
+        this.entries = new ConcurrentHashMap<>(entries);
+    }
+
+    @JsonIgnore
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public boolean contains(Path relativePath) {
+        return entries.containsKey(key(relativePath));
+    }
+
+    public Entry get(Path relativePath) {
+        return entries.get(key(relativePath));
+    }
+
+    public void put(Path relativePath, Entry entry) {
+        entries.put(key(relativePath), entry);
+    }
+
+    public void remove(Path relativePath) {
+        entries.remove(key(relativePath));
+    }
+
+    private static String key(Path relativePath) {
+        return relativePath.toString().replace('\\', '/');
+    }
+
+    /**
+     * @return True if the local file content changed since the manifest was written. The hash is only computed
+     * when size or mtime moved, and refreshed in the entry if the content is in fact the same.
+     * An entry without a hash, from an older manifest, can't tell an edit from a touch: any move is a change.
+     */
+    public static boolean localChanged(Entry entry, Path localFile) throws IOException {
+        long size = Files.size(localFile);
+        long modified = Files.getLastModifiedTime(localFile).toMillis();
+        if (size == entry.getSize() && modified == entry.getModified()) return false;
+        if (entry.getHash() == null || size != entry.getSize()) return true;
+
+        if (!HashUtils.sha256Hex(localFile).equals(entry.getHash())) return true;
+        // Touched only
+        entry.setModified(modified);
+        return false;
+    }
+
+    public static boolean remoteChanged(Entry entry, DocumentEntry remote) {
+        if (entry.getEntryId() != null && !entry.getEntryId().equals(remote.getEntryId())) return true;
+        return entry.getFileRevision() == null || !entry.getFileRevision().equals(remote.getFileRevisiion());
+    }
+
+    /**
+     * @param hash Of the local file, so that a later touch isn't taken for an edit
+     */
+    public static Entry entry(Path localFile, DocumentEntry remote, String hash) throws IOException {
+        Entry entry = new Entry();
+        entry.setSize(Files.size(localFile));
+        entry.setModified(Files.getLastModifiedTime(localFile).toMillis());
+        entry.setHash(hash);
+        entry.setEntryId(remote.getEntryId());
+        entry.setFileRevision(remote.getFileRevisiion());
+        return entry;
+    }
+
+    public static class Entry {
+
+        private long size;
+        private long modified;
+        private String hash;
+        @JsonProperty("entry_id")
+        private String entryId;
+        @JsonProperty("file_revision")
+        private String fileRevision;
+
+        public long getSize() {
+            return size;
+        }
+
+        public void setSize(long size) {
+            this.size = size;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        public void setModified(long modified) {
+            this.modified = modified;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public void setHash(String hash) {
+            this.hash = hash;
+        }
+
+        public String getEntryId() {
+            return entryId;
+        }
+
+        public void setEntryId(String entryId) {
+            this.entryId = entryId;
+        }
+
+        public String getFileRevision() {
+            return fileRevision;
+        }
+
+        public void setFileRevision(String fileRevision) {
+            this.fileRevision = fileRevision;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package net.sony.dpt.command.sync;
+
+import net.sony.dpt.error.SonyException;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs the sync tasks a few at a time.
+ *
+ * Big transfers are started largest first, so the one huge pdf does not start last and hold the whole sync
+ * while every other slot is idle. Small operations (deletes) are interleaved with them, they only take a round trip.
+ *
+ * Up to maxConcurrency tasks run at once: how many requests the device actually gets is adapted by the
+ * ConcurrencyLimiter of the HTTP layer, a second adaptive limit here would only fight it.
+ * A task failing on the network (timeouts, resets) is tried again, unless it already retries on its own.
+ * Errors the device answered (SonyException) are not retried, they won't go away.
+ *
+ * All the callbacks happen on the thread calling run(), so the listener needs no synchronization.
+ */
+public class TransferScheduler {
+
+    public static final int DEFAULT_MAX_CONCURRENCY = 4;
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final int maxConcurrency;
+    private final Deque<Transfer> bulk;
+    private final Deque<Transfer> metadata;
+
+    public TransferScheduler(final int maxConcurrency) {
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        bulk = new ArrayDeque<>();
+        metadata = new ArrayDeque<>();
+    }
+
+    /**
+     * @param bytes What will be transferred, 0 for operations not moving any content
+     */
+    public void add(String description, String group, long bytes, Action action) {
+        add(new Transfer(description, group, bytes, action, MAX_ATTEMPTS));
+    }
+
+    /**
+     * For an action already retrying on its own, like a download resuming where it stopped: a failure is final
+     */
+    public void addRetriedByAction(String description, String group, long bytes, Action action) {
+        add(new Transfer(description, group, bytes, action, 1));
+    }
+
+    private void add(Transfer transfer) {
+        if (transfer.bytes > 0) bulk.add(transfer);
+        else metadata.add(transfer);
+    }
+
+    public int size() {
+        return bulk.size() + metadata.size();
+    }
+
+    public void run(Listener listener) throws IOException, InterruptedException {
+        List<Transfer> sorted = new ArrayList<>(bulk);
+        sorted.sort(Comparator.comparingLong((Transfer transfer) -> transfer.bytes).reversed());
+        bulk.clear();
+        bulk.addAll(sorted);
+
+        int total = size();
+        int done = 0;
+        long bytesDone = 0;
+        long start = System.nanoTime();
+        boolean pickMetadata = true;
+        Exception failure = null;
+
+        ExecutorService executor = Executors.newFixedThreadPool(maxConcurrency, runnable -> {
+            Thread thread = new Thread(runnable, "dpt-transfer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        CompletionService<Transfer> completionService = new ExecutorCompletionService<>(executor);
+        int inFlight = 0;
+
+        try {
+            while (inFlight > 0 || (failure == null && size() > 0)) {
+                while (failure == null && inFlight < maxConcurrency && size() > 0) {
+                    // One small operation, then one big transfer, and so on
+                    Transfer next = (pickMetadata && !metadata.isEmpty()) || bulk.isEmpty() ? metadata.poll() : bulk.poll();
+                    pickMetadata = !pickMetadata;
+                    next.attempts++;
+                    listener.started(next);
+                    completionService.submit(() -> {
+                        try {
+                            next.action.run();
+                        } catch (IOException | InterruptedException e) {
+                            throw new TransferFailed(next, e);
+                        }
+                        return next;
+                    });
+                    inFlight++;
+                }
+
+                Future<Transfer> completed = completionService.take();
+                inFlight--;
+                try {
+                    Transfer transfer = completed.get();
+                    done++;
+                    bytesDone += transfer.bytes;
+                    double seconds = Math.max(1e-3, (System.nanoTime() - start) / 1e9);
+                    listener.completed(transfer, done, total, bytesDone, (long) (bytesDone / seconds), inFlight + 1);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    Transfer transfer = transferOf(cause);
+                    if (transfer != null && isTransient(cause.getCause()) && transfer.attempts < transfer.maxAttempts) {
+                        listener.retrying(transfer, cause.getCause());
+                        if (transfer.bytes > 0) bulk.addFirst(transfer);
+                        else metadata.addFirst(transfer);
+                    } else if (failure == null) {
+                        // We let what is running finish, but start nothing new
+                        failure = cause instanceof TransferFailed ? (Exception) cause.getCause() : new IOException(cause);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (failure instanceof IOException) throw (IOException) failure;
+        if (failure instanceof InterruptedException) throw (InterruptedException) failure;
+        if (failure != null) throw new IOException(failure);
+    }
+
+    private static Transfer transferOf(Throwable throwable) {
+        return throwable instanceof TransferFailed ? ((TransferFailed) throwable).transfer : null;
+    }
+
+    private static boolean isTransient(Throwable throwable) {
+        return throwable instanceof IOException && !(throwable instanceof SonyException);
+    }
+
+    public interface Listener {
+        void started(Transfer transfer);
+
+        /**
+         * @param concurrency How many transfers were running, this one included
+         */
+        void completed(Transfer transfer, int done, int total, long bytesDone, long bytesPerSecond, int concurrency);
+
+        void retrying(Transfer transfer, Throwable cause);
+    }
+
+    @FunctionalInterface
+    public interface Action {
+        void run() throws IOException, InterruptedException;
+    }
+
+    public static class Transfer {
+        private final String description;
+        private final String group;
+        private final long bytes;
+        private final Action action;
+        private final int maxAttempts;
+        private int attempts;
+
+        private Transfer(String description, String group, long bytes, Action action, int maxAttempts) {
+            this.description = description;
+            this.group = group;
+            this.bytes = bytes;
+            this.action = action;
+            this.maxAttempts = maxAttempts;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public String getGroup() {
+            return group;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    /**
+     * Carries the transfer back to the scheduler, the future alone does not say which one failed
+     */
+    private static class TransferFailed extends RuntimeException {
+        private final Transfer transfer;
+
+        private TransferFailed(Transfer transfer, Exception cause) {
+            super(cause);
+            this.transfer = transfer;
+        }
+    }
+}
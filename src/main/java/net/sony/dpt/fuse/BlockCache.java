@@ -0,0 +1,267 @@
+package net.sony.dpt.fuse;
+
+import net.sony.util.ByteUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Fixed size blocks of the documents read through the mount, so that browsing a whole library stays within bounded memory.
+ *
+ * The most recently used blocks are kept in memory, the ones evicted from there spill to disk, and the least recently
+ * used ones on disk get deleted. Blocks are keyed by entry id and file revision: a document changed on the device
+ * gets new keys, so a stale block is never served. The disk tier survives the mount, it's reloaded on the next one.
+ */
+public class BlockCache {
+
+    public static final int BLOCK_SIZE = 256 * 1024;
+    public static final long DEFAULT_MEMORY_CAPACITY = 64L * 1024 * 1024;
+    public static final long DEFAULT_DISK_CAPACITY = 1024L * 1024 * 1024;
+    private static final String BLOCK_EXTENSION = ".blk";
+
+    private final Path diskPath;
+    private final long memoryCapacity;
+    private final long diskCapacity;
+
+    // Access ordered, the first entry is the least recently used
+    private final LinkedHashMap<BlockKey, byte[]> memory;
+    private final LinkedHashMap<BlockKey, Long> disk;
+    private long memoryBytes;
+    private long diskBytes;
+
+    public BlockCache(final Path diskPath) throws IOException {
+        this(diskPath, DEFAULT_MEMORY_CAPACITY, DEFAULT_DISK_CAPACITY);
+    }
+
+    /**
+     * @param diskPath Where blocks spill, null to keep them in memory only
+     */
+    public BlockCache(final Path diskPath, final long memoryCapacity, final long diskCapacity) throws IOException {
+        this.diskPath = diskPath;
+        this.memoryCapacity = memoryCapacity;
+        this.diskCapacity = diskPath == null ? 0 : diskCapacity;
+        this.memory = new LinkedHashMap<>(16, 0.75f, true);
+        this.disk = new LinkedHashMap<>(16, 0.75f, true);
+        if (diskPath != null) loadDisk();
+    }
+
+    private void loadDisk() throws IOException {
+        Files.createDirectories(diskPath);
+        List<Path> blocks;
+        try (Stream<Path> files = Files.list(diskPath)) {
+            blocks = files.filter(file -> file.getFileName().toString().endsWith(BLOCK_EXTENSION))
+                    .sorted(Comparator.comparingLong(BlockCache::lastModified))
+                    .collect(Collectors.toList());
+        }
+        for (Path block : blocks) {
+            BlockKey key = BlockKey.fromFileName(block.getFileName().toString());
+            if (key == null) {
+                Files.deleteIfExists(block);
+                continue;
+            }
+            long size = Files.size(block);
+            disk.put(key, size);
+            diskBytes += size;
+        }
+        deleteAll(evictDisk());
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return The block, or null if it's not cached
+     */
+    public byte[] get(String entryId, String revision, long index) {
+        BlockKey key = new BlockKey(entryId, revision, index);
+        synchronized (this) {
+            byte[] block = memory.get(key);
+            if (block != null || !disk.containsKey(key)) return block;
+        }
+
+        byte[] block;
+        try {
+            block = Files.readAllBytes(diskPath.resolve(key.fileName()));
+        } catch (IOException e) {
+            // Evicted in the meantime
+            return null;
+        }
+        put(key, block);
+        return block;
+    }
+
+    /**
+     * Unlike get, this does not count as a use of the block
+     */
+    public synchronized boolean contains(String entryId, String revision, long index) {
+        BlockKey key = new BlockKey(entryId, revision, index);
+        return memory.containsKey(key) || disk.containsKey(key);
+    }
+
+    public void put(String entryId, String revision, long index, byte[] block) {
+        put(new BlockKey(entryId, revision, index), block);
+    }
+
+    private void put(BlockKey key, byte[] block) {
+        Map<BlockKey, byte[]> spilled;
+        synchronized (this) {
+            byte[] previous = memory.put(key, block);
+            if (previous != null) memoryBytes -= previous.length;
+            memoryBytes += block.length;
+            spilled = evictMemory();
+        }
+        spilled.forEach(this::spill);
+    }
+
+    private synchronized Map<BlockKey, byte[]> evictMemory() {
+        Map<BlockKey, byte[]> evicted = new LinkedHashMap<>();
+        Iterator<Map.Entry<BlockKey, byte[]>> iterator = memory.entrySet().iterator();
+        while (memoryBytes > memoryCapacity && iterator.hasNext()) {
+            Map.Entry<BlockKey, byte[]> eldest = iterator.next();
+            iterator.remove();
+            memoryBytes -= eldest.getValue().length;
+            if (!disk.containsKey(eldest.getKey())) evicted.put(eldest.getKey(), eldest.getValue());
+        }
+        return evicted;
+    }
+
+    private void spill(BlockKey key, byte[] block) {
+        if (diskCapacity <= 0 || block.length > diskCapacity) return;
+        Path file = diskPath.resolve(key.fileName());
+        Path tmp = diskPath.resolve(key.fileName() + ".tmp");
+        try {
+            Files.write(tmp, block);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // A full or read-only disk only means we'll download it again
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {
+            }
+            return;
+        }
+
+        List<BlockKey> evicted;
+        synchronized (this) {
+            Long previous = disk.put(key, (long) block.length);
+            if (previous != null) diskBytes -= previous;
+            diskBytes += block.length;
+            evicted = evictDisk();
+        }
+        deleteAll(evicted);
+    }
+
+    private synchronized List<BlockKey> evictDisk() {
+        List<BlockKey> evicted = new ArrayList<>();
+        Iterator<Map.Entry<BlockKey, Long>> iterator = disk.entrySet().iterator();
+        while (diskBytes > diskCapacity && iterator.hasNext()) {
+            Map.Entry<BlockKey, Long> eldest = iterator.next();
+            iterator.remove();
+            diskBytes -= eldest.getValue();
+            evicted.add(eldest.getKey());
+        }
+        return evicted;
+    }
+
+    private void deleteAll(Collection<BlockKey> keys) {
+        for (BlockKey key : keys) {
+            try {
+                Files.deleteIfExists(diskPath.resolve(key.fileName()));
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Drops every block of this document, whatever its revision
+     */
+    public void invalidate(String entryId) {
+        List<BlockKey> removed = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Map.Entry<BlockKey, byte[]>> inMemory = memory.entrySet().iterator();
+            while (inMemory.hasNext()) {
+                Map.Entry<BlockKey, byte[]> entry = inMemory.next();
+                if (entry.getKey().entryId.equals(entryId)) {
+                    memoryBytes -= entry.getValue().length;
+                    inMemory.remove();
+                }
+            }
+            Iterator<Map.Entry<BlockKey, Long>> onDisk = disk.entrySet().iterator();
+            while (onDisk.hasNext()) {
+                Map.Entry<BlockKey, Long> entry = onDisk.next();
+                if (entry.getKey().entryId.equals(entryId)) {
+                    diskBytes -= entry.getValue();
+                    removed.add(entry.getKey());
+                    onDisk.remove();
+                }
+            }
+        }
+        deleteAll(removed);
+    }
+
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    private static final class BlockKey {
+        private final String entryId;
+        private final String revision;
+        private final long index;
+
+        private BlockKey(String entryId, String revision, long index) {
+            this.entryId = entryId;
+            this.revision = revision == null ? "" : revision;
+            this.index = index;
+        }
+
+        private String fileName() {
+            return hex(entryId) + "." + hex(revision) + "." + index + BLOCK_EXTENSION;
+        }
+
+        private static BlockKey fromFileName(String fileName) {
+            String[] parts = fileName.substring(0, fileName.length() - BLOCK_EXTENSION.length()).split("\\.", -1);
+            if (parts.length != 3) return null;
+            try {
+                return new BlockKey(unhex(parts[0]), unhex(parts[1]), Long.parseLong(parts[2]));
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+
+        private static String hex(String value) {
+            return ByteUtils.bytesToHex(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static String unhex(String value) {
+            return new String(ByteUtils.hexToByte(value), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            BlockKey blockKey = (BlockKey) o;
+            return index == blockKey.index && entryId.equals(blockKey.entryId) && revision.equals(blockKey.revision);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(entryId, revision, index);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package net.sony.dpt.fuse;
+
+import net.sony.dpt.command.documents.DocumentEntry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.*;
+
+import static net.sony.dpt.fuse.BlockCache.BLOCK_SIZE;
+
+/**
+ * Fills the BlockCache with Range requests, so that a file manager sniffing the first bytes of a document
+ * only downloads its first block.
+ *
+ * While a document is read sequentially, a window of blocks ahead is prefetched in the background, doubling
+ * with every sequential block. Concurrent reads of a block being fetched wait for that request instead of sending theirs.
+ */
+public class BlockReader {
+
+    public static final int MAX_READ_AHEAD_BLOCKS = 32;
+    private static final int READ_AHEAD_THREADS = 2;
+
+    @FunctionalInterface
+    public interface RangeFetcher {
+        /**
+         * @return The bytes from..to (inclusive), fewer if the document ends before
+         */
+        byte[] fetch(String entryId, long from, long to) throws IOException, InterruptedException;
+    }
+
+    private final RangeFetcher rangeFetcher;
+    private final BlockCache blockCache;
+    private final ConcurrentMap<String, CompletableFuture<byte[]>> inFlight;
+    private final ConcurrentMap<String, ReadAhead> readAheads;
+    private final ExecutorService prefetcher;
+
+    public BlockReader(final RangeFetcher rangeFetcher, final BlockCache blockCache) {
+        this.rangeFetcher = rangeFetcher;
+        this.blockCache = blockCache;
+        this.inFlight = new ConcurrentHashMap<>();
+        this.readAheads = new ConcurrentHashMap<>();
+        this.prefetcher = Executors.newFixedThreadPool(READ_AHEAD_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "fuse-read-ahead");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return The block at this index, empty past the end of the document
+     */
+    public byte[] read(DocumentEntry documentEntry, long index) throws IOException, InterruptedException {
+        String entryId = documentEntry.getEntryId();
+        String revision = documentEntry.getFileRevisiion();
+        long blockCount = (documentEntry.getFileSize() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        if (index >= blockCount) return new byte[0];
+
+        long[] ahead = readAhead(entryId, revision, index, blockCount);
+        if (ahead != null) {
+            prefetcher.submit(() -> {
+                try {
+                    fetch(documentEntry, ahead[0], ahead[1]);
+                } catch (IOException | InterruptedException | RuntimeException ignored) {
+                    // Only a prefetch, the read will ask again
+                }
+            });
+        }
+
+        byte[] block = blockCache.get(entryId, revision, index);
+        if (block != null) return block;
+        return fetch(documentEntry, index, index + 1);
+    }
+
+    /**
+     * @return The blocks [from, until) to prefetch, null if the access is not sequential or they're already on their way
+     */
+    private long[] readAhead(String entryId, String revision, long index, long blockCount) {
+        ReadAhead state = readAheads.computeIfAbsent(entryId, id -> new ReadAhead());
+        synchronized (state) {
+            // FUSE reads are smaller than a block, reading the rest of the last one is still sequential
+            if (Objects.equals(state.revision, revision) && index == state.next - 1) return null;
+
+            if (!Objects.equals(state.revision, revision) || index != state.next) {
+                state.revision = revision;
+                state.window = 0;
+                state.next = index + 1;
+                state.prefetchedUntil = index + 1;
+                return null;
+            }
+
+            state.next = index + 1;
+            state.window = Math.min(Math.max(1, state.window * 2), MAX_READ_AHEAD_BLOCKS);
+            // Topped up in batches rather than one block per read, once less than half the window is left ahead
+            if (state.prefetchedUntil - (index + 1) > state.window / 2) return null;
+            long from = Math.max(state.prefetchedUntil, index + 1);
+            long until = Math.min(index + 1 + state.window, blockCount);
+            if (from >= until) return null;
+            state.prefetchedUntil = until;
+            return new long[]{from, until};
+        }
+    }
+
+    /**
+     * Downloads the blocks [from, until) in one request, stopping before the first one already cached or in flight.
+     * @return The block at from
+     */
+    private byte[] fetch(DocumentEntry documentEntry, long from, long until) throws IOException, InterruptedException {
+        String entryId = documentEntry.getEntryId();
+        String revision = documentEntry.getFileRevisiion();
+
+        List<CompletableFuture<byte[]>> claimed = new ArrayList<>();
+        for (long index = from; index < until; index++) {
+            if (index > from && blockCache.contains(entryId, revision, index)) break;
+            CompletableFuture<byte[]> claim = new CompletableFuture<>();
+            CompletableFuture<byte[]> existing = inFlight.putIfAbsent(key(entryId, revision, index), claim);
+            if (existing != null) {
+                if (index == from) return await(existing);
+                break;
+            }
+            if (index == from) {
+                // Fetched and released while we were getting here
+                byte[] cached = blockCache.get(entryId, revision, index);
+                if (cached != null) {
+                    inFlight.remove(key(entryId, revision, index));
+                    claim.complete(cached);
+                    return cached;
+                }
+            }
+            claimed.add(claim);
+        }
+
+        try {
+            long start = from * BLOCK_SIZE;
+            long end = Math.min((from + claimed.size()) * BLOCK_SIZE, documentEntry.getFileSize()) - 1;
+            byte[] content = rangeFetcher.fetch(entryId, start, end);
+
+            byte[] first = null;
+            for (int i = 0; i < claimed.size(); i++) {
+                int offset = Math.min(i * BLOCK_SIZE, content.length);
+                byte[] block = Arrays.copyOfRange(content, offset, Math.min(offset + BLOCK_SIZE, content.length));
+                if (i == 0) first = block;
+                // Cached before leaving the in-flight table, so that a reader always finds it in one or the other
+                blockCache.put(entryId, revision, from + i, block);
+                inFlight.remove(key(entryId, revision, from + i));
+                claimed.get(i).complete(block);
+            }
+            return first;
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            for (int i = 0; i < claimed.size(); i++) {
+                inFlight.remove(key(entryId, revision, from + i));
+                claimed.get(i).completeExceptionally(e);
+            }
+            throw e;
+        }
+    }
+
+    private static byte[] await(CompletableFuture<byte[]> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof InterruptedException) throw (InterruptedException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private static String key(String entryId, String revision, long index) {
+        return entryId + "/" + revision + "/" + index;
+    }
+
+    public void forget(String entryId) {
+        readAheads.remove(entryId);
+    }
+
+    public void close() {
+        prefetcher.shutdownNow();
+    }
+
+    private static class ReadAhead {
+        private String revision;
+        private long next = -1;
+        private int window;
+        private long prefetchedUntil;
+    }
+}
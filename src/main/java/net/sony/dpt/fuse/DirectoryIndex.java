@@ -0,0 +1,180 @@
+package net.sony.dpt.fuse;
+
+import net.sony.dpt.command.documents.DocumentEntry;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * The entries of the mount by local path, along with the names of the children of every folder:
+ * listing a folder costs its number of children, renaming or removing one costs its subtree, not the whole library.
+ *
+ * Changes to one folder are serialized by a lock picked from a fixed set by the folder path, so callbacks working
+ * in different folders don't wait for each other. Moving or removing a subtree takes the index for itself.
+ */
+public class DirectoryIndex {
+
+    private static final int STRIPES = 64;
+
+    private final ConcurrentMap<Path, DocumentEntry> entries;
+    private final ConcurrentMap<Path, Set<String>> children;
+    private final Object[] stripes;
+    // Read for changes to one entry, write for whole subtrees
+    private final ReadWriteLock structureLock;
+
+    public DirectoryIndex() {
+        entries = new ConcurrentHashMap<>();
+        children = new ConcurrentHashMap<>();
+        stripes = new Object[STRIPES];
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Object();
+        structureLock = new ReentrantReadWriteLock();
+    }
+
+    private Object stripe(Path folder) {
+        return stripes[(folder.hashCode() & Integer.MAX_VALUE) % STRIPES];
+    }
+
+    public DocumentEntry get(Path path) {
+        return entries.get(path);
+    }
+
+    public boolean contains(Path path) {
+        return entries.containsKey(path);
+    }
+
+    /**
+     * True if something is known to be in this folder, even if we have no entry for the folder itself
+     */
+    public boolean hasChildren(Path folder) {
+        Set<String> names = children.get(folder);
+        return names != null && !names.isEmpty();
+    }
+
+    public Set<String> children(Path folder) {
+        Set<String> names = children.get(folder);
+        return names == null ? Collections.emptySet() : new HashSet<>(names);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public Map<Path, DocumentEntry> snapshot() {
+        return new HashMap<>(entries);
+    }
+
+    public void put(Path path, DocumentEntry entry) {
+        structureLock.readLock().lock();
+        try {
+            putUnlocked(path, entry);
+        } finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    private void putUnlocked(Path path, DocumentEntry entry) {
+        Path parent = path.getParent();
+        if (parent == null) {
+            // The root, nobody lists it
+            entries.put(path, entry);
+            return;
+        }
+        synchronized (stripe(parent)) {
+            entries.put(path, entry);
+            children.computeIfAbsent(parent, folder -> ConcurrentHashMap.newKeySet()).add(path.getFileName().toString());
+        }
+        link(parent);
+    }
+
+    // The ancestors list their child even when we don't have their own entry
+    private void link(Path folder) {
+        for (Path parent = folder.getParent(); parent != null; folder = parent, parent = parent.getParent()) {
+            synchronized (stripe(parent)) {
+                if (!children.computeIfAbsent(parent, p -> ConcurrentHashMap.newKeySet()).add(folder.getFileName().toString())) return;
+            }
+        }
+    }
+
+    public DocumentEntry remove(Path path) {
+        structureLock.readLock().lock();
+        try {
+            return removeUnlocked(path);
+        } finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    private DocumentEntry removeUnlocked(Path path) {
+        Path parent = path.getParent();
+        if (parent == null) return entries.remove(path);
+        synchronized (stripe(parent)) {
+            DocumentEntry removed = entries.remove(path);
+            Set<String> names = children.get(parent);
+            if (names != null) names.remove(path.getFileName().toString());
+            return removed;
+        }
+    }
+
+    /**
+     * @return The paths under this folder, itself included, parents before their children
+     */
+    private List<Path> subtree(Path root) {
+        List<Path> subtree = new ArrayList<>();
+        Deque<Path> toVisit = new ArrayDeque<>();
+        toVisit.add(root);
+        while (!toVisit.isEmpty()) {
+            Path current = toVisit.poll();
+            subtree.add(current);
+            for (String name : children.getOrDefault(current, Collections.emptySet())) {
+                toVisit.add(current.resolve(name));
+            }
+        }
+        return subtree;
+    }
+
+    /**
+     * @return The entries removed, the folder's own included
+     */
+    public Map<Path, DocumentEntry> removeSubtree(Path folder) {
+        structureLock.writeLock().lock();
+        try {
+            Map<Path, DocumentEntry> removed = new HashMap<>();
+            for (Path path : subtree(folder)) {
+                DocumentEntry entry = removeUnlocked(path);
+                if (entry != null) removed.put(path, entry);
+                children.remove(path);
+            }
+            return removed;
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param moved Called with the new path of every entry moved, to update it
+     */
+    public void moveSubtree(Path from, Path to, BiConsumer<Path, DocumentEntry> moved) {
+        structureLock.writeLock().lock();
+        try {
+            for (Path path : subtree(from)) {
+                Path target = to.resolve(from.relativize(path));
+                DocumentEntry entry = removeUnlocked(path);
+                Set<String> names = children.remove(path);
+                if (names != null) children.put(target, names);
+                if (entry != null) {
+                    moved.accept(target, entry);
+                    putUnlocked(target, entry);
+                } else {
+                    link(target);
+                }
+            }
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+}
@@ -7,8 +7,8 @@ import net.sony.dpt.command.documents.DocumentEntry;
 import net.sony.dpt.command.documents.DocumentListResponse;
 import net.sony.dpt.command.documents.DocumentCommand;
 import net.sony.dpt.command.documents.EntryType;
+import net.sony.dpt.persistence.MountStore;
 import net.sony.util.LogWriter;
-import org.apache.commons.io.IOUtils;
 import ru.serce.jnrfuse.ErrorCodes;
 import ru.serce.jnrfuse.FuseFillDir;
 import ru.serce.jnrfuse.FuseStubFS;
@@ -17,13 +17,12 @@ import ru.serce.jnrfuse.struct.FuseFileInfo;
 import ru.serce.jnrfuse.struct.Timespec;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DptFuseMounter extends FuseStubFS {
 
@@ -32,30 +31,38 @@ public class DptFuseMounter extends FuseStubFS {
 
     private final DocumentCommand documentCommand;
     private final LogWriter logWriter;
-    // The DPT cannot handle too many request in parallel. We need to lock and wait
-    // for requests in this class.
-    private static final Object dptLock = new Object();
-
-    // This cache will help to read partial files TODO: definitely a good LRU use case !!
-    private final ConcurrentMap<String, byte[]> fileCache;
-    private final ConcurrentMap<String, byte[]> writeCache;
-    private final ConcurrentMap<Path, DocumentEntry> documentEntriesMap;
+    private final BlockCache blockCache;
+    private final MountStore mountStore;
+    // How many requests the DPT can take in parallel is handled by the LimitedHttpClient, shared by all commands
+    private final BlockReader blockReader;
+    private final ConcurrentMap<String, WriteBuffer> writeCache;
+    // Seeding a buffer downloads the whole document: only the writers of that path wait for it
+    private final ConcurrentMap<String, Object> seedLocks;
+    private final DirectoryIndex directoryIndex;
+    private final MountRefresher mountRefresher;
+    // Ctrl+C runs the shutdown hook while mount() returns into the finally: only the first one cleans up
+    private final AtomicBoolean unmounted;
 
     private static Path toRemote(Path localPath) {
         return REMOTE_ROOT.resolve(LOCAL_ROOT.relativize(localPath));
     }
 
-    private static Path toLocal(Path remotePath) {
+    static Path toLocal(Path remotePath) {
         return LOCAL_ROOT.resolve(REMOTE_ROOT.relativize(remotePath));
     }
 
-    public DptFuseMounter(final DocumentCommand documentCommand, final LogWriter logWriter) {
+    public DptFuseMounter(final DocumentCommand documentCommand, final BlockCache blockCache, final MountStore mountStore, final LogWriter logWriter) {
         this.documentCommand = documentCommand;
+        this.blockCache = blockCache;
+        this.mountStore = mountStore;
+        this.blockReader = new BlockReader(documentCommand::downloadRange, blockCache);
         this.logWriter = logWriter;
 
-        fileCache = new ConcurrentHashMap<>();
         writeCache = new ConcurrentHashMap<>();
-        documentEntriesMap = new ConcurrentHashMap<>();
+        seedLocks = new ConcurrentHashMap<>();
+        directoryIndex = new DirectoryIndex();
+        mountRefresher = new MountRefresher(documentCommand, directoryIndex, this::forget, logWriter, MountRefresher.DEFAULT_INTERVAL_MS);
+        unmounted = new AtomicBoolean();
     }
 
     private int getFolderAttr(FileStat stat) {
@@ -88,15 +95,15 @@ public class DptFuseMounter extends FuseStubFS {
     @Override
     public int getattr(String path, FileStat stat) {
         Path searchPath = Path.of(path);
-        if (!documentEntriesMap.containsKey(searchPath)) {
+        DocumentEntry found = directoryIndex.get(searchPath);
+        if (found == null) {
             // We could have either a directory or a completely wrong path
-            if (LOCAL_ROOT.equals(searchPath)) {
+            if (LOCAL_ROOT.equals(searchPath) || directoryIndex.hasChildren(searchPath)) {
                 return getFolderAttr(stat);
             }
             return -ErrorCodes.ENOENT();
         }
 
-        DocumentEntry found = documentEntriesMap.get(searchPath);
         switch (found.getEntryType()) {
             case FOLDER:
                 return getFolderAttr(stat);
@@ -115,30 +122,26 @@ public class DptFuseMounter extends FuseStubFS {
     public int mkdir(String path, long mode) {
         Path localPath = Path.of(path);
 
-        if (documentEntriesMap.containsKey(localPath)) return -ErrorCodes.EEXIST();
+        if (directoryIndex.contains(localPath)) return -ErrorCodes.EEXIST();
         try {
-            synchronized (dptLock) { documentCommand.createFolderRecursively(toRemote(localPath)); }
+            documentCommand.createFolderRecursively(toRemote(localPath));
         } catch (IOException | InterruptedException e) {
             return -ErrorCodes.EREMOTEIO();
         }
 
-        documentEntriesMap.put(localPath, new DocumentEntry(EntryType.FOLDER));
+        directoryIndex.put(localPath, new DocumentEntry(EntryType.FOLDER));
         return 0;
     }
 
     @Override
     public int rmdir(String path) {
         Path localPath = Path.of(path);
-        if (!documentEntriesMap.containsKey(localPath)) return -ErrorCodes.ENOENT();
+        if (!directoryIndex.contains(localPath)) return -ErrorCodes.ENOENT();
         try {
-            synchronized (dptLock) { documentCommand.deleteFolder(toRemote(localPath)); }
+            documentCommand.deleteFolder(toRemote(localPath));
         } catch (IOException | InterruptedException e) { return -ErrorCodes.EREMOTEIO(); }
 
-        Set<Path> toRemove = documentEntriesMap.keySet()
-                .stream()
-                .filter(candidate -> candidate.startsWith(localPath))
-                .collect(Collectors.toSet());
-        toRemove.forEach(documentEntriesMap::remove);
+        directoryIndex.removeSubtree(localPath).values().forEach(this::forget);
         return 0;
     }
 
@@ -149,48 +152,49 @@ public class DptFuseMounter extends FuseStubFS {
         Path old = Path.of(oldpath);
         Path newP = Path.of(newpath);
 
-        if (!documentEntriesMap.containsKey(old)) return -ErrorCodes.ENOENT();
+        if (!directoryIndex.contains(old)) return -ErrorCodes.ENOENT();
         String parentId;
         try {
-            synchronized (dptLock) { parentId = documentCommand.move(toRemote(old), toRemote(newP)); }
+            parentId = documentCommand.move(toRemote(old), toRemote(newP));
         } catch (IOException | InterruptedException e) {
             return -ErrorCodes.EREMOTEIO();
         }
 
-        DocumentEntry documentEntry = documentEntriesMap.remove(old);
-        documentEntry.setEntryPath(toRemote(newP).toString());
-        documentEntry.setParentFolderId(parentId);
-        documentEntriesMap.put(newP, documentEntry);
-        if (documentEntry.getEntryType() == EntryType.FOLDER) {
-            Set<Path> pathesToChange = documentEntriesMap.keySet()
-                    .stream()
-                    .filter(path -> path.getParent().equals(old))
-                    .collect(Collectors.toSet());
-
-            for (Path pathToChange : pathesToChange) {
-                Path changed = newP.resolve(old.relativize(pathToChange));
-                DocumentEntry entryToChange = documentEntriesMap.remove(pathToChange);
-                entryToChange.setEntryPath(toRemote(changed).toString());
-                entryToChange.setParentFolderId(parentId);
-                documentEntriesMap.put(changed, entryToChange);
-            }
-        }
+        // Only the moved entry changes parent, everything below it keeps its own
+        directoryIndex.moveSubtree(old, newP, (changed, entryToChange) -> {
+            entryToChange.setEntryPath(toRemote(changed).toString());
+            if (changed.equals(newP)) entryToChange.setParentFolderId(parentId);
+        });
         return 0;
     }
 
     @Override
     public int unlink(String path) {
         Path localPath = Path.of(path);
-        if (!documentEntriesMap.containsKey(localPath)) return -ErrorCodes.ENOENT();
+        if (!directoryIndex.contains(localPath)) return -ErrorCodes.ENOENT();
 
         try {
-            synchronized (dptLock) { documentCommand.delete(toRemote(localPath)); }
+            documentCommand.delete(toRemote(localPath));
         } catch (IOException | InterruptedException e) { return -ErrorCodes.EREMOTEIO(); }
-        documentEntriesMap.remove(localPath);
-        fileCache.remove(path);
+        WriteBuffer abandoned = writeCache.remove(path);
+        seedLocks.remove(path);
+        if (abandoned != null) {
+            try {
+                abandoned.close();
+            } catch (IOException ignored) {
+            }
+        }
+        DocumentEntry removed = directoryIndex.remove(localPath);
+        if (removed != null) forget(removed);
         return 0;
     }
 
+    private void forget(DocumentEntry removed) {
+        if (removed.getEntryId() == null || removed.getEntryType() != EntryType.DOCUMENT) return;
+        blockReader.forget(removed.getEntryId());
+        blockCache.invalidate(removed.getEntryId());
+    }
+
     @Override
     public int flush(String path, FuseFileInfo fi) {
         return 0;
@@ -198,16 +202,19 @@ public class DptFuseMounter extends FuseStubFS {
 
     @Override
     public int release(String path, FuseFileInfo fi) {
-        if (writeCache.containsKey(path)) {
-            if (writeCache.get(path).length == 0) return 0;
+        WriteBuffer writeBuffer = writeCache.remove(path);
+        if (writeBuffer == null) return 0;
+        seedLocks.remove(path);
+        try (writeBuffer) {
+            if (writeBuffer.size() == 0) return 0;
             Path localPath = Path.of(path);
-            try {
-                String documentId;
-                synchronized (dptLock) { documentId = documentCommand.upload(writeCache.remove(path), toRemote(localPath)); }
-                synchronized (dptLock) { documentEntriesMap.put(localPath, documentCommand.documentInfo(documentId)); }
-            } catch (IOException | InterruptedException e) {
-                return -ErrorCodes.EREMOTEIO();
-            }
+            DocumentEntry replaced = directoryIndex.get(localPath);
+            String documentId = documentCommand.upload(writeBuffer::openStream, writeBuffer.size(), toRemote(localPath));
+            directoryIndex.put(localPath, documentCommand.documentInfo(documentId));
+            // The upload replaced the document, the blocks of the old one will never be read again
+            if (replaced != null) forget(replaced);
+        } catch (IOException | InterruptedException e) {
+            return -ErrorCodes.EREMOTEIO();
         }
         return 0;
     }
@@ -215,75 +222,113 @@ public class DptFuseMounter extends FuseStubFS {
     @Override
     public int create(String path, long mode, FuseFileInfo fi) {
         Path localPath = Path.of(path);
-        if (documentEntriesMap.containsKey(localPath)) return -ErrorCodes.EEXIST();
+        if (directoryIndex.contains(localPath)) return -ErrorCodes.EEXIST();
 
         Path remotePath = toRemote(localPath);
         DocumentEntry documentEntry;
         try {
-            synchronized (dptLock) { documentEntry = documentCommand.documentInfo(documentCommand.create(remotePath)); }
+            documentEntry = documentCommand.documentInfo(documentCommand.create(remotePath));
         } catch (IOException | InterruptedException e) {
             return -ErrorCodes.EREMOTEIO();
         }
 
-        documentEntriesMap.put(localPath, documentEntry);
-        fileCache.put(path, new byte[0]);
-        writeCache.put(path, new byte[0]);
+        directoryIndex.put(localPath, documentEntry);
+        writeCache.put(path, new WriteBuffer());
         return 0;
     }
 
     @Override
     public int write(String path, Pointer buf, long size, long offset, FuseFileInfo fi) {
-
-        byte[] content = writeCache.get(path);
-        if (content.length < offset + size) {
-            byte[] resized = new byte[(int) (offset + size)];
-            System.arraycopy(content, 0, resized, 0, content.length);
-            content = resized;
-            writeCache.put(path, content);
+        WriteBuffer writeBuffer;
+        try {
+            writeBuffer = bufferFor(path);
+            writeBuffer.write(offset, (int) size, (from, target, targetOffset, length) -> buf.get(from, target, targetOffset, length));
+        } catch (InterruptedException e) {
+            return -ErrorCodes.EREMOTEIO();
+        } catch (IOException e) {
+            return -ErrorCodes.EIO();
         }
-        buf.get(0, content, (int) offset, (int) size);
 
-        documentEntriesMap.computeIfPresent(Path.of(path), (key, documentEntry) -> {
-            documentEntry.setFileSize(documentEntry.getFileSize() + size);
-            return documentEntry;
-        });
-        fileCache.put(path, content);
+        DocumentEntry documentEntry = directoryIndex.get(Path.of(path));
+        if (documentEntry != null) documentEntry.setFileSize(writeBuffer.size());
 
         return (int) size;
     }
 
-    private int readFromCache(String path, Pointer buf, @size_t long size, @off_t long offset) {
-        byte[] content = fileCache.get(path);
-        int length = content.length;
-        if (offset < length) {
-            if (offset + size > length) {
-                size = length - offset;
+    /**
+     * The buffer of a file being written. For an existing document it starts with the current content:
+     * a write in the middle of the file only changes those bytes.
+     * Only a document just created or truncated to 0 starts empty.
+     */
+    private WriteBuffer bufferFor(String path) throws IOException, InterruptedException {
+        WriteBuffer writeBuffer = writeCache.get(path);
+        if (writeBuffer != null) return writeBuffer;
+
+        synchronized (seedLocks.computeIfAbsent(path, p -> new Object())) {
+            writeBuffer = writeCache.get(path);
+            if (writeBuffer != null) return writeBuffer;
+
+            WriteBuffer seeded = new WriteBuffer();
+            DocumentEntry documentEntry = directoryIndex.get(Path.of(path));
+            try {
+                if (documentEntry != null && documentEntry.getEntryId() != null) seed(seeded, documentEntry);
+            } catch (IOException | InterruptedException e) {
+                seeded.close();
+                throw e;
             }
-            buf.put(0, content, (int) offset, (int) size);
-        } else {
-            size = 0;
+            writeBuffer = writeCache.putIfAbsent(path, seeded);
+            if (writeBuffer == null) return seeded;
+            // Truncated to 0 while we were downloading, what we got is not the content anymore
+            seeded.close();
+            return writeBuffer;
+        }
+    }
+
+    private void seed(WriteBuffer writeBuffer, DocumentEntry documentEntry) throws IOException, InterruptedException {
+        for (long index = 0; ; index++) {
+            byte[] block = blockReader.read(documentEntry, index);
+            if (block.length == 0) return;
+            writeBuffer.write(index * BlockCache.BLOCK_SIZE, block.length,
+                    (from, target, targetOffset, length) -> System.arraycopy(block, (int) from, target, targetOffset, length));
+        }
+    }
+
+    // A file being written is read back from what was written so far
+    private int readFromWriteCache(WriteBuffer writeBuffer, Pointer buf, @size_t long size, @off_t long offset) {
+        byte[] content = new byte[(int) size];
+        try {
+            int read = writeBuffer.read(offset, content, content.length);
+            buf.put(0, content, 0, read);
+            return read;
+        } catch (IOException e) {
+            return -ErrorCodes.EIO();
         }
-        return (int) size;
     }
 
     @Override
     public int read(String path, Pointer buf, @size_t long size, @off_t long offset, FuseFileInfo fi) {
-        Path localPath = Path.of(path);
-        if (!documentEntriesMap.containsKey(localPath)) return -ErrorCodes.ENOENT();
+        WriteBuffer written = writeCache.get(path);
+        if (written != null) return readFromWriteCache(written, buf, size, offset);
 
-        DocumentEntry documentEntry = documentEntriesMap.get(localPath);
-        Path remotePath = Path.of(documentEntry.getEntryPath());
+        Path localPath = Path.of(path);
+        DocumentEntry documentEntry = directoryIndex.get(localPath);
+        if (documentEntry == null) return -ErrorCodes.ENOENT();
 
-        if (!fileCache.containsKey(path)) {
-            synchronized (dptLock) {
-                try (InputStream stream = documentCommand.download(remotePath)) {
-                    byte[] content = IOUtils.toByteArray(stream);
-                    fileCache.put(path, content);
-                } catch (Exception ignored) { return -ErrorCodes.EREMOTEIO(); }
+        int read = 0;
+        try {
+            while (read < size) {
+                long position = offset + read;
+                byte[] block = blockReader.read(documentEntry, position / BlockCache.BLOCK_SIZE);
+                int inBlock = (int) (position % BlockCache.BLOCK_SIZE);
+                if (inBlock >= block.length) break;
+                int length = (int) Math.min(size - read, block.length - inBlock);
+                buf.put(read, block, inBlock, length);
+                read += length;
             }
+        } catch (IOException | InterruptedException e) {
+            return -ErrorCodes.EREMOTEIO();
         }
-
-        return readFromCache(path, buf, size, offset);
+        return read;
     }
 
     @Override
@@ -291,43 +336,68 @@ public class DptFuseMounter extends FuseStubFS {
         filter.apply(buf, ".", null, 0);
         filter.apply(buf, "..", null, 0);
 
-        Set<String> content = findFolderChildren(Path.of(path), documentEntriesMap);
-        content.forEach(element -> filter.apply(buf, element, null, 0));
+        Path folder = Path.of(path);
+        mountRefresher.listed(folder);
+        directoryIndex.children(folder).forEach(element -> filter.apply(buf, element, null, 0));
         return 0;
     }
 
-    public Set<String> findFolderChildren(Path folder, Map<Path, DocumentEntry> documentEntriesMap) {
-        Set<String> content = new HashSet<>();
-        for (Path candidate : documentEntriesMap.keySet()) {
-            if (candidate.startsWith(folder) && !candidate.equals(folder)) {
-                content.add(folder.relativize(candidate).getName(0).toString());
-            }
-        }
-        return content;
-    }
-
     public void mountDpt(Path mountPoint) throws IOException, InterruptedException {
         logWriter.log("Mounting the Digital Paper on " + mountPoint);
         Files.createDirectories(mountPoint);
-        DocumentListResponse documentListResponse;
-        synchronized (dptLock) { documentListResponse = documentCommand.listDocuments(EntryType.ALL); }
-        for (DocumentEntry entry : documentListResponse.getEntryList()) {
+
+        // We serve the tree of the last mount right away, and check it against the device in the background
+        List<DocumentEntry> entries = mountStore.retrieveSnapshot();
+        boolean warm = !entries.isEmpty();
+        if (!warm) {
+            DocumentListResponse documentListResponse = documentCommand.listDocuments(EntryType.ALL);
+            entries = documentListResponse.getEntryList();
+        }
+        for (DocumentEntry entry : entries) {
             Path path = toLocal(Path.of(entry.getEntryPath()));
-            documentEntriesMap.put(path, entry);
+            directoryIndex.put(path, entry);
         }
         try {
+            mountRefresher.start(warm);
+            if (warm) logWriter.log("Loaded " + entries.size() + " entries from the last mount, checking them against the device");
             logWriter.log("Mounted the Digital Paper on " + mountPoint + ", type Ctrl+C to unmount");
 
-            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-                umount();
-                logWriter.log("Digital Paper unmounted from " + mountPoint);
-            }));
-
-            mount(mountPoint, true, false);
+            Thread shutdownHook = new Thread(() -> unmountDpt(mountPoint));
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+            try {
+                mount(mountPoint, true, false);
+            } finally {
+                try {
+                    Runtime.getRuntime().removeShutdownHook(shutdownHook);
+                } catch (IllegalStateException e) {
+                    // The JVM is shutting down, the hook is already running
+                }
+            }
         }
         finally {
-            umount();
-            logWriter.log("Digital Paper unmounted from " + mountPoint);
+            unmountDpt(mountPoint);
+        }
+    }
+
+    private void unmountDpt(Path mountPoint) {
+        if (!unmounted.compareAndSet(false, true)) return;
+        mountRefresher.stop();
+        blockReader.close();
+        saveSnapshot();
+        umount();
+        logWriter.log("Digital Paper unmounted from " + mountPoint);
+    }
+
+    private void saveSnapshot() {
+        List<DocumentEntry> entries = new ArrayList<>();
+        for (DocumentEntry entry : directoryIndex.snapshot().values()) {
+            // Not confirmed by the device yet, the next listing will bring them
+            if (entry.getEntryId() != null && entry.getEntryPath() != null) entries.add(entry);
+        }
+        try {
+            mountStore.storeSnapshot(entries);
+        } catch (IOException e) {
+            logWriter.log("Could not save the mount snapshot, the next mount will list everything again: " + e.getMessage());
         }
     }
 
@@ -338,7 +408,37 @@ public class DptFuseMounter extends FuseStubFS {
     public int chown(String path, long uid, long gid) { return 0; }
 
     @Override
-    public int truncate(String path, long size) { return 0; }
+    public int truncate(String path, @off_t long size) {
+        Path localPath = Path.of(path);
+        DocumentEntry documentEntry = directoryIndex.get(localPath);
+        if (documentEntry == null) return -ErrorCodes.ENOENT();
+        if (documentEntry.getEntryType() == EntryType.FOLDER) return -ErrorCodes.EISDIR();
+
+        try {
+            WriteBuffer writeBuffer;
+            if (size == 0) {
+                // Emptied, like cp does before writing: nothing to keep from the device
+                writeBuffer = new WriteBuffer();
+                WriteBuffer previous = writeCache.put(path, writeBuffer);
+                if (previous != null) previous.close();
+            } else {
+                writeBuffer = bufferFor(path);
+            }
+            writeBuffer.truncate(size);
+        } catch (InterruptedException e) {
+            return -ErrorCodes.EREMOTEIO();
+        } catch (IOException e) {
+            return -ErrorCodes.EIO();
+        }
+        // Uploaded on release
+        documentEntry.setFileSize(size);
+        return 0;
+    }
+
+    @Override
+    public int ftruncate(String path, @off_t long size, FuseFileInfo fi) {
+        return truncate(path, size);
+    }
 
     @Override
     public int utimens(String path, Timespec[] timespec) { return 0; }
@@ -0,0 +1,217 @@
+package net.sony.dpt.fuse;
+
+import net.sony.dpt.command.documents.DocumentCommand;
+import net.sony.dpt.command.documents.DocumentEntry;
+import net.sony.dpt.command.documents.DocumentListResponse;
+import net.sony.dpt.command.documents.EntryType;
+import net.sony.util.LogWriter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Brings the changes made on the device into the mount, without listing the whole library again.
+ *
+ * Every few seconds, we list the folders browsed recently, plus the next few others in turn, with entries2.
+ * A folder whose entry_list_hash didn't change is skipped, otherwise its entries are compared by entry id and
+ * file_revision: the changed documents are replaced in the index, and their cached blocks dropped.
+ *
+ * After a warm start from the snapshot of the last mount, the whole tree is revalidated first, in one listing.
+ */
+public class MountRefresher {
+
+    public static final long DEFAULT_INTERVAL_MS = 5000;
+    // A folder listed by the user within this time is refreshed on every cycle
+    private static final long HOT_FOLDER_MS = 60_000;
+    // How many other folders we look at on every cycle
+    private static final int COLD_FOLDERS_PER_CYCLE = 10;
+
+    private final DocumentCommand documentCommand;
+    private final DirectoryIndex directoryIndex;
+    private final Consumer<DocumentEntry> forget;
+    private final LogWriter logWriter;
+    private final long intervalMs;
+
+    private final ConcurrentMap<Path, Long> hotFolders;
+    private final Map<String, String> listingHashes;
+    private final Deque<Path> coldFolders;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param forget Called with every document entry replaced or removed
+     */
+    public MountRefresher(final DocumentCommand documentCommand,
+                          final DirectoryIndex directoryIndex,
+                          final Consumer<DocumentEntry> forget,
+                          final LogWriter logWriter,
+                          final long intervalMs) {
+        this.documentCommand = documentCommand;
+        this.directoryIndex = directoryIndex;
+        this.forget = forget;
+        this.logWriter = logWriter;
+        this.intervalMs = intervalMs;
+        this.hotFolders = new ConcurrentHashMap<>();
+        this.listingHashes = new HashMap<>();
+        this.coldFolders = new ArrayDeque<>();
+    }
+
+    /**
+     * Someone is looking at this folder, its changes should show up quickly
+     */
+    public void listed(Path localFolder) {
+        hotFolders.put(localFolder, System.currentTimeMillis());
+    }
+
+    /**
+     * @param revalidate True if the index was loaded from a snapshot and may be stale
+     */
+    public void start(boolean revalidate) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fuse-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (revalidate) scheduler.execute(this::revalidateQuietly);
+        scheduler.scheduleWithFixedDelay(this::refresh, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (scheduler != null) scheduler.shutdownNow();
+    }
+
+    void refresh() {
+        try {
+            for (Path folder : foldersToRefresh()) {
+                refreshFolder(folder);
+            }
+        } catch (IOException e) {
+            // The device went to sleep or out of reach, we'll try again on the next cycle
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            logWriter.log("Could not refresh the mount: " + e.getMessage());
+        }
+    }
+
+    private void revalidateQuietly() {
+        try {
+            int changes = revalidate();
+            logWriter.log("Checked the mount against the device, " + changes + " changes since the last mount");
+        } catch (IOException e) {
+            logWriter.log("Could not check the mount against the device, the folders will be refreshed one by one: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            logWriter.log("Could not check the mount against the device: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Replaces the whole index with a full listing from the device
+     *
+     * @return How many entries were added, changed or removed
+     */
+    int revalidate() throws IOException, InterruptedException {
+        Map<Path, DocumentEntry> remoteEntries = new HashMap<>();
+        for (DocumentEntry remote : documentCommand.listDocuments(EntryType.ALL).getEntryList()) {
+            remoteEntries.put(DptFuseMounter.toLocal(Path.of(remote.getEntryPath())), remote);
+        }
+
+        int changes = 0;
+        for (Map.Entry<Path, DocumentEntry> remote : remoteEntries.entrySet()) {
+            DocumentEntry known = directoryIndex.get(remote.getKey());
+            if (known == null) {
+                changes++;
+            } else if (!Objects.equals(known.getEntryId(), remote.getValue().getEntryId())
+                    || (remote.getValue().getEntryType() == EntryType.DOCUMENT && !Objects.equals(known.getFileRevisiion(), remote.getValue().getFileRevisiion()))) {
+                forget.accept(known);
+                changes++;
+            }
+            // Even unchanged, the fresh entry replaces the one from the snapshot
+            directoryIndex.put(remote.getKey(), remote.getValue());
+        }
+
+        // Sorted, a removed folder comes before what it contained
+        for (Map.Entry<Path, DocumentEntry> known : new TreeMap<>(directoryIndex.snapshot()).entrySet()) {
+            Path path = known.getKey();
+            // The root, and what was created through the mount while we were listing
+            if (path.getParent() == null || known.getValue().getEntryId() == null || remoteEntries.containsKey(path)) continue;
+            if (!directoryIndex.contains(path)) continue;
+            if (known.getValue().getEntryType() == EntryType.DOCUMENT) {
+                directoryIndex.remove(path);
+                forget.accept(known.getValue());
+            } else {
+                directoryIndex.removeSubtree(path).values().forEach(forget);
+            }
+            changes++;
+        }
+
+        listingHashes.clear();
+        return changes;
+    }
+
+    private Set<Path> foldersToRefresh() {
+        long now = System.currentTimeMillis();
+        hotFolders.values().removeIf(listedAt -> now - listedAt > HOT_FOLDER_MS);
+        Set<Path> folders = new LinkedHashSet<>(hotFolders.keySet());
+
+        if (coldFolders.isEmpty()) {
+            coldFolders.addAll(directoryIndex.snapshot().entrySet().stream()
+                    .filter(entry -> entry.getValue().getEntryType() == EntryType.FOLDER)
+                    .map(Map.Entry::getKey)
+                    .sorted()
+                    .collect(Collectors.toList()));
+        }
+        for (int i = 0; i < COLD_FOLDERS_PER_CYCLE && !coldFolders.isEmpty(); i++) {
+            folders.add(coldFolders.poll());
+        }
+        return folders;
+    }
+
+    void refreshFolder(Path localFolder) throws IOException, InterruptedException {
+        DocumentEntry folder = directoryIndex.get(localFolder);
+        // Created by us and not seen on the device yet, or gone
+        if (folder == null || folder.getEntryId() == null || folder.getEntryType() != EntryType.FOLDER) return;
+
+        DocumentListResponse listing = documentCommand.listContent(folder.getEntryId());
+        String hash = listing.getEntryListHash();
+        if (hash != null && hash.equals(listingHashes.get(folder.getEntryId()))) return;
+
+        Set<String> remoteNames = new HashSet<>();
+        for (DocumentEntry remote : listing.getEntryList()) {
+            Path localPath = DptFuseMounter.toLocal(Path.of(remote.getEntryPath()));
+            remoteNames.add(localPath.getFileName().toString());
+
+            DocumentEntry known = directoryIndex.get(localPath);
+            if (known == null) {
+                directoryIndex.put(localPath, remote);
+            } else if (!Objects.equals(known.getEntryId(), remote.getEntryId())
+                    || (remote.getEntryType() == EntryType.DOCUMENT && !Objects.equals(known.getFileRevisiion(), remote.getFileRevisiion()))) {
+                forget.accept(known);
+                directoryIndex.put(localPath, remote);
+            }
+        }
+
+        for (String name : directoryIndex.children(localFolder)) {
+            if (remoteNames.contains(name)) continue;
+            Path gone = localFolder.resolve(name);
+            DocumentEntry known = directoryIndex.get(gone);
+            if (known != null && known.getEntryType() == EntryType.DOCUMENT) {
+                directoryIndex.remove(gone);
+                forget.accept(known);
+            } else {
+                directoryIndex.removeSubtree(gone).values().forEach(forget);
+            }
+        }
+
+        if (hash != null) listingHashes.put(folder.getEntryId(), hash);
+    }
+}
@@ -0,0 +1,205 @@
+package net.sony.dpt.fuse;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * What was written to a file of the mount, until it's released and uploaded.
+ *
+ * Kept in fixed size chunks added as the file grows, so a write never copies what was written before.
+ * Past the spill threshold everything moves to a temporary file: copying a large document to the mount
+ * doesn't hold it in memory.
+ */
+public class WriteBuffer implements Closeable {
+
+    public static final int CHUNK_SIZE = 1024 * 1024;
+    public static final long DEFAULT_SPILL_THRESHOLD = 16L * 1024 * 1024;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Where the written bytes come from, e.g. the FUSE buffer
+     */
+    @FunctionalInterface
+    public interface Source {
+        void copy(long sourceOffset, byte[] target, int targetOffset, int length);
+    }
+
+    private final long spillThreshold;
+    private final List<byte[]> chunks;
+    private Path spillFile;
+    private FileChannel channel;
+    private long size;
+
+    public WriteBuffer() {
+        this(DEFAULT_SPILL_THRESHOLD);
+    }
+
+    public WriteBuffer(final long spillThreshold) {
+        this.spillThreshold = spillThreshold;
+        this.chunks = new ArrayList<>();
+    }
+
+    public synchronized void write(long offset, int length, Source source) throws IOException {
+        if (channel == null && offset + length > spillThreshold) spill();
+
+        if (channel != null) {
+            byte[] copy = new byte[Math.min(length, COPY_BUFFER_SIZE)];
+            for (int done = 0; done < length; ) {
+                int part = Math.min(copy.length, length - done);
+                source.copy(done, copy, 0, part);
+                ByteBuffer byteBuffer = ByteBuffer.wrap(copy, 0, part);
+                while (byteBuffer.hasRemaining()) {
+                    channel.write(byteBuffer, offset + done + byteBuffer.position());
+                }
+                done += part;
+            }
+        } else {
+            for (int done = 0; done < length; ) {
+                long position = offset + done;
+                int inChunk = (int) (position % CHUNK_SIZE);
+                int part = Math.min(length - done, CHUNK_SIZE - inChunk);
+                byte[] chunk = chunk((int) (position / CHUNK_SIZE), inChunk + part);
+                source.copy(done, chunk, inChunk, part);
+                done += part;
+            }
+        }
+        size = Math.max(size, offset + length);
+    }
+
+    /**
+     * The chunks before are full size, the last one grows by doubling up to the chunk size: a small file stays small
+     */
+    private byte[] chunk(int index, int minimumLength) {
+        while (chunks.size() <= index) {
+            if (!chunks.isEmpty()) {
+                int last = chunks.size() - 1;
+                chunks.set(last, Arrays.copyOf(chunks.get(last), CHUNK_SIZE));
+            }
+            chunks.add(new byte[0]);
+        }
+        byte[] chunk = chunks.get(index);
+        if (chunk.length < minimumLength) {
+            int grown = Math.max(chunk.length, 4096);
+            while (grown < minimumLength) grown *= 2;
+            chunk = Arrays.copyOf(chunk, Math.min(grown, CHUNK_SIZE));
+            chunks.set(index, chunk);
+        }
+        return chunk;
+    }
+
+    private void spill() throws IOException {
+        spillFile = Files.createTempFile("dpt-fuse-", ".write");
+        channel = FileChannel.open(spillFile, READ, WRITE);
+        long position = 0;
+        for (byte[] chunk : chunks) {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(chunk, 0, (int) Math.min(chunk.length, size - position));
+            while (byteBuffer.hasRemaining()) channel.write(byteBuffer, position + byteBuffer.position());
+            position += CHUNK_SIZE;
+        }
+        chunks.clear();
+    }
+
+    /**
+     * @return How many bytes were read, 0 past the end
+     */
+    public synchronized int read(long offset, byte[] target, int length) throws IOException {
+        if (offset >= size) return 0;
+        length = (int) Math.min(length, size - offset);
+
+        if (channel != null) {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(target, 0, length);
+            while (byteBuffer.hasRemaining()) {
+                if (channel.read(byteBuffer, offset + byteBuffer.position()) < 0) break;
+            }
+            return byteBuffer.position();
+        }
+
+        for (int done = 0; done < length; ) {
+            long position = offset + done;
+            int inChunk = (int) (position % CHUNK_SIZE);
+            int part = Math.min(length - done, CHUNK_SIZE - inChunk);
+            byte[] chunk = chunks.get((int) (position / CHUNK_SIZE));
+            // Holes left by writes past the end read as zeroes
+            int available = Math.max(0, Math.min(part, chunk.length - inChunk));
+            System.arraycopy(chunk, inChunk, target, done, available);
+            Arrays.fill(target, done + available, done + part, (byte) 0);
+            done += part;
+        }
+        return length;
+    }
+
+    /**
+     * Cuts the content to this size, or grows it with zeroes
+     */
+    public synchronized void truncate(long newSize) throws IOException {
+        if (channel == null && newSize > spillThreshold) spill();
+
+        if (channel != null) {
+            if (newSize < size) {
+                channel.truncate(newSize);
+            } else if (newSize > size) {
+                // A write at the new end, the file reads as zeroes up to it
+                channel.write(ByteBuffer.wrap(new byte[1]), newSize - 1);
+            }
+        } else if (newSize < size) {
+            int keep = (int) ((newSize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            while (chunks.size() > keep) chunks.remove(chunks.size() - 1);
+            if (keep > 0) {
+                // What was written past the new end must not come back if the file grows again
+                byte[] last = chunks.get(keep - 1);
+                int inChunk = (int) (newSize - (long) (keep - 1) * CHUNK_SIZE);
+                if (inChunk < last.length) Arrays.fill(last, inChunk, last.length, (byte) 0);
+            }
+        } else if (newSize > size) {
+            long last = newSize - 1;
+            chunk((int) (last / CHUNK_SIZE), (int) (last % CHUNK_SIZE) + 1);
+        }
+        size = newSize;
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * The whole content, read from the chunks or the temporary file as it's sent: it's never assembled in memory
+     */
+    public synchronized InputStream openStream() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+            return Files.newInputStream(spillFile);
+        }
+        List<InputStream> parts = new ArrayList<>();
+        long position = 0;
+        for (byte[] chunk : chunks) {
+            int length = (int) Math.min(CHUNK_SIZE, size - position);
+            parts.add(new ByteArrayInputStream(chunk.length >= length ? chunk : Arrays.copyOf(chunk, length), 0, length));
+            position += length;
+        }
+        return new SequenceInputStream(Collections.enumeration(parts));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        chunks.clear();
+        if (channel != null) {
+            channel.close();
+            Files.deleteIfExists(spillFile);
+            channel = null;
+        }
+    }
+}
@@ -11,14 +11,12 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public abstract class AbstractHttpClient implements SimpleHttpClient {
 
-    protected static Map<String, String> defaultHeaders;
-
-    public AbstractHttpClient() {
-        defaultHeaders = new HashMap<>();
-    }
+    // Read by every request built, on the transfer threads, while the authentication may update the cookie
+    protected final Map<String, String> defaultHeaders = new ConcurrentHashMap<>();
 
     @Override
     public String get(String url) throws IOException, InterruptedException {
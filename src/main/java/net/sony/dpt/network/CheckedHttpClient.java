@@ -10,6 +10,7 @@ import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
+import static net.sony.util.HttpUtils.RANGE_NOT_SATISFIABLE;
 import static net.sony.util.HttpUtils.ok;
 import static net.sony.util.JsonUtils.fromJSON;
 
@@ -51,6 +52,14 @@ public class CheckedHttpClient extends AbstractHttpClient implements SimpleHttpC
         return checkStream(response);
     }
 
+    @Override
+    public HttpResponse<InputStream> getFileRangeWithResponse(String url, long from, long to) throws IOException, InterruptedException {
+        HttpResponse<InputStream> response = uncheckedHttpClient.getFileRangeWithResponse(url, from, to);
+        // A range past the end is an answer for the caller, not an error
+        if (response.statusCode() == RANGE_NOT_SATISFIABLE) return response;
+        return checkStream(response);
+    }
+
     @Override
     public HttpResponse<String> putMultipartWithResponse(String url, MimeMultipartData mimeMultipartData) throws IOException, InterruptedException {
         HttpResponse<String> response = uncheckedHttpClient.putMultipartWithResponse(url, mimeMultipartData);
@@ -74,7 +83,6 @@ public class CheckedHttpClient extends AbstractHttpClient implements SimpleHttpC
 
     @Override
     public void addDefaultHeader(String header, String value) {
-        super.addDefaultHeader(header, value);
         uncheckedHttpClient.addDefaultHeader(header, value);
     }
 
@@ -0,0 +1,95 @@
+package net.sony.dpt.network;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides how many requests may be sent to the device at the same time.
+ *
+ * The DPT falls over when flooded, but a single request at a time leaves most of its time idle, so the limit is
+ * learnt with AIMD: it grows by one per window of requests answered in a normal time, shrinks a little when
+ * latency climbs above what we observed unloaded, and is halved on overload (timeouts, resets, 5xx).
+ *
+ * The unloaded latency is tracked per route: a screenshot is always slower than a resolve, it does not mean
+ * the device is congested.
+ */
+public class ConcurrencyLimiter {
+
+    public static final int DEFAULT_INITIAL_LIMIT = 2;
+    public static final int DEFAULT_MAX_LIMIT = 8;
+
+    // Latency above this multiple of the unloaded one means requests are queuing on the device
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double LATENCY_BACKOFF = 0.9;
+    private static final double OVERLOAD_BACKOFF = 0.5;
+    // The unloaded latency slowly drifts up, so one lucky fast answer does not pin it forever
+    private static final double BASELINE_DRIFT = 1.01;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final Map<String, Double> baselineNanos;
+
+    private double limit;
+    private int inFlight;
+
+    public ConcurrencyLimiter() {
+        this(DEFAULT_INITIAL_LIMIT, 1, DEFAULT_MAX_LIMIT);
+    }
+
+    public ConcurrencyLimiter(final int initialLimit, final int minLimit, final int maxLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        baselineNanos = new HashMap<>();
+    }
+
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * To be called before releasing the permit of the request
+     *
+     * @param route   Requests of the same kind, to compare their latencies
+     * @param latency In nanoseconds, negative if not meaningful (e.g. it includes an upload)
+     */
+    public synchronized void onSuccess(String route, long latency) {
+        if (latency >= 0) {
+            double baseline = Math.min(latency, baselineNanos.getOrDefault(route, (double) latency) * BASELINE_DRIFT);
+            baselineNanos.put(route, baseline);
+            if (latency > LATENCY_TOLERANCE * baseline) {
+                setLimit(limit * LATENCY_BACKOFF);
+                return;
+            }
+        }
+        // Only grow if we are actually using what we have, this request still counts as in flight
+        if (inFlight >= (int) limit) {
+            setLimit(limit + 1 / limit);
+        }
+    }
+
+    public synchronized void onOverload() {
+        setLimit(limit * OVERLOAD_BACKOFF);
+    }
+
+    private void setLimit(double newLimit) {
+        limit = Math.min(maxLimit, Math.max(minLimit, newLimit));
+        notifyAll();
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+}
@@ -1,26 +1,43 @@
 package net.sony.dpt.network;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import net.sony.dpt.command.authenticate.AuthenticationCookie;
 import net.sony.dpt.command.documents.EntryType;
 import net.sony.dpt.command.firmware.FirmwareVersionResponse;
 import net.sony.dpt.command.wifi.AccessPoint;
 import net.sony.dpt.command.wifi.AccessPointCreationRequest;
 import net.sony.dpt.error.SonyException;
+import net.sony.util.MimeMultipartData;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.text.StringSubstitutor;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpCookie;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
 import java.net.http.HttpResponse;
 import java.net.http.HttpTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+import static java.nio.file.StandardOpenOption.*;
+import static net.sony.util.HttpUtils.PARTIAL_CONTENT;
+import static net.sony.util.HttpUtils.RANGE_NOT_SATISFIABLE;
 import static net.sony.util.HttpUtils.ok;
+import static net.sony.util.HttpUtils.totalLength;
 import static net.sony.util.JsonUtils.fromJSON;
 import static net.sony.util.StringUtils.resolve;
 import static net.sony.util.StringUtils.variable;
@@ -49,6 +66,11 @@ public class DigitalPaperEndpoint {
     private static final String FIRMWARE_VERSION_URL = "/system/status/firmware_version";
     private static final String FIRMWARE_PUT_ON_DEVICE_URL = "/system/controls/update_firmware/file";
 
+    private static final String PARTIAL_DOWNLOAD_SUFFIX = ".part";
+    private static final String PARTIAL_KEY_SUFFIX = ".key";
+    private static final long DOWNLOAD_CHUNK_SIZE = 1024 * 1024;
+    private static final int DOWNLOAD_RESUME_ATTEMPTS = 5;
+
     private static final int SECURE_PORT = 8443;
     private static final int INSECURE_PORT = 8080;
 
@@ -62,6 +84,8 @@ public class DigitalPaperEndpoint {
     private final String insecureBaseUrl;
     private final String addr;
 
+    private long downloadResumeDelayMs = 1000;
+
     public DigitalPaperEndpoint(String addr, SimpleHttpClient simpleHttpClient) {
         this.addr = addr;
         this.secureBaseUrl = "https://" + addr + ":" + SECURE_PORT;
@@ -108,6 +132,117 @@ public class DigitalPaperEndpoint {
         return simpleHttpClient.getFile(secured(downloadUrl));
     }
 
+    /**
+     * Downloads a document straight to disk: the content goes through a FileChannel into a ".part" sibling
+     * which is atomically renamed once complete, so an interrupted transfer never leaves a truncated target.
+     * If the connection drops (e.g. Wi-Fi loss), the download is resumed with a Range request from the last
+     * byte written instead of restarting from zero. The ".part" stays when we give up, the next call for the
+     * same target resumes from it: a ".part.key" next to it says which document and revision it holds, we
+     * start over when it's not the one asked for.
+     *
+     * @param revision The file_revision of the listing, null if unknown
+     * @param size     The file_size of the listing, -1 if unknown
+     */
+    public void downloadTo(Path target, String remoteId, String revision, long size) throws IOException, InterruptedException {
+        String url = secured(resolve(downloadRemoteIdUrl, variable("remote_id", remoteId)));
+        Path partial = target.resolveSibling(target.getFileName() + PARTIAL_DOWNLOAD_SUFFIX);
+        Path partialKey = target.resolveSibling(partial.getFileName() + PARTIAL_KEY_SUFFIX);
+        String key = remoteId + " " + revision + " " + size;
+
+        boolean complete = false;
+        try (FileChannel channel = FileChannel.open(partial, CREATE, WRITE)) {
+            if (channel.size() > 0 && !(Files.exists(partialKey) && Files.readString(partialKey).equals(key))) {
+                // Left by another document, or another revision of this one
+                channel.truncate(0);
+            }
+            Files.writeString(partialKey, key);
+
+            int attempt = 0;
+            while (!complete) {
+                long written = channel.size();
+                try {
+                    HttpResponse<InputStream> response = written == 0
+                            ? simpleHttpClient.getFileWithResponse(url)
+                            : simpleHttpClient.getFileRangeWithResponse(url, written, -1);
+
+                    try (InputStream body = response.body();
+                         ReadableByteChannel source = Channels.newChannel(body)) {
+                        if (written > 0 && response.statusCode() == RANGE_NOT_SATISFIABLE) {
+                            // What we kept is longer than the document, it's not the same anymore
+                            channel.truncate(0);
+                            continue;
+                        }
+                        if (written > 0 && response.statusCode() != PARTIAL_CONTENT) {
+                            // The device ignored the range, we have to start over
+                            channel.truncate(0);
+                            written = 0;
+                        }
+                        long expectedSize;
+                        try {
+                            expectedSize = totalLength(response);
+                        } catch (NumberFormatException e) {
+                            throw new IOException("Invalid content length from the device", e);
+                        }
+                        if (written > 0 && size >= 0 && expectedSize >= 0 && expectedSize != size) {
+                            // Not the revision the listing told us about, we can't append to what we have
+                            channel.truncate(0);
+                            continue;
+                        }
+
+                        long transferred;
+                        while ((transferred = channel.transferFrom(source, written, DOWNLOAD_CHUNK_SIZE)) > 0) {
+                            written += transferred;
+                        }
+
+                        if (expectedSize >= 0 && written < expectedSize) {
+                            throw new EOFException("Connection closed after " + written + " of " + expectedSize + " bytes");
+                        }
+                    }
+                    complete = true;
+                } catch (SonyException e) {
+                    throw e;
+                } catch (IOException e) {
+                    if (++attempt > DOWNLOAD_RESUME_ATTEMPTS) throw e;
+                    Thread.sleep(downloadResumeDelayMs * attempt);
+                }
+            }
+            channel.force(false);
+        } finally {
+            // What we got so far is kept for the next call
+            if (complete || (Files.exists(partial) && Files.size(partial) == 0)) {
+                Files.deleteIfExists(partialKey);
+                if (!complete) Files.delete(partial);
+            }
+        }
+
+        try {
+            Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    void setDownloadResumeDelay(long downloadResumeDelayMs) {
+        this.downloadResumeDelayMs = downloadResumeDelayMs;
+    }
+
+    /**
+     * Fetches the bytes from..to (inclusive) of a document, fewer if it ends before
+     */
+    public byte[] downloadRange(String remoteId, long from, long to) throws IOException, InterruptedException {
+        String url = secured(resolve(downloadRemoteIdUrl, variable("remote_id", remoteId)));
+        HttpResponse<InputStream> response = simpleHttpClient.getFileRangeWithResponse(url, from, to);
+        try (InputStream body = response.body()) {
+            // Nothing from there, the document ends before
+            if (response.statusCode() == RANGE_NOT_SATISFIABLE) return new byte[0];
+            // The device ignored the range and sends everything
+            if (response.statusCode() != PARTIAL_CONTENT) IOUtils.skip(body, from);
+            byte[] content = new byte[(int) (to - from + 1)];
+            int read = IOUtils.read(body, content);
+            return read == content.length ? content : Arrays.copyOf(content, read);
+        }
+    }
+
     public String resolveObjectByPath(Path path) throws IOException, InterruptedException {
         String encodedPath = URLEncoder.encode(path.toString(), StandardCharsets.UTF_8);
         String url = secured(resolve(resolveObjectByPathUrl, variable("enc_path", encodedPath)));
@@ -158,8 +293,12 @@ public class DigitalPaperEndpoint {
             put("folder_name", directory.getFileName().toString());
             put("parent_folder_id", parentId);
         }};
-        simpleHttpClient.post(secured("/folders2"), body);
-        return resolveObjectByPath(directory);
+        // The device answers with the new folder_id, older firmwares may not: we then ask for it
+        String folderId = (String) fromJSON(simpleHttpClient.post(secured("/folders2"), body)).get("folder_id");
+        if (folderId == null) {
+            folderId = resolveObjectByPath(directory);
+        }
+        return folderId;
     }
 
     public String touchFile(String filename, String parentId) throws IOException, InterruptedException {
@@ -183,17 +322,27 @@ public class DigitalPaperEndpoint {
     }
 
     public String uploadFile(Path filePath, String parentId) throws IOException, InterruptedException {
-        Map<String, Object> touchParam = new HashMap<>() {{
-            put("file_name", filePath.getFileName().toString());
-            put("parent_folder_id", parentId);
-            put("document_source", "");
-        }};
-        String documentId = (String) fromJSON(simpleHttpClient.post(secured("/documents2"), touchParam)).get("document_id");
+        String documentId = touchFile(filePath.getFileName().toString(), parentId);
+        // The multipart body streams from the file, the document is never loaded in memory
         String documentUrl = secured(resolve(filePathUrl, variable("doc_id", documentId)));
         simpleHttpClient.putFile(documentUrl, filePath);
         return documentId;
     }
 
+    /**
+     * @param content Streamed into the request body, it's opened again if the request has to be sent again
+     */
+    public String uploadFile(String filename, MimeMultipartData.StreamSupplier content, long length, String parentId) throws IOException, InterruptedException {
+        String documentId = touchFile(filename, parentId);
+        String documentUrl = secured(resolve(filePathUrl, variable("doc_id", documentId)));
+        MimeMultipartData mimeMultipartData = MimeMultipartData.newBuilder()
+                .withCharset(StandardCharsets.UTF_8)
+                .addStream(filename, filename, content, length, "application/pdf")
+                .build();
+        simpleHttpClient.putMultipartWithResponse(documentUrl, mimeMultipartData);
+        return documentId;
+    }
+
     public void setFileInfo(String remoteId, String newParentFolderId, String newFilename) throws IOException, InterruptedException {
         Map<String, Object> moveParam = new HashMap<>();
         moveParam.put("parent_folder_id", newParentFolderId);
@@ -203,9 +352,22 @@ public class DigitalPaperEndpoint {
         simpleHttpClient.put(secured(resolve(fileInfoUrl, variable("file_id", remoteId))), moveParam);
     }
 
-    public String authenticate(Map<String, Object> params) throws IOException, InterruptedException {
+    public AuthenticationCookie authenticate(Map<String, Object> params) throws IOException, InterruptedException {
         HttpResponse<String> response = simpleHttpClient.putWithResponse(secured(authenticateUrl), params);
-        return response.headers().map().get("set-cookie").get(0).split("; ")[0].split("=")[1];
+        String setCookie = response.headers().map().get("set-cookie").get(0);
+        return new AuthenticationCookie(setCookie.split("; ")[0].split("=")[1], cookieExpiry(setCookie));
+    }
+
+    /**
+     * @return When the session ends according to the Max-Age or Expires attribute, null if the device did not say
+     */
+    private static Instant cookieExpiry(String setCookie) {
+        try {
+            long maxAge = HttpCookie.parse(setCookie).get(0).getMaxAge();
+            return maxAge < 0 ? null : Instant.now().plusSeconds(maxAge);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
     }
 
     public void showDialog(String title, String text, String buttonText) throws IOException, InterruptedException {
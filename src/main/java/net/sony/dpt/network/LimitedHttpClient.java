@@ -0,0 +1,217 @@
+package net.sony.dpt.network;
+
+import net.sony.util.MimeMultipartData;
+
+import javax.net.ssl.SSLSession;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Cleaner;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+/**
+ * Every request to the device goes through the same ConcurrencyLimiter, whichever command sends it.
+ *
+ * Wraps the unchecked client, so it sees the raw status codes: 5xx, timeouts and connection resets mean the
+ * device is overloaded. A streamed download keeps its permit until its body is read or closed, that's when the
+ * device is actually done with it.
+ */
+public class LimitedHttpClient extends AbstractHttpClient implements SimpleHttpClient {
+
+    private static final Cleaner cleaner = Cleaner.create();
+    // Entry ids, so that /documents/{id}/file is one single route
+    private static final Pattern ID_SEGMENT = Pattern.compile("/[0-9a-fA-F-]{8,}(?=/|$)");
+
+    private final SimpleHttpClient simpleHttpClient;
+    private final ConcurrencyLimiter concurrencyLimiter;
+
+    public LimitedHttpClient(final SimpleHttpClient simpleHttpClient, final ConcurrencyLimiter concurrencyLimiter) {
+        this.simpleHttpClient = simpleHttpClient;
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    static String route(String method, String url) {
+        String path = URI.create(url).getPath();
+        return method + " " + (path == null ? "" : ID_SEGMENT.matcher(path).replaceAll("/*"));
+    }
+
+    @FunctionalInterface
+    private interface Request<T> {
+        HttpResponse<T> send() throws IOException, InterruptedException;
+    }
+
+    /**
+     * @param timed False if the latency is meaningless, e.g. it includes a whole upload
+     */
+    private <T> HttpResponse<T> limited(String route, boolean timed, Request<T> request) throws IOException, InterruptedException {
+        concurrencyLimiter.acquire();
+        try {
+            long start = System.nanoTime();
+            HttpResponse<T> response = request.send();
+            record(route, timed ? System.nanoTime() - start : -1, response.statusCode());
+            return response;
+        } catch (IOException e) {
+            concurrencyLimiter.onOverload();
+            throw e;
+        } finally {
+            concurrencyLimiter.release();
+        }
+    }
+
+    private HttpResponse<InputStream> limitedStream(String route, Request<InputStream> request) throws IOException, InterruptedException {
+        concurrencyLimiter.acquire();
+        HttpResponse<InputStream> response;
+        try {
+            long start = System.nanoTime();
+            response = request.send();
+            record(route, System.nanoTime() - start, response.statusCode());
+        } catch (IOException | RuntimeException | InterruptedException e) {
+            if (e instanceof IOException) concurrencyLimiter.onOverload();
+            concurrencyLimiter.release();
+            throw e;
+        }
+        return new ReleasingResponse(response, concurrencyLimiter);
+    }
+
+    private void record(String route, long latency, int statusCode) {
+        if (statusCode >= 500) concurrencyLimiter.onOverload();
+        else concurrencyLimiter.onSuccess(route, latency);
+    }
+
+    @Override
+    public HttpResponse<String> getWithResponse(String url) throws IOException, InterruptedException {
+        return limited(route("GET", url), true, () -> simpleHttpClient.getWithResponse(url));
+    }
+
+    @Override
+    public HttpResponse<String> putWithResponse(String url, Object serializable) throws IOException, InterruptedException {
+        return limited(route("PUT", url), true, () -> simpleHttpClient.putWithResponse(url, serializable));
+    }
+
+    @Override
+    public HttpResponse<String> postWithResponse(String url, Map<String, Object> jsonBody) throws IOException, InterruptedException {
+        return limited(route("POST", url), true, () -> simpleHttpClient.postWithResponse(url, jsonBody));
+    }
+
+    @Override
+    public HttpResponse<String> deleteWithResponse(String url) throws IOException, InterruptedException {
+        return limited(route("DELETE", url), true, () -> simpleHttpClient.deleteWithResponse(url));
+    }
+
+    @Override
+    public HttpResponse<InputStream> getFileWithResponse(String url) throws IOException, InterruptedException {
+        return limitedStream(route("GET", url), () -> simpleHttpClient.getFileWithResponse(url));
+    }
+
+    @Override
+    public HttpResponse<InputStream> getFileRangeWithResponse(String url, long from, long to) throws IOException, InterruptedException {
+        return limitedStream(route("GET", url), () -> simpleHttpClient.getFileRangeWithResponse(url, from, to));
+    }
+
+    @Override
+    public HttpResponse<String> putMultipartWithResponse(String url, MimeMultipartData mimeMultipartData) throws IOException, InterruptedException {
+        return limited(route("PUT", url), false, () -> simpleHttpClient.putMultipartWithResponse(url, mimeMultipartData));
+    }
+
+    @Override
+    public void addDefaultHeader(String header, String value) {
+        simpleHttpClient.addDefaultHeader(header, value);
+    }
+
+    /**
+     * Gives the permit back once, whichever comes first: end of stream, close, or the stream being
+     * garbage collected by a caller who forgot to close it
+     */
+    private static class ReleasingInputStream extends FilterInputStream {
+        private final Cleaner.Cleanable permit;
+
+        private ReleasingInputStream(InputStream in, ConcurrencyLimiter concurrencyLimiter) {
+            super(in);
+            permit = cleaner.register(this, concurrencyLimiter::release);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read == -1) permit.clean();
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read == -1) permit.clean();
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                permit.clean();
+            }
+        }
+    }
+
+    private static class ReleasingResponse implements HttpResponse<InputStream> {
+        private final HttpResponse<InputStream> response;
+        private final InputStream body;
+
+        private ReleasingResponse(HttpResponse<InputStream> response, ConcurrencyLimiter concurrencyLimiter) {
+            this.response = response;
+            this.body = new ReleasingInputStream(response.body(), concurrencyLimiter);
+        }
+
+        @Override
+        public int statusCode() {
+            return response.statusCode();
+        }
+
+        @Override
+        public HttpRequest request() {
+            return response.request();
+        }
+
+        @Override
+        public Optional<HttpResponse<InputStream>> previousResponse() {
+            return response.previousResponse();
+        }
+
+        @Override
+        public HttpHeaders headers() {
+            return response.headers();
+        }
+
+        @Override
+        public InputStream body() {
+            return body;
+        }
+
+        @Override
+        public Optional<SSLSession> sslSession() {
+            return response.sslSession();
+        }
+
+        @Override
+        public URI uri() {
+            return response.uri();
+        }
+
+        @Override
+        public HttpClient.Version version() {
+            return response.version();
+        }
+    }
+}
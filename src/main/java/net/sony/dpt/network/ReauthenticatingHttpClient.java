@@ -0,0 +1,127 @@
+package net.sony.dpt.network;
+
+import net.sony.util.MimeMultipartData;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpResponse;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Lets us start with a cookie from a previous run without knowing if the device still accepts it:
+ * when a request is refused for authentication, we authenticate again and send it once more.
+ *
+ * Wraps the unchecked client, as we need the raw responses. Concurrent requests refused with the same
+ * cookie only trigger one authentication.
+ */
+public class ReauthenticatingHttpClient extends AbstractHttpClient implements SimpleHttpClient {
+
+    private static final int UNAUTHORIZED = 401;
+    // The device error codes are the http status followed by two digits
+    private static final Pattern AUTH_ERROR_CODE = Pattern.compile("\"error_code\"\\s*:\\s*\"?401\\d\\d");
+
+    private final SimpleHttpClient simpleHttpClient;
+    private Authenticator authenticator;
+    private volatile long authentications;
+
+    public ReauthenticatingHttpClient(final SimpleHttpClient simpleHttpClient) {
+        this.simpleHttpClient = simpleHttpClient;
+    }
+
+    /**
+     * Until this is set, refused requests are returned as they are
+     */
+    public void setAuthenticator(Authenticator authenticator) {
+        this.authenticator = authenticator;
+    }
+
+    @FunctionalInterface
+    public interface Authenticator {
+        void authenticate() throws Exception;
+    }
+
+    @FunctionalInterface
+    private interface Request<T> {
+        HttpResponse<T> send() throws IOException, InterruptedException;
+    }
+
+    static boolean unauthorized(HttpResponse<?> response) {
+        if (response.statusCode() == UNAUTHORIZED) return true;
+        if (response.statusCode() < 400 || !(response.body() instanceof String)) return false;
+        Matcher matcher = AUTH_ERROR_CODE.matcher((String) response.body());
+        return matcher.find();
+    }
+
+    // The authentication requests themselves must not loop
+    private static boolean authenticationUrl(String url) {
+        String path = URI.create(url).getPath();
+        return path != null && path.startsWith("/auth");
+    }
+
+    private <T> HttpResponse<T> authenticated(String url, Request<T> request) throws IOException, InterruptedException {
+        long seen = authentications;
+        HttpResponse<T> response = request.send();
+        if (authenticator == null || authenticationUrl(url) || !unauthorized(response)) return response;
+
+        if (response.body() instanceof InputStream) ((InputStream) response.body()).close();
+        reauthenticate(seen);
+        return request.send();
+    }
+
+    private synchronized void reauthenticate(long seen) throws IOException, InterruptedException {
+        // Someone else got refused with the same cookie and already got a new one
+        if (authentications != seen) return;
+        try {
+            authenticator.authenticate();
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Could not authenticate again", e);
+        }
+        authentications++;
+    }
+
+    @Override
+    public HttpResponse<String> getWithResponse(String url) throws IOException, InterruptedException {
+        return authenticated(url, () -> simpleHttpClient.getWithResponse(url));
+    }
+
+    @Override
+    public HttpResponse<String> putWithResponse(String url, Object serializable) throws IOException, InterruptedException {
+        return authenticated(url, () -> simpleHttpClient.putWithResponse(url, serializable));
+    }
+
+    @Override
+    public HttpResponse<String> postWithResponse(String url, Map<String, Object> jsonBody) throws IOException, InterruptedException {
+        return authenticated(url, () -> simpleHttpClient.postWithResponse(url, jsonBody));
+    }
+
+    @Override
+    public HttpResponse<String> deleteWithResponse(String url) throws IOException, InterruptedException {
+        return authenticated(url, () -> simpleHttpClient.deleteWithResponse(url));
+    }
+
+    @Override
+    public HttpResponse<InputStream> getFileWithResponse(String url) throws IOException, InterruptedException {
+        return authenticated(url, () -> simpleHttpClient.getFileWithResponse(url));
+    }
+
+    @Override
+    public HttpResponse<InputStream> getFileRangeWithResponse(String url, long from, long to) throws IOException, InterruptedException {
+        return authenticated(url, () -> simpleHttpClient.getFileRangeWithResponse(url, from, to));
+    }
+
+    @Override
+    public HttpResponse<String> putMultipartWithResponse(String url, MimeMultipartData mimeMultipartData) throws IOException, InterruptedException {
+        return authenticated(url, () -> simpleHttpClient.putMultipartWithResponse(url, mimeMultipartData));
+    }
+
+    @Override
+    public void addDefaultHeader(String header, String value) {
+        // Only the client at the bottom builds requests
+        simpleHttpClient.addDefaultHeader(header, value);
+    }
+}
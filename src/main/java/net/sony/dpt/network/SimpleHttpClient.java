@@ -33,6 +33,12 @@ public interface SimpleHttpClient {
 
     HttpResponse<InputStream> getFileWithResponse(String url) throws IOException, InterruptedException;
 
+    /**
+     * Fetches only the bytes from..to (inclusive) of a file, a negative "to" reads until the end.
+     * Callers must check for a 206 status: a server ignoring the range answers 200 with the full content.
+     */
+    HttpResponse<InputStream> getFileRangeWithResponse(String url, long from, long to) throws IOException, InterruptedException;
+
     HttpResponse<String> putMultipartWithResponse(String url, MimeMultipartData mimeMultipartData) throws IOException, InterruptedException;
 
     HttpResponse<String> putFile(String url, Path localFile) throws IOException, InterruptedException;
@@ -21,7 +21,6 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
 import java.time.Duration;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 
@@ -48,7 +47,6 @@ public class UncheckedHttpClient extends AbstractHttpClient implements SimpleHtt
     }
 
     public UncheckedHttpClient() throws KeyManagementException, NoSuchAlgorithmException {
-        defaultHeaders = new HashMap<>();
         TrustManager[] trustAllCerts = new TrustManager[]{
                 new X509TrustManager() {
                     @Override
@@ -162,6 +160,16 @@ public class UncheckedHttpClient extends AbstractHttpClient implements SimpleHtt
         return httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
     }
 
+    @Override
+    public HttpResponse<InputStream> getFileRangeWithResponse(String url, long from, long to) throws IOException, InterruptedException {
+        HttpRequest request = requestBuilder()
+                .uri(URI.create(url))
+                .header(RANGE, range(from, to))
+                .method(GET, HttpRequest.BodyPublishers.ofString(EMPTY))
+                .build();
+        return httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+    }
+
     @Override
     public HttpResponse<String> putMultipartWithResponse(String url, MimeMultipartData mimeMultipartData) throws IOException, InterruptedException {
         HttpRequest request = HttpRequest.newBuilder()
@@ -0,0 +1,75 @@
+package net.sony.dpt.persistence;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.sony.dpt.command.authenticate.AuthenticationCookie;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The session cookie of the last authentication, so that the next run can skip the nonce, the signature and the PUT /auth.
+ * It's tied to the client id: registering again makes it useless. Only readable by the user, like the private key.
+ */
+public class AuthenticationCookieStore extends AbstractStore {
+
+    private static final Path cookiePath = Path.of("auth.cookie");
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    public AuthenticationCookieStore(Path storageRoot) {
+        super(storageRoot);
+    }
+
+    public void storeCookie(String clientId, AuthenticationCookie cookie) throws IOException {
+        Map<String, Object> content = new HashMap<>();
+        content.put("client_id", clientId);
+        content.put("credentials", cookie.getCredentials());
+        content.put("expires_at", cookie.getExpiresAt().toEpochMilli());
+
+        Files.createDirectories(storagePath);
+        Path file = storagePath.resolve(cookiePath);
+        Path tmp = file.resolveSibling(cookiePath + ".tmp");
+        Files.deleteIfExists(tmp);
+        try {
+            Files.createFile(tmp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(tmp);
+        }
+        Files.write(tmp, objectMapper.writeValueAsBytes(content));
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @return The cookie if it was issued to this client and is not expired yet, null otherwise
+     */
+    public AuthenticationCookie retrieveCookie(String clientId) {
+        try {
+            Map<?, ?> content = objectMapper.readValue(Files.readAllBytes(storagePath.resolve(cookiePath)), Map.class);
+            if (!String.valueOf(clientId).equals(content.get("client_id"))) return null;
+            AuthenticationCookie cookie = new AuthenticationCookie(
+                    (String) content.get("credentials"),
+                    Instant.ofEpochMilli(((Number) content.get("expires_at")).longValue())
+            );
+            return cookie.getCredentials() == null || cookie.expired() ? null : cookie;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public void clearCookie() {
+        try {
+            Files.deleteIfExists(storagePath.resolve(cookiePath));
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package net.sony.dpt.persistence;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+/**
+ * Where a running daemon can be reached: its local port, the token a client must present, and the port
+ * it takes print jobs on if it does.
+ * The file is only readable by the user, the token is what keeps other local users out.
+ */
+public class DaemonStore extends AbstractStore {
+
+    private final Path daemonPath;
+
+    public DaemonStore(Path storageRoot) {
+        super(storageRoot);
+        this.daemonPath = Path.of("daemon.session");
+    }
+
+    public void storeSession(int port, String token) throws IOException {
+        storeSession(port, token, -1);
+    }
+
+    /**
+     * @param printPort -1 if the daemon takes no print jobs
+     */
+    public void storeSession(int port, String token, int printPort) throws IOException {
+        Files.createDirectories(storagePath);
+        Path file = storagePath.resolve(daemonPath);
+        Files.deleteIfExists(file);
+        try {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(file);
+        }
+        String session = port + " " + token + (printPort < 0 ? "" : " " + printPort);
+        Files.write(file, session.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return The port, the token and maybe the print port, or null if no daemon is running
+     */
+    public String[] retrieveSession() {
+        try {
+            String[] session = Files.readString(storagePath.resolve(daemonPath)).strip().split(" ");
+            return session.length == 2 || session.length == 3 ? session : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public void clearSession() {
+        try {
+            Files.deleteIfExists(storagePath.resolve(daemonPath));
+        } catch (IOException ignored) {
+        }
+    }
+}
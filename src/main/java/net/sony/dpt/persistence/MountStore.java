@@ -0,0 +1,55 @@
+package net.sony.dpt.persistence;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.sony.dpt.command.documents.DocumentEntry;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What the FUSE mount keeps between two mounts: the cached blocks, and the document tree as we last saw it
+ */
+public class MountStore extends AbstractStore {
+
+    private static final Path blockCachePath = Path.of("fuse_cache");
+    private static final Path snapshotPath = Path.of("fuse_snapshot.json");
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    public MountStore(Path storageRoot) {
+        super(storageRoot);
+    }
+
+    public Path getBlockCachePath() {
+        return storagePath.resolve(blockCachePath);
+    }
+
+    public void storeSnapshot(Collection<DocumentEntry> entries) throws IOException {
+        Files.createDirectories(storagePath);
+        Path file = storagePath.resolve(snapshotPath);
+        Path tmp = file.resolveSibling(snapshotPath + ".tmp");
+        Files.write(tmp, objectMapper.writeValueAsBytes(entries));
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @return The entries of the last mount, or an empty list if there is none we can read
+     */
+    public List<DocumentEntry> retrieveSnapshot() {
+        try {
+            return objectMapper.readValue(Files.readAllBytes(storagePath.resolve(snapshotPath)), new TypeReference<List<DocumentEntry>>() {});
+        } catch (IOException | RuntimeException e) {
+            return Collections.emptyList();
+        }
+    }
+}
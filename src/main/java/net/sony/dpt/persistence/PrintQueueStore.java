@@ -0,0 +1,81 @@
+package net.sony.dpt.persistence;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The print jobs not sent to the device yet, so that they survive a restart of watch-print or the daemon.
+ * The files handed to the print server are kept in the spool folder until printed.
+ */
+public class PrintQueueStore extends AbstractStore {
+
+    private static final Path queuePath = Path.of("print_queue.json");
+    private static final Path spoolPath = Path.of("print_spool");
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    public PrintQueueStore(Path storageRoot) {
+        super(storageRoot);
+    }
+
+    public void storeQueue(Collection<Path> jobs) throws IOException {
+        List<String> paths = new ArrayList<>();
+        for (Path job : jobs) paths.add(job.toAbsolutePath().toString());
+
+        Files.createDirectories(storagePath);
+        Path file = storagePath.resolve(queuePath);
+        Path tmp = file.resolveSibling(queuePath + ".tmp");
+        Files.write(tmp, objectMapper.writeValueAsBytes(paths));
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @return The jobs in the order they came, empty if there is no queue we can read
+     */
+    public List<Path> retrieveQueue() {
+        try {
+            List<String> paths = objectMapper.readValue(Files.readAllBytes(storagePath.resolve(queuePath)), new TypeReference<List<String>>() {});
+            List<Path> jobs = new ArrayList<>();
+            for (String path : paths) jobs.add(Path.of(path));
+            return jobs;
+        } catch (IOException | RuntimeException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * A new file in the spool folder, alone in its own folder so that it keeps its name on the device
+     */
+    public Path newSpoolFile(String name) throws IOException {
+        Path folder = storagePath.resolve(spoolPath).resolve(UUID.randomUUID().toString());
+        Files.createDirectories(folder);
+        return folder.resolve(name);
+    }
+
+    public boolean isSpooled(Path job) {
+        return job.toAbsolutePath().normalize().startsWith(storagePath.resolve(spoolPath).toAbsolutePath().normalize());
+    }
+
+    /**
+     * Once printed, or given up on
+     */
+    public void removeSpooled(Path job) throws IOException {
+        if (!isSpooled(job)) return;
+        Files.deleteIfExists(job);
+        Files.deleteIfExists(job.getParent());
+    }
+}
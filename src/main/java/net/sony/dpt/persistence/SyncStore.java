@@ -1,14 +1,22 @@
 package net.sony.dpt.persistence;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.sony.dpt.command.sync.SyncManifest;
+import net.sony.util.HashUtils;
+
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.Date;
 
 public class SyncStore extends AbstractStore {
 
     private static final Path lastSyncPath = Path.of("last_sync.date");
+    private static final Path manifestsPath = Path.of("sync_manifests");
+    private final ObjectMapper objectMapper = new ObjectMapper();
 
     public SyncStore(Path storagePath) {
         super(storagePath);
@@ -32,4 +40,37 @@ public class SyncStore extends AbstractStore {
         }
 
     }
+
+    /**
+     * One manifest per local sync folder, named after the hash of its absolute path
+     */
+    private Path manifestPath(Path localRoot) {
+        String name = HashUtils.sha256Hex(localRoot.toAbsolutePath().normalize().toString()) + ".json";
+        return storagePath.resolve(manifestsPath).resolve(name);
+    }
+
+    /**
+     * @return The manifest of the last sync of this folder, empty if it was never synced or the file is unreadable
+     */
+    public SyncManifest retrieveManifest(Path localRoot) {
+        try {
+            return objectMapper.readValue(Files.readAllBytes(manifestPath(localRoot)), SyncManifest.class);
+        } catch (IOException e) {
+            return new SyncManifest();
+        }
+    }
+
+    public void storeManifest(Path localRoot, SyncManifest manifest) throws IOException {
+        Path target = manifestPath(localRoot);
+        Files.createDirectories(target.getParent());
+
+        // Written aside then renamed: a crash mid-write must not leave a truncated manifest
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.write(temporary, objectMapper.writeValueAsBytes(manifest));
+        try {
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
 }
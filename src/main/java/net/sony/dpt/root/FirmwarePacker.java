@@ -6,15 +6,17 @@ import net.sony.util.LogWriter;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.ArrayUtils;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
+import javax.crypto.*;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.*;
 import java.util.Objects;
 
@@ -94,47 +96,101 @@ public class FirmwarePacker {
         return cryptographyUtils.encryptAES(decryptedData, decryptedKey, binaryIv);
     }
 
-    private byte[] decrypt(byte[] encryptedData,
-                           byte[] signature,
-                           KeyPair unpackKey,
-                           byte[] encryptedKey,
-                           byte[] binaryIv) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException, NoSuchPaddingException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException {
-        if (!cryptographyUtils.verifySignature(
-                encryptedData,
-                signature,
-                unpackKey.getPublic()
-        )) {
-            logWriter.log("Impossible to verify firmware, normal if self-signed");
+    /**
+     * A buffer as a stream, every byte read also goes to the signature
+     */
+    private static class SignedInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+        private final Signature signature;
+
+        private SignedInputStream(final ByteBuffer buffer, final Signature signature) {
+            this.buffer = buffer;
+            this.signature = signature;
         }
 
-        byte[] decryptedDataKey = cryptographyUtils.decryptRsa(unpackKey.getPrivate(), encryptedKey);
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
 
-        // The decryptedDataKey is an hexadecimal representation, it should be instead a 256bit binary key
-        return cryptographyUtils.decryptAES(encryptedData, ByteUtils.hexToByte(new String(decryptedDataKey, StandardCharsets.US_ASCII).trim()), binaryIv);
-    }
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            int read = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, read);
+            try {
+                signature.update(bytes, offset, read);
+            } catch (SignatureException e) {
+                throw new IOException(e);
+            }
+            return read;
+        }
 
-    private byte[] decryptData(PkgWrap wrap, KeyPair unpackKey) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException, NoSuchPaddingException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException {
-        return decrypt(wrap.getEncryptedData(), wrap.getSignature(), unpackKey, wrap.getEncryptedDataKey(), wrap.getBinaryIv());
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
     }
 
     public void unpack(InputStream firmware, Path targetDataFile, Path targetAnimationFile) throws IOException, NoSuchPaddingException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, IllegalBlockSizeException, BadPaddingException, SignatureException, InvalidKeyException {
+        // A stream can't be mapped, it goes to disk first instead of the heap
+        Path pkg = Files.createTempFile("firmware", ".pkg");
+        try {
+            Files.copy(firmware, pkg, StandardCopyOption.REPLACE_EXISTING);
+            unpack(pkg, targetDataFile, targetAnimationFile);
+        } finally {
+            try {
+                Files.deleteIfExists(pkg);
+            } catch (IOException e) {
+                // Still mapped on Windows
+                pkg.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * The pkg is mapped, and the data decrypted straight to the target file while its signature is checked:
+     * whatever the size of the firmware, only a few buffers end up in the heap.
+     */
+    public void unpack(Path pkg, Path targetDataFile, Path targetAnimationFile) throws IOException, NoSuchPaddingException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, IllegalBlockSizeException, BadPaddingException, SignatureException, InvalidKeyException {
         KeyPair unpackKey = unpackKey();
 
-        PkgWrap wrap = wrap(loadRawFirmware(firmware));
+        PkgWrap wrap = PkgWrap.map(pkg);
 
-        byte[] decryptedDataTarGz = decryptData(wrap, unpackKey);
-        Files.write(targetDataFile, decryptedDataTarGz);
+        byte[] decryptedDataKey = cryptographyUtils.decryptRsa(unpackKey.getPrivate(), wrap.getEncryptedDataKey());
+        // The decryptedDataKey is an hexadecimal representation, it should be instead a 256bit binary key
+        Cipher cipher = cryptographyUtils.decryptAESCipher(
+                ByteUtils.hexToByte(new String(decryptedDataKey, StandardCharsets.US_ASCII).trim()),
+                wrap.getBinaryIv()
+        );
+
+        Signature dataSignature = cryptographyUtils.signatureVerifier(unpackKey.getPublic());
+        try (InputStream decrypted = new CipherInputStream(new SignedInputStream(wrap.getEncryptedDataBuffer(), dataSignature), cipher);
+             OutputStream target = Files.newOutputStream(targetDataFile)) {
+            decrypted.transferTo(target);
+        }
+        if (!dataSignature.verify(wrap.getSignature())) {
+            logWriter.log("Impossible to verify firmware, normal if self-signed");
+        }
 
         if (targetAnimationFile == null) return;
 
-        if (!cryptographyUtils.verifySignature(
-                wrap.getAnimationData(),
-                wrap.getAnimationSignature(),
-                unpackKey.getPublic()
-        )) {
+        ByteBuffer animationData = wrap.getAnimationDataBuffer();
+        if (animationData == null) {
+            logWriter.log("No animation in this firmware");
+            return;
+        }
+        Signature animationSignature = cryptographyUtils.signatureVerifier(unpackKey.getPublic());
+        animationSignature.update(animationData.duplicate());
+        if (!animationSignature.verify(wrap.getAnimationSignature())) {
             logWriter.log("Impossible to verify firmware animation, this is normal if self-signed");
         }
-        Files.write(targetAnimationFile, wrap.getAnimationData());
+        try (FileChannel target = FileChannel.open(targetAnimationFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (animationData.hasRemaining()) target.write(animationData);
+        }
     }
 
     /**
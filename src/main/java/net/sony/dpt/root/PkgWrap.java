@@ -1,14 +1,24 @@
 package net.sony.dpt.root;
 
 import net.sony.util.ByteUtils;
-import org.apache.commons.lang3.ArrayUtils;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
 
 import static java.util.Objects.deepEquals;
 
+/**
+ * The parts of a pkg, see FirmwarePacker for the format.
+ *
+ * The encrypted data and the animation data are read-only views on the content, never copies: over a mapped
+ * file, a firmware of hundreds of MB is unpacked without being loaded in the heap.
+ */
 public class PkgWrap {
 
     private final ByteBuffer wrap;
@@ -24,22 +34,22 @@ public class PkgWrap {
 
     private final byte[] iv;
 
-    private final byte[] encryptedData;
+    private final ByteBuffer encryptedData;
 
     private int animationHeaderSize;
     private int animationDataSize;
     private int animationSigSize;
     private byte[] animationSignature;
-    private byte[] animationData;
+    private ByteBuffer animationData;
 
     public PkgWrap(String header, byte[] signature, byte[] encryptedDataKey, byte[] iv, byte[] encryptedData, byte[] animationSignature, byte[] animationData) {
         this.header = header;
         this.signature = signature;
         this.encryptedDataKey = encryptedDataKey;
         this.iv = iv;
-        this.encryptedData = encryptedData;
+        this.encryptedData = ByteBuffer.wrap(encryptedData).asReadOnlyBuffer();
         this.animationSignature = animationSignature;
-        this.animationData = animationData;
+        this.animationData = animationData == null ? null : ByteBuffer.wrap(animationData).asReadOnlyBuffer();
 
         dataSize = encryptedData.length;
         sigSize = signature.length;
@@ -73,8 +83,6 @@ public class PkgWrap {
         wrap.put(encryptedData, 0, dataSize);
 
         if (animationData != null) {
-            this.animationData = animationData;
-            this.animationSignature = animationSignature;
             wrap.putInt(4 * 3 + animationSigSize);
             wrap.putInt(animationDataSize);
             wrap.putInt(animationSigSize);
@@ -86,12 +94,17 @@ public class PkgWrap {
     }
 
     public PkgWrap(final byte[] content) {
-        wrap = ByteBuffer.wrap(content);
-        wrap.order(ByteOrder.LITTLE_ENDIAN);
+        this(ByteBuffer.wrap(content));
+    }
 
-        header = new String(ArrayUtils.subarray(content, 0, 4), StandardCharsets.US_ASCII);
+    public PkgWrap(final ByteBuffer content) {
+        wrap = content.duplicate();
+        wrap.order(ByteOrder.LITTLE_ENDIAN);
         wrap.clear();
-        wrap.getInt();
+
+        byte[] headerBytes = new byte[4];
+        wrap.get(headerBytes);
+        header = new String(headerBytes, StandardCharsets.US_ASCII);
 
         // Reading data block size
         offsetData = wrap.getInt();
@@ -114,9 +127,8 @@ public class PkgWrap {
         wrap.get(iv, 0, 32);
 
         // Data
-        encryptedData = new byte[dataSize];
         wrap.position(offsetData);
-        wrap.get(encryptedData, 0, dataSize);
+        encryptedData = slice(dataSize);
 
         // Checking if animation data follows
         if (wrap.position() < wrap.limit()) {
@@ -130,13 +142,35 @@ public class PkgWrap {
             animationSignature = new byte[animationSigSize];
             wrap.get(animationSignature, 0, animationSigSize);
 
-            // Animation data
-            animationData = new byte[animationDataSize == 0 ? wrap.limit() - wrap.position() : animationDataSize];
-            wrap.get(animationData, 0, animationDataSize);
+            // Animation data, up to the end when the size isn't given
+            animationData = slice(animationDataSize == 0 ? wrap.limit() - wrap.position() : animationDataSize);
         }
 
     }
 
+    /**
+     * Maps the pkg file, the OS pages it in as we read it
+     */
+    public static PkgWrap map(final Path pkg) throws IOException {
+        try (FileChannel channel = FileChannel.open(pkg, StandardOpenOption.READ)) {
+            return new PkgWrap(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    private ByteBuffer slice(int size) {
+        ByteBuffer slice = wrap.slice();
+        slice.limit(size);
+        wrap.position(wrap.position() + size);
+        return slice.asReadOnlyBuffer();
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        if (buffer == null) return null;
+        byte[] array = new byte[buffer.remaining()];
+        buffer.duplicate().get(array);
+        return array;
+    }
+
     public String header() {
 
         return header;
@@ -184,8 +218,15 @@ public class PkgWrap {
         return ByteUtils.hexToByte(new String(iv, StandardCharsets.US_ASCII));
     }
 
+    /**
+     * A copy, prefer getEncryptedDataBuffer for a whole firmware
+     */
     public byte[] getEncryptedData() {
-        return encryptedData;
+        return toArray(encryptedData);
+    }
+
+    public ByteBuffer getEncryptedDataBuffer() {
+        return encryptedData.duplicate();
     }
 
     public byte[] getAnimationSignature() {
@@ -193,11 +234,19 @@ public class PkgWrap {
     }
 
     public byte[] getAnimationData() {
-        return animationData;
+        return toArray(animationData);
+    }
+
+    /**
+     * @return Null if there is no animation
+     */
+    public ByteBuffer getAnimationDataBuffer() {
+        return animationData == null ? null : animationData.duplicate();
     }
 
     public byte[] getBytes() {
-        return wrap.array();
+        if (wrap.hasArray()) return wrap.array();
+        return toArray(wrap.duplicate().clear());
     }
 
     public boolean equals(final PkgWrap other) {
@@ -206,11 +255,11 @@ public class PkgWrap {
         if (offsetData != other.offsetData) return false;
         if (animationDataSize != other.animationDataSize) return false;
         if (!deepEquals(iv, other.iv)) return false;
-        if (!deepEquals(encryptedData, other.encryptedData)) return false;
+        if (!encryptedData.equals(other.encryptedData)) return false;
         if (!deepEquals(signature, other.signature)) return false;
         if (animationSigSize != other.animationSigSize) return false;
         if (sigSize != other.sigSize) return false;
-        if (!deepEquals(animationData, other.animationData)) return false;
+        if (!Objects.equals(animationData, other.animationData)) return false;
         if (!deepEquals(animationSignature, other.animationSignature)) return false;
 
         return true;
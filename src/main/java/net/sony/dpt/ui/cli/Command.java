@@ -5,7 +5,7 @@ import java.util.*;
 public enum Command {
     REGISTER("register", Collections.emptyList(), Collections.emptyList(), "Starts the pairing process with the Digital Paper"),
     PING("ping", "Tests the connection with the Digital Paper"),
-    SYNC("sync", Collections.singletonList(CommandOption.DRYRUN), Collections.singletonList("[local-sync-folder]"), "Synchronizes a local folder with the Digital paper. If no folder is given, it will use the one passed previously"),
+    SYNC("sync", Arrays.asList(CommandOption.DRYRUN, CommandOption.PARALLEL, CommandOption.FORCE), Collections.singletonList("[local-sync-folder]"), "Synchronizes a local folder with the Digital paper. If no folder is given, it will use the one passed previously.\nUp to -parallel transfers run at the same time (4 by default)\nRefuses to delete most of one side unless -force is given"),
     LIST_DOCUMENTS("list-documents", "Lists all documents"),
     DOCUMENT_INFO("document-info", "Prints all documents and their attributes, raw"),
     UPLOAD("upload", Collections.emptyList(), Arrays.asList("local-file", "[remote-file]"), "Sends a local file to the Digital Paper"),
@@ -16,8 +16,8 @@ public enum Command {
     DELETE_FOLDER("delete-folder", Collections.emptyList(), Collections.singletonList("remote-file"), "Remove a folder on the device"),
     DELETE("delete", Collections.emptyList(), Collections.singletonList("remote-file"), "Deletes a file on the device"),
     PRINT("print", Collections.emptyList(), Collections.singletonList("local-file"), "Sends a pdf to the Digital Paper, and opens it immediately"),
-    WATCH_PRINT("watch-print", Collections.emptyList(), Collections.singletonList("local-folder"), "Watches a folder, and print pdfs on creation/modification in this folder"),
-    SCREENSHOT("screenshot", Collections.emptyList(), Collections.singletonList("png-file"), "Takes a PNG screenshot and stores it locally"),
+    WATCH_PRINT("watch-print", Collections.singletonList(CommandOption.PARALLEL), Collections.singletonList("local-folder"), "Watches a folder, and print pdfs on creation/modification in this folder.\nThe jobs are queued until the device is reachable, even across restarts, up to -parallel are sent at the same time"),
+    SCREENSHOT("screenshot", Arrays.asList(CommandOption.BURST, CommandOption.INTERVAL, CommandOption.PARALLEL), Collections.singletonList("png-file"), "Takes a PNG screenshot and stores it locally.\nWith -burst, takes that many, numbered png-file-00001.png and so on, every -interval ms"),
     WHITEBOARD("whiteboard", Arrays.asList(CommandOption.ORIENTATION, CommandOption.SCALING_FACTOR), Collections.emptyList(), "Shows a projection of the digital paper, refreshed every second, orientation=[portrait|landscape],\nthe scaling factor is a multiplier of the resolution (0.5 by default)"),
     WHITEBOARD_HTML("whiteboard-html", Collections.singletonList(CommandOption.ORIENTATION), Collections.emptyList(), "Opens a distribution server with /frontend path feeding the images from the Digital Paper"),
     DIALOG("dialog", Collections.emptyList(), Arrays.asList("title", "content", "button"), "Prints a dialog on the Digital Paper"),
@@ -35,6 +35,7 @@ public enum Command {
     CHECK_FIRMWARE("check-firmware", "Check if a new firmware version has been published"),
     UPDATE_FIRMWARE("update-firmware", Arrays.asList(CommandOption.FORCE, CommandOption.DRYRUN), Collections.emptyList(), "Check for update and update the firmware if needed. Will ask for confirmation before triggering the update. Use -dryrun to test the process."),
     RAW_GET("get", Collections.emptyList(), Collections.singletonList("url"), "Sends and displays a GET request to the Digital Paper"),
+    DAEMON("daemon", Collections.singletonList(CommandOption.PARALLEL), Collections.emptyList(), "Stays connected to the Digital Paper and runs the commands of the next dpt invocations, which then skip discovery and authentication.\nAlso takes the print jobs of the CUPS printer, up to -parallel are sent at the same time"),
     MOUNT("mount", Collections.emptyList(), Collections.singletonList("[mount-point]"), "FUSE-mounts the DPT at the specified mount point. If not mount point is specified, it will attempt to use the one passed previously"),
     INSERT_NOTE_TEMPLATE("insert-note-template", Collections.emptyList(), Arrays.asList("name", "path"), "Inserts a new note template from the specified file, with the specified name"),
     GET_CONFIGURATION("get-configuration", Collections.emptyList(), Collections.singletonList("path"), "Saves the system configuration to a local file at <path>"),
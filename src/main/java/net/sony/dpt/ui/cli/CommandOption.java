@@ -12,6 +12,9 @@ public enum CommandOption {
     VERSION("version", "Prints the version of the program"),
     ORIENTATION("orientation", true, "portrait | landscape"),
     SCALING_FACTOR("scalingFactor", true, "Multply width and height by a decimal number. Default 0.5."),
+    PARALLEL("parallel", true, "For sync, watch-print and daemon, the maximum number of simultaneous transfers. Default 4. For screenshot -burst, the number of PNG encoders."),
+    BURST("burst", true, "For screenshot, how many frames to take back to back, 0 to go on until Ctrl+C"),
+    INTERVAL("interval", true, "For screenshot -burst, the delay between two frames in milliseconds, for a time-lapse. Default 0."),
     HELP("help", "Prints helpful informations about the program");
 
     private String optionLongName;
@@ -3,16 +3,20 @@ package net.sony.dpt.ui.cli;
 import com.android.ddmlib.*;
 import net.sony.dpt.command.authenticate.AuthenticateCommand;
 import net.sony.dpt.command.authenticate.AuthenticationCookie;
+import net.sony.dpt.command.device.ScreenshotBurst;
 import net.sony.dpt.command.device.SystemConfigCommand;
 import net.sony.dpt.command.device.TakeScreenshotCommand;
 import net.sony.dpt.command.dialog.DialogCommand;
 import net.sony.dpt.command.documents.DocumentCommand;
 import net.sony.dpt.command.documents.DocumentListResponse;
+import net.sony.dpt.command.documents.EntryIdCache;
 import net.sony.dpt.command.firmware.FirmwareUpdatesCommand;
 import net.sony.dpt.command.firmware.RootCommand;
 import net.sony.dpt.command.notes.NoteTemplateCommand;
 import net.sony.dpt.command.ping.PingCommand;
 import net.sony.dpt.command.print.PrintCommand;
+import net.sony.dpt.command.print.PrintServer;
+import net.sony.dpt.command.print.PrintSpooler;
 import net.sony.dpt.command.register.RegisterCommand;
 import net.sony.dpt.command.register.RegistrationResponse;
 import net.sony.dpt.command.reversing.ReverseEngineeringCommand;
@@ -21,20 +25,30 @@ import net.sony.dpt.command.root.DiagnosticCommand;
 import net.sony.dpt.command.root.FirmwareCommand;
 import net.sony.dpt.command.sync.LocalSyncProgressBar;
 import net.sony.dpt.command.sync.SyncCommand;
+import net.sony.dpt.command.sync.TransferScheduler;
 import net.sony.dpt.command.wifi.AccessPointList;
 import net.sony.dpt.command.wifi.WifiCommand;
+import net.sony.dpt.fuse.BlockCache;
 import net.sony.dpt.fuse.DptFuseMounter;
 import net.sony.dpt.network.CheckedHttpClient;
+import net.sony.dpt.network.ConcurrencyLimiter;
 import net.sony.dpt.network.DigitalPaperEndpoint;
+import net.sony.dpt.network.LimitedHttpClient;
+import net.sony.dpt.network.ReauthenticatingHttpClient;
 import net.sony.dpt.network.SimpleHttpClient;
 import net.sony.dpt.network.UncheckedHttpClient;
+import net.sony.dpt.persistence.AuthenticationCookieStore;
+import net.sony.dpt.persistence.DaemonStore;
 import net.sony.dpt.persistence.DeviceInfoStore;
 import net.sony.dpt.persistence.LastCommandRunStore;
+import net.sony.dpt.persistence.MountStore;
+import net.sony.dpt.persistence.PrintQueueStore;
 import net.sony.dpt.persistence.RegistrationTokenStore;
 import net.sony.dpt.persistence.SyncStore;
 import net.sony.dpt.root.DiagnosticManager;
 import net.sony.dpt.root.FirmwarePacker;
 import net.sony.dpt.root.RootPacker;
+import net.sony.dpt.ui.daemon.DaemonServer;
 import net.sony.dpt.ui.gui.whiteboard.Orientation;
 import net.sony.dpt.ui.gui.whiteboard.Whiteboard;
 import net.sony.dpt.ui.html.WhiteboardBackend;
@@ -80,9 +94,16 @@ public class DigitalPaperCLI {
     private final SyncStore syncStore;
     private final DeviceInfoStore deviceInfoStore;
     private final LastCommandRunStore lastCommandRunStore;
+    private final AuthenticationCookieStore authenticationCookieStore;
     private FindDigitalPaper findDigitalPaper;
 
     private DigitalPaperEndpoint digitalPaperEndpoint;
+    private final EntryIdCache entryIdCache;
+    private final ConcurrencyLimiter concurrencyLimiter;
+
+    // Local paths given on the command line are relative to this, the caller's directory when run by the daemon
+    private Path workingDirectory = Path.of("");
+    private boolean attachedToConsole = true;
 
     public DigitalPaperCLI(DiffieHelman diffieHelman,
                            CryptographyUtils cryptographyUtils,
@@ -102,10 +123,47 @@ public class DigitalPaperCLI {
         this.syncStore = syncStore;
         this.deviceInfoStore = deviceInfoStore;
         this.lastCommandRunStore = lastCommandRunStore;
+        this.entryIdCache = new EntryIdCache();
+        this.concurrencyLimiter = new ConcurrencyLimiter();
+        this.authenticationCookieStore = new AuthenticationCookieStore(deviceInfoStore.getStorageRoot());
 
         options = CommandOption.options();
     }
 
+    /**
+     * A CLI for one daemon client: it shares the connection, the authenticated session and the caches of this one,
+     * but writes to the client and resolves its local paths from the client's directory.
+     */
+    public DigitalPaperCLI forClient(LogWriter clientLogWriter, Path clientWorkingDirectory) {
+        DigitalPaperCLI client = new DigitalPaperCLI(this, clientLogWriter);
+        client.workingDirectory = clientWorkingDirectory;
+        client.attachedToConsole = false;
+        return client;
+    }
+
+    private DigitalPaperCLI(DigitalPaperCLI session, LogWriter logWriter) {
+        parser = new DefaultParser();
+        this.diffieHelman = session.diffieHelman;
+        this.cryptographyUtils = session.cryptographyUtils;
+        this.logWriter = logWriter;
+        this.inputReader = session.inputReader;
+        this.registrationTokenStore = session.registrationTokenStore;
+        this.syncStore = session.syncStore;
+        this.deviceInfoStore = session.deviceInfoStore;
+        this.lastCommandRunStore = session.lastCommandRunStore;
+        this.entryIdCache = session.entryIdCache;
+        this.concurrencyLimiter = session.concurrencyLimiter;
+        this.authenticationCookieStore = session.authenticationCookieStore;
+        this.findDigitalPaper = session.findDigitalPaper;
+        this.digitalPaperEndpoint = session.digitalPaperEndpoint;
+
+        options = CommandOption.options();
+    }
+
+    private Path localPath(String path) {
+        return workingDirectory.resolve(path);
+    }
+
     private void printHelp() {
         logWriter.log(Command.printHelp());
     }
@@ -132,12 +190,14 @@ public class DigitalPaperCLI {
             return;
         }
 
-        findDigitalPaper = new FindDigitalPaper(
-                logWriter,
-                deviceInfoStore,
-                new CheckedHttpClient(UncheckedHttpClient.insecure()),
-                matchSerial ? commandLine.getOptionValue("serial") : null,
-                hasAddr ? commandLine.getOptionValue("addr") : null);
+        if (findDigitalPaper == null) {
+            findDigitalPaper = new FindDigitalPaper(
+                    logWriter,
+                    deviceInfoStore,
+                    new CheckedHttpClient(UncheckedHttpClient.insecure()),
+                    matchSerial ? commandLine.getOptionValue("serial") : null,
+                    hasAddr ? commandLine.getOptionValue("addr") : null);
+        }
 
         // This are pre-registration command
         switch (command) {
@@ -170,25 +230,17 @@ public class DigitalPaperCLI {
                 return;
         }
 
-        String addr = findDigitalPaper.findAddress();
-
-        if (!registrationTokenStore.registered() || command == Command.REGISTER) {
-            register(new CheckedHttpClient(UncheckedHttpClient.insecure()), addr);
-            return;
-        }
-
-        RegistrationResponse registrationResponse = registrationTokenStore.retrieveRegistrationToken();
-
-        SimpleHttpClient secureHttpClient = FindDigitalPaper.ZEROCONF_HOST.equals(addr)
-                ? new CheckedHttpClient(UncheckedHttpClient.secure(registrationResponse.getPemCertificate(), registrationResponse.getPrivateKey(), cryptographyUtils))
-                : new CheckedHttpClient(UncheckedHttpClient.secureNoHostVerification());
+        // Already connected when running inside the daemon
+        if (digitalPaperEndpoint == null) {
+            String addr = findDigitalPaper.findAddress();
 
-        digitalPaperEndpoint = new DigitalPaperEndpoint(
-                addr,
-                secureHttpClient
-        );
+            if (!registrationTokenStore.registered() || command == Command.REGISTER) {
+                register(new CheckedHttpClient(UncheckedHttpClient.insecure()), addr);
+                return;
+            }
 
-        auth(secureHttpClient);
+            connect(addr);
+        }
 
         switch (command) {
             case LIST_DOCUMENTS:
@@ -234,7 +286,16 @@ public class DigitalPaperCLI {
                 wifiScan();
                 break;
             case SCREENSHOT:
-                takeScreenshot(arguments.get(1));
+                if (commandLine.hasOption("burst")) {
+                    takeScreenshotBurst(
+                            arguments.get(1),
+                            Integer.parseInt(commandLine.getOptionValue("burst")),
+                            commandLine.hasOption("interval") ? Long.parseLong(commandLine.getOptionValue("interval")) : 0,
+                            commandLine.hasOption("parallel") ? Integer.parseInt(commandLine.getOptionValue("parallel")) : Runtime.getRuntime().availableProcessors()
+                    );
+                } else {
+                    takeScreenshot(arguments.get(1));
+                }
                 break;
             case WHITEBOARD:
                 showWhiteboard(
@@ -244,7 +305,12 @@ public class DigitalPaperCLI {
 
                 break;
             case SYNC:
-                sync(lastCommandRunStore.retrieveOneArgument(command, arguments), dryrun);
+                sync(
+                        lastCommandRunStore.retrieveOneArgument(command, arguments),
+                        dryrun,
+                        force,
+                        commandLine.hasOption("parallel") ? Integer.parseInt(commandLine.getOptionValue("parallel")) : TransferScheduler.DEFAULT_MAX_CONCURRENCY
+                );
                 break;
             case DIALOG:
                 showDialog(arguments.get(1), arguments.get(2), arguments.get(3));
@@ -283,7 +349,10 @@ public class DigitalPaperCLI {
                 print(arguments.get(1), arguments.size() > 2 ? arguments.get(2) : null);
                 break;
             case WATCH_PRINT:
-                watchAndPrint(arguments.get(1));
+                watchAndPrint(
+                        arguments.get(1),
+                        commandLine.hasOption("parallel") ? Integer.parseInt(commandLine.getOptionValue("parallel")) : PrintSpooler.DEFAULT_PARALLEL
+                );
                 break;
             case BATTERY:
                 showBatteryStatus();
@@ -312,10 +381,38 @@ public class DigitalPaperCLI {
             case ROOT:
                 root(dryrun);
                 break;
+            case DAEMON:
+                new DaemonServer(
+                        this,
+                        new DaemonStore(deviceInfoStore.getStorageRoot()),
+                        printServer(commandLine.hasOption("parallel") ? Integer.parseInt(commandLine.getOptionValue("parallel")) : PrintSpooler.DEFAULT_PARALLEL),
+                        logWriter
+                ).serve();
+                break;
         }
 
     }
 
+    private void connect(String addr) throws Exception {
+        RegistrationResponse registrationResponse = registrationTokenStore.retrieveRegistrationToken();
+
+        SimpleHttpClient uncheckedHttpClient = FindDigitalPaper.ZEROCONF_HOST.equals(addr)
+                ? UncheckedHttpClient.secure(registrationResponse.getPemCertificate(), registrationResponse.getPrivateKey(), cryptographyUtils)
+                : UncheckedHttpClient.secureNoHostVerification();
+        // All the commands share the same limiter, so together they never send more than the device can take
+        ReauthenticatingHttpClient authenticatedHttpClient = new ReauthenticatingHttpClient(new LimitedHttpClient(uncheckedHttpClient, concurrencyLimiter));
+        SimpleHttpClient secureHttpClient = new CheckedHttpClient(authenticatedHttpClient);
+
+        digitalPaperEndpoint = new DigitalPaperEndpoint(
+                addr,
+                secureHttpClient
+        );
+
+        auth(secureHttpClient, registrationResponse, false);
+        // The cookie of a previous run may be refused, the same goes for ours once it expires in a long running process
+        authenticatedHttpClient.setAuthenticator(() -> auth(secureHttpClient, registrationResponse, true));
+    }
+
     private void showWhiteboard(String orientationOption, String scalingFactorOption) throws IOException, InterruptedException {
         Orientation orientation = Orientation.LANDSCAPE;
         float scalingFactor = 0.5f;
@@ -432,19 +529,27 @@ public class DigitalPaperCLI {
     }
 
     private void getConfiguration(String path) throws IOException, InterruptedException {
-        new SystemConfigCommand(digitalPaperEndpoint, logWriter).saveSystemConfigsToLocal(Path.of(path));
+        new SystemConfigCommand(digitalPaperEndpoint, logWriter).saveSystemConfigsToLocal(localPath(path));
     }
 
     private void setConfiguration(String path) throws IOException, InterruptedException {
-        new SystemConfigCommand(digitalPaperEndpoint, logWriter).sendSystemConfigsToRemote(Path.of(path));
+        new SystemConfigCommand(digitalPaperEndpoint, logWriter).sendSystemConfigsToRemote(localPath(path));
     }
 
     private void insertNoteTemplate(String name, String path) throws IOException, InterruptedException {
-        new NoteTemplateCommand(digitalPaperEndpoint).insertNoteTemplate(name, Path.of(path));
+        new NoteTemplateCommand(digitalPaperEndpoint).insertNoteTemplate(name, localPath(path));
     }
 
     private void mount(String mountPoint) throws IOException, InterruptedException {
-        new DptFuseMounter(new DocumentCommand(digitalPaperEndpoint), logWriter).mountDpt(Path.of(mountPoint));
+        MountStore mountStore = new MountStore(deviceInfoStore.getStorageRoot());
+        new DptFuseMounter(documentCommand(), new BlockCache(mountStore.getBlockCachePath()), mountStore, logWriter).mountDpt(localPath(mountPoint));
+    }
+
+    /**
+     * All document commands of a run share the same path cache, so ids resolved or listed once are reused
+     */
+    private DocumentCommand documentCommand() {
+        return new DocumentCommand(digitalPaperEndpoint, entryIdCache);
     }
 
     private void printVersion() {
@@ -482,27 +587,40 @@ public class DigitalPaperCLI {
         new SystemConfigCommand(digitalPaperEndpoint, logWriter).showStorageStatus();
     }
 
-    private void watchAndPrint(String localFolderToWatch) throws IOException {
+    private void watchAndPrint(String localFolderToWatch, int parallel) throws IOException, InterruptedException {
+        printSpooler(new PrintQueueStore(deviceInfoStore.getStorageRoot()), parallel).watch(localPath(localFolderToWatch));
+    }
+
+    private PrintServer printServer(int parallel) {
+        PrintQueueStore printQueueStore = new PrintQueueStore(deviceInfoStore.getStorageRoot());
+        return new PrintServer(printSpooler(printQueueStore, parallel), printQueueStore, logWriter);
+    }
+
+    private PrintSpooler printSpooler(PrintQueueStore printQueueStore, int parallel) {
         PrintCommand printCommand = new PrintCommand(
                 digitalPaperEndpoint,
                 new DialogCommand(digitalPaperEndpoint),
-                new DocumentCommand(digitalPaperEndpoint),
+                documentCommand(),
+                logWriter
+        );
+        return new PrintSpooler(
+                printCommand,
+                new PingCommand(digitalPaperEndpoint, logWriter),
+                printQueueStore,
                 logWriter,
-                new PingCommand(digitalPaperEndpoint, logWriter)
+                parallel
         );
-        printCommand.watch(Path.of(localFolderToWatch));
     }
 
     private void print(String localPath, String remotePath) throws IOException, InterruptedException {
         PrintCommand printCommand = new PrintCommand(
                 digitalPaperEndpoint,
                 new DialogCommand(digitalPaperEndpoint),
-                new DocumentCommand(digitalPaperEndpoint),
-                logWriter,
-                new PingCommand(digitalPaperEndpoint, logWriter)
+                documentCommand(),
+                logWriter
         );
         if (remotePath == null) {
-            printCommand.print(Path.of(localPath), false);
+            printCommand.print(localPath(localPath), false);
         }
     }
 
@@ -537,7 +655,7 @@ public class DigitalPaperCLI {
     }
 
     private void copyDocument(String from, String to) throws IOException, InterruptedException {
-        new DocumentCommand(digitalPaperEndpoint).copy(Path.of(from), Path.of(to));
+        documentCommand().copy(Path.of(from), Path.of(to));
     }
 
     private void ping() throws IOException, URISyntaxException {
@@ -554,20 +672,30 @@ public class DigitalPaperCLI {
         registrationTokenStore.storeRegistrationToken(registrationResponse);
     }
 
-    private void auth(SimpleHttpClient simpleHttpClient) throws Exception {
-        RegistrationResponse registrationResponse = registrationTokenStore.retrieveRegistrationToken();
-        AuthenticationCookie authenticationCookie = new AuthenticateCommand(digitalPaperEndpoint, cryptographyUtils).authenticate(registrationResponse);
+    /**
+     * @param renew False to reuse the cookie of a previous run if we still have one
+     */
+    private void auth(SimpleHttpClient simpleHttpClient, RegistrationResponse registrationResponse, boolean renew) throws Exception {
+        AuthenticationCookie authenticationCookie = renew ? null : authenticationCookieStore.retrieveCookie(registrationResponse.getClientId());
+        if (authenticationCookie == null) {
+            authenticationCookie = new AuthenticateCommand(digitalPaperEndpoint, cryptographyUtils).authenticate(registrationResponse);
+            try {
+                authenticationCookieStore.storeCookie(registrationResponse.getClientId(), authenticationCookie);
+            } catch (IOException e) {
+                logWriter.log("Impossible to save the authentication, the next run will authenticate again.");
+            }
+        }
         authenticationCookie.insertInCookieManager(digitalPaperEndpoint.getSecuredURI(), (CookieManager) CookieHandler.getDefault());
         authenticationCookie.insertInRequest(simpleHttpClient::addDefaultHeader);
     }
 
     private void listDocuments() throws IOException, InterruptedException {
-        DocumentListResponse documentListResponse = new DocumentCommand(digitalPaperEndpoint).listDocuments();
+        DocumentListResponse documentListResponse = documentCommand().listDocuments();
         documentListResponse.getEntryList().forEach(documentEntry -> logWriter.log(documentEntry.getEntryPath()));
     }
 
     private void listDocumentsInfo() throws IOException, InterruptedException {
-        DocumentListResponse documentListResponse = new DocumentCommand(digitalPaperEndpoint).listDocuments();
+        DocumentListResponse documentListResponse = documentCommand().listDocuments();
         documentListResponse.getEntryList().forEach(
                 documentEntry -> logWriter.log(documentEntry.getEntryPath() + " - " + documentEntry)
         );
@@ -586,47 +714,43 @@ public class DigitalPaperCLI {
     }
 
     private void upload(String local, String remotePath) throws IOException, InterruptedException {
-        Path localPath = Path.of(local);
+        Path localPath = localPath(local);
         if (remotePath == null) {
             remotePath = "Document/Received/" + localPath.getFileName();
         }
-        new DocumentCommand(digitalPaperEndpoint).upload(localPath, Path.of(remotePath));
+        documentCommand().upload(localPath, Path.of(remotePath));
     }
 
     private void deleteFolder(String remotePath) throws IOException, InterruptedException {
-        new DocumentCommand(digitalPaperEndpoint).deleteFolder(Path.of(remotePath));
+        documentCommand().deleteFolder(Path.of(remotePath));
     }
 
     private void deleteDocument(String remotePath) throws IOException, InterruptedException {
-        new DocumentCommand(digitalPaperEndpoint).delete(Path.of(remotePath));
+        documentCommand().delete(Path.of(remotePath));
     }
 
     private void downloadDocument(String remotePath, String localPath) throws IOException, InterruptedException {
         Path localDownloadPath;
         if (localPath == null) {
-            localDownloadPath = Path.of(".");
+            localDownloadPath = localPath(".");
         } else {
-            localDownloadPath = Path.of(localPath);
+            localDownloadPath = localPath(localPath);
         }
         Path remoteDownloadPath = Path.of(remotePath);
-        InputStream inputStream = new DocumentCommand(digitalPaperEndpoint).download(remoteDownloadPath);
 
         if (Files.isDirectory(localDownloadPath)) {
             localDownloadPath = localDownloadPath.resolve(remoteDownloadPath.getFileName());
         }
 
-        try (OutputStream outputStream = Files.newOutputStream(localDownloadPath)) {
-            IOUtils.copy(inputStream, outputStream);
-            inputStream.close();
-        }
+        documentCommand().downloadTo(remoteDownloadPath, localDownloadPath);
     }
 
     private void newFolder(String remotePath) throws IOException, InterruptedException {
-        new DocumentCommand(digitalPaperEndpoint).createFolderRecursively(Path.of(remotePath));
+        documentCommand().createFolderRecursively(Path.of(remotePath));
     }
 
     private void moveDocument(String oldPath, String newPath) throws IOException, InterruptedException {
-        new DocumentCommand(digitalPaperEndpoint).move(Path.of(oldPath), Path.of(newPath));
+        documentCommand().move(Path.of(oldPath), Path.of(newPath));
     }
 
     private void takeScreenshot(String target) throws IOException, InterruptedException {
@@ -634,12 +758,20 @@ public class DigitalPaperCLI {
             target = target + ".png";
         }
         InputStream memoryCopy = new TakeScreenshotCommand(digitalPaperEndpoint).takeScreenshot();
-        try (OutputStream targetStream = Files.newOutputStream(Path.of(target))) {
+        try (OutputStream targetStream = Files.newOutputStream(localPath(target))) {
             IOUtils.copy(memoryCopy, targetStream);
             memoryCopy.close();
         }
     }
 
+    private void takeScreenshotBurst(String target, int count, long intervalMs, int encoders) throws IOException, InterruptedException {
+        ScreenshotBurst screenshotBurst = new ScreenshotBurst(new TakeScreenshotCommand(digitalPaperEndpoint)::fastScreenshot, encoders, logWriter);
+        // Ctrl+C ends the burst, but what was captured is still written
+        Runtime.getRuntime().addShutdownHook(new Thread(screenshotBurst::stop));
+        logWriter.log(count == 0 ? "Capturing until Ctrl+C" : "Capturing " + count + " frames");
+        screenshotBurst.capture(localPath(target), count, intervalMs);
+    }
+
     /**
      * Without quoting:
      * Console arg: /mnt/bananas/books/Digital Paper Sync/
@@ -650,16 +782,19 @@ public class DigitalPaperCLI {
      * Path interpretation: /mnt/bananas/books/Digital\ Paper\ Sync
      *
      */
-    private void sync(String localFolder, boolean dryrun) throws IOException, InterruptedException {
-        new SyncCommand(
-                Path.of(localFolder),
-                new DocumentCommand(digitalPaperEndpoint),
-                new DocumentCommand(digitalPaperEndpoint),
+    private void sync(String localFolder, boolean dryrun, boolean force, int maxConcurrency) throws IOException, InterruptedException {
+        SyncCommand syncCommand = new SyncCommand(
+                localPath(localFolder),
+                documentCommand(),
+                documentCommand(),
                 digitalPaperEndpoint,
                 logWriter,
                 syncStore,
-                new LocalSyncProgressBar(System.out, ProgressBar.ProgressStyle.RECTANGLES_1)
-        ).sync(dryrun);
+                attachedToConsole ? new LocalSyncProgressBar(System.out, ProgressBar.ProgressStyle.RECTANGLES_1) : null
+        );
+        syncCommand.setMaxConcurrency(maxConcurrency);
+        syncCommand.setForce(force);
+        syncCommand.sync(dryrun);
     }
 
     private void showOwner() throws IOException, InterruptedException {
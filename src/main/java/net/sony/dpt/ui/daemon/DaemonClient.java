@@ -0,0 +1,124 @@
+package net.sony.dpt.ui.daemon;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.sony.dpt.persistence.DaemonStore;
+import net.sony.dpt.ui.cli.Command;
+import net.sony.util.LogWriter;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Sends a command line to a running DaemonServer instead of connecting to the device ourselves,
+ * which skips the discovery, the SSL setup and the authentication.
+ */
+public class DaemonClient {
+
+    private static final int CONNECT_TIMEOUT_MS = 500;
+
+    // Interactive, long running, or not needing the device: those always run in the calling process
+    private static final Set<Command> LOCAL_ONLY = EnumSet.of(
+            Command.HELP,
+            Command.REGISTER,
+            Command.DAEMON,
+            Command.WHITEBOARD,
+            Command.WHITEBOARD_HTML,
+            Command.WATCH_PRINT,
+            Command.MOUNT,
+            Command.WIFI_ADD,
+            Command.UPDATE_FIRMWARE,
+            Command.ROOT,
+            Command.DIAG_FETCH,
+            Command.DIAG_EXIT,
+            Command.UNPACK,
+            Command.ADB_LIST_EXTENSIONS,
+            Command.ADB_FETCH_EXTENSION,
+            Command.ADB_SETUP_EXTENSION,
+            Command.ADB_REMOVE_EXTENSION,
+            Command.ADB_INSTALL_APK
+    );
+
+    private final DaemonStore daemonStore;
+    private final LogWriter logWriter;
+    private final LogWriter errorWriter;
+    private final ObjectMapper objectMapper;
+
+    public DaemonClient(final DaemonStore daemonStore, final LogWriter logWriter, final LogWriter errorWriter) {
+        this.daemonStore = daemonStore;
+        this.logWriter = logWriter;
+        this.errorWriter = errorWriter;
+        this.objectMapper = new ObjectMapper();
+    }
+
+    public static boolean forwardable(String[] args) {
+        List<String> arguments = Arrays.asList(args);
+        if (args.length == 0 || arguments.contains("-version")) return false;
+        // A burst can go on until Ctrl+C, which only reaches our own process
+        if (arguments.contains("-burst") || arguments.contains("--burst")) return false;
+        // The daemon only talks to the device it connected to, another one must be reached by ourselves
+        for (String argument : args) {
+            if (argument.matches("--?(addr|serial)(=.*)?")) return false;
+        }
+        return !LOCAL_ONLY.contains(Command.parse(args));
+    }
+
+    /**
+     * @return The exit code of the command in the daemon, or null if there is no daemon to forward to
+     */
+    public Integer forward(String[] args) {
+        if (!forwardable(args)) return null;
+        String[] session = daemonStore.retrieveSession();
+        if (session == null) return null;
+
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(session[0])), CONNECT_TIMEOUT_MS);
+        } catch (IOException | NumberFormatException e) {
+            // A stale session file, the daemon is gone: we run the command ourselves
+            daemonStore.clearSession();
+            closeQuietly(socket);
+            return null;
+        }
+
+        // From here the command may have started in the daemon, running it again ourselves is not an option
+        try (socket) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+            Map<String, Object> request = new HashMap<>();
+            request.put("token", session[1]);
+            request.put("workingDirectory", System.getProperty("user.dir"));
+            request.put("arguments", Arrays.asList(args));
+            writer.write(objectMapper.writeValueAsString(request));
+            writer.write('\n');
+            writer.flush();
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Map<?, ?> message = objectMapper.readValue(line, Map.class);
+                if (message.containsKey("log")) {
+                    logWriter.log(String.valueOf(message.get("log")));
+                } else if (message.containsKey("exit")) {
+                    if (message.containsKey("error")) errorWriter.log(String.valueOf(message.get("error")));
+                    return ((Number) message.get("exit")).intValue();
+                }
+            }
+        } catch (IOException e) {
+            errorWriter.log("Lost the connection to the daemon: " + e.getMessage());
+            return 1;
+        }
+        errorWriter.log("The daemon closed the connection before the command completed");
+        return 1;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
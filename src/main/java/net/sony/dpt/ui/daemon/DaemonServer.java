@@ -0,0 +1,153 @@
+package net.sony.dpt.ui.daemon;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.sony.dpt.command.print.PrintServer;
+import net.sony.dpt.error.SonyException;
+import net.sony.dpt.persistence.DaemonStore;
+import net.sony.dpt.ui.cli.DigitalPaperCLI;
+import net.sony.util.ByteUtils;
+import net.sony.util.LogWriter;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps the connected, authenticated CLI around and runs the commands sent by DaemonClient.
+ *
+ * Protocol, one JSON object per line:
+ *  client -> daemon: {"token": ..., "workingDirectory": ..., "arguments": [...]}
+ *  daemon -> client: {"log": ...} for every message of the command, then {"exit": 0|1, "error": ...}
+ *
+ * We listen on the loopback interface only, and a client must present the token from the DaemonStore file.
+ * The print jobs of the CUPS script come in over HTTP, to the PrintServer we run with the same token.
+ */
+public class DaemonServer {
+
+    private static final int MAX_CLIENTS = 4;
+
+    private final DigitalPaperCLI session;
+    private final DaemonStore daemonStore;
+    private final PrintServer printServer;
+    private final LogWriter logWriter;
+    private final ObjectMapper objectMapper;
+    private final String token;
+    private volatile ServerSocket serverSocket;
+
+    public DaemonServer(final DigitalPaperCLI session, final DaemonStore daemonStore, final LogWriter logWriter) {
+        this(session, daemonStore, null, logWriter);
+    }
+
+    /**
+     * @param printServer Null to take no print jobs
+     */
+    public DaemonServer(final DigitalPaperCLI session, final DaemonStore daemonStore, final PrintServer printServer, final LogWriter logWriter) {
+        this.session = session;
+        this.daemonStore = daemonStore;
+        this.printServer = printServer;
+        this.logWriter = logWriter;
+        this.objectMapper = new ObjectMapper();
+
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        this.token = ByteUtils.bytesToHex(secret);
+    }
+
+    public void serve() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(MAX_CLIENTS);
+        try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            this.serverSocket = serverSocket;
+            int printPort = printServer == null ? -1 : printServer.bind(0, token);
+            daemonStore.storeSession(serverSocket.getLocalPort(), token, printPort);
+            Runtime.getRuntime().addShutdownHook(new Thread(daemonStore::clearSession));
+            logWriter.log("Daemon ready on port " + serverSocket.getLocalPort() + ", dpt commands will now go through it. Ctrl+C to stop.");
+            if (printServer != null) logWriter.log("Print jobs of the CUPS printer are taken on port " + printPort);
+
+            while (!serverSocket.isClosed()) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketException e) {
+                    if (serverSocket.isClosed()) return;
+                    throw e;
+                }
+                executor.submit(() -> handle(socket));
+            }
+        } finally {
+            executor.shutdownNow();
+            if (printServer != null) printServer.close();
+            daemonStore.clearSession();
+        }
+    }
+
+    /**
+     * Stops serve()
+     */
+    public void close() throws IOException {
+        ServerSocket current = serverSocket;
+        if (current != null) current.close();
+    }
+
+    private void handle(Socket socket) {
+        try (socket;
+             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+
+            String line = reader.readLine();
+            if (line == null) return;
+            Map<?, ?> request = objectMapper.readValue(line, Map.class);
+
+            String clientToken = String.valueOf(request.get("token"));
+            if (!MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), clientToken.getBytes(StandardCharsets.UTF_8))) {
+                send(writer, "exit", 1, "error", "Invalid daemon token");
+                return;
+            }
+
+            List<?> arguments = (List<?>) request.get("arguments");
+            String[] args = arguments.stream().map(String::valueOf).toArray(String[]::new);
+            Path workingDirectory = Path.of(String.valueOf(request.get("workingDirectory")));
+
+            LogWriter clientLogWriter = message -> {
+                try {
+                    send(writer, "log", message);
+                } catch (IOException ignored) {
+                    // The client went away, the command still completes
+                }
+            };
+
+            try {
+                session.forClient(clientLogWriter, workingDirectory).execute(args);
+                send(writer, "exit", 0);
+            } catch (SonyException e) {
+                send(writer, "exit", 1, "error", "A device exception occurred: " + e.print());
+            } catch (Exception e) {
+                send(writer, "exit", 1, "error", String.valueOf(e));
+            }
+        } catch (IOException e) {
+            logWriter.log("Daemon client failed: " + e.getMessage());
+        }
+    }
+
+    private void send(Writer writer, Object... keyValues) throws IOException {
+        Map<String, Object> message = new HashMap<>();
+        for (int i = 0; i + 1 < keyValues.length; i += 2) {
+            message.put(String.valueOf(keyValues[i]), keyValues[i + 1]);
+        }
+        synchronized (writer) {
+            writer.write(objectMapper.writeValueAsString(message));
+            writer.write('\n');
+            writer.flush();
+        }
+    }
+}
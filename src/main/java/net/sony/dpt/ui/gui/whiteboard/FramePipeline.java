@@ -0,0 +1,123 @@
+package net.sony.dpt.ui.gui.whiteboard;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Gets the frames ready for the screen away from the EDT: decode, then scale and rotate in one bilinear pass.
+ *
+ * The capture thread renders into a free buffer and puts it in a single slot, the EDT takes whatever is in the
+ * slot when it paints. A frame the EDT didn't take in time is replaced, and its buffer reused: there are never
+ * more than three buffers, one on screen, one in the slot, one being rendered.
+ */
+public class FramePipeline {
+
+    private final Orientation orientation;
+    private final float scalingFactor;
+    private final GraphicsConfiguration graphicsConfiguration;
+
+    private final AtomicReference<BufferedImage> ready;
+    private final Queue<BufferedImage> free;
+    private BufferedImage onScreen;
+
+    // Only touched by the capture thread
+    private final ImageReader reader;
+    private BufferedImage decoded;
+
+    /**
+     * @param graphicsConfiguration Of the window, for images it can draw without converting, null if headless
+     */
+    public FramePipeline(final Orientation orientation, final float scalingFactor, final GraphicsConfiguration graphicsConfiguration) {
+        this.orientation = orientation;
+        this.scalingFactor = scalingFactor;
+        this.graphicsConfiguration = graphicsConfiguration;
+        this.ready = new AtomicReference<>();
+        this.free = new ConcurrentLinkedQueue<>();
+        this.reader = ImageIO.getImageReadersByFormatName("jpeg").next();
+    }
+
+    /**
+     * From the capture thread
+     */
+    public void render(byte[] jpeg) throws IOException {
+        BufferedImage image = decode(jpeg);
+        int width = Math.max(1, Math.round(image.getWidth() * scalingFactor));
+        int height = Math.max(1, Math.round(image.getHeight() * scalingFactor));
+
+        double scaleX = (double) width / image.getWidth();
+        double scaleY = (double) height / image.getHeight();
+
+        AffineTransform transform = new AffineTransform();
+        if (orientation == Orientation.LANDSCAPE) {
+            // A quarter turn clockwise, the left edge of the device becomes the top
+            transform.translate(height, 0);
+            transform.quadrantRotate(1);
+            int swap = width;
+            width = height;
+            height = swap;
+        }
+        transform.scale(scaleX, scaleY);
+
+        BufferedImage target = buffer(width, height);
+        Graphics2D graphics = target.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, transform, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        BufferedImage stale = ready.getAndSet(target);
+        if (stale != null) free.add(stale);
+    }
+
+    /**
+     * From the EDT
+     *
+     * @return The newest frame, null before the first one
+     */
+    public BufferedImage take() {
+        BufferedImage next = ready.getAndSet(null);
+        if (next != null) {
+            if (onScreen != null) free.add(onScreen);
+            onScreen = next;
+        }
+        return onScreen;
+    }
+
+    private BufferedImage decode(byte[] jpeg) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(jpeg))) {
+            reader.setInput(input, true, true);
+            ImageReadParam param = reader.getDefaultReadParam();
+            // Same size as the last frame, we decode over it instead of allocating a new one
+            if (decoded != null && decoded.getWidth() == reader.getWidth(0) && decoded.getHeight() == reader.getHeight(0)) {
+                param.setDestination(decoded);
+            }
+            decoded = reader.read(0, param);
+            return decoded;
+        } finally {
+            reader.setInput(null);
+        }
+    }
+
+    private BufferedImage buffer(int width, int height) {
+        BufferedImage buffer;
+        while ((buffer = free.poll()) != null) {
+            if (buffer.getWidth() == width && buffer.getHeight() == height) return buffer;
+            // The size changed, it goes to the garbage collector
+        }
+        return graphicsConfiguration != null
+                ? graphicsConfiguration.createCompatibleImage(width, height, Transparency.OPAQUE)
+                : new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    }
+}
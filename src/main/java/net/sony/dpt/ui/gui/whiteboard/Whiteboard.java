@@ -1,9 +1,8 @@
 package net.sony.dpt.ui.gui.whiteboard;
 
+import net.sony.dpt.command.device.FramePoller;
 import net.sony.dpt.command.device.TakeScreenshotCommand;
-import net.sony.util.ImageUtils;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
@@ -12,29 +11,25 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
-import static java.awt.Image.SCALE_SMOOTH;
-
 /**
- * Whiteboard attempt using the new fast screenshot API
+ * Whiteboard attempt using the new fast screenshot API.
+ * Unchanged frames are dropped before decoding, and the polling slows down while the screen is still.
+ * The frames are decoded, scaled and rotated by the FramePipeline on the capture thread, the EDT only draws them.
  */
 public class Whiteboard {
 
     private static final int DEVICE_WIDTH = 1650;
     private static final int DEVICE_HEIGHT = 2200;
-    private final TakeScreenshotCommand takeScreenshotCommand;
+    private final FramePoller framePoller;
+    private final ScheduledExecutorService executor;
     private final JFrame frame;
-    private final JLabel label;
-    private final Orientation orientation;
-    private int rotationAngle = 0;
-    private float scalingFactor;
+    private final JComponent view;
+    private final FramePipeline framePipeline;
 
     public Whiteboard(final TakeScreenshotCommand takeScreenshotCommand, Orientation orientation, float scalingFactor) throws IOException, InterruptedException {
-        this.takeScreenshotCommand = takeScreenshotCommand;
+        this.framePoller = new FramePoller(takeScreenshotCommand::fastScreenshot);
         frame = new JFrame("Whiteboard");
 
-        this.orientation = orientation;
-        this.scalingFactor = scalingFactor;
-
         // We invert scale and rotate if needed
         int scaledWidth = (int) ((float) DEVICE_WIDTH * scalingFactor);
         int scaledHeight = (int) ((float) DEVICE_HEIGHT * scalingFactor);
@@ -43,55 +38,45 @@ public class Whiteboard {
         if (orientation == Orientation.LANDSCAPE) {
             width = scaledHeight;
             height = scaledWidth;
-            rotationAngle = 90;
         }
         frame.setSize(width , height);
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 
-        label = new JLabel();
-
-        JPanel panel = new JPanel();
-        panel.add(label);
-        frame.setContentPane(panel);
+        framePipeline = new FramePipeline(orientation, scalingFactor, frame.getGraphicsConfiguration());
+        view = new JComponent() {
+            @Override
+            protected void paintComponent(Graphics graphics) {
+                BufferedImage image = framePipeline.take();
+                if (image != null) graphics.drawImage(image, (getWidth() - image.getWidth()) / 2, 0, null);
+            }
+        };
+        view.setOpaque(false);
+        frame.setContentPane(view);
 
-        redraw();
+        framePoller.poll(this::redraw);
         frame.setVisible(true);
 
-        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
-        executor.scheduleAtFixedRate(() -> {
-            try {
-                redraw();
-            } catch (IOException ignored) {
-            } catch (InterruptedException e) {
-                executor.shutdownNow();
-            }
-        }, 0, 1000, TimeUnit.MILLISECONDS);
+        executor = Executors.newSingleThreadScheduledExecutor();
+        executor.execute(this::capture);
     }
 
-    public void redraw() throws IOException, InterruptedException {
-        BufferedImage img = ImageIO.read(takeScreenshotCommand.fastScreenshot());
-
-        if (orientation == Orientation.LANDSCAPE) {
-            img = ImageUtils.rotate(
-                    img,
-                    rotationAngle,
-                    frame.getGraphicsConfiguration());
+    private void capture() {
+        long delay;
+        try {
+            delay = framePoller.poll(this::redraw);
+        } catch (IOException e) {
+            delay = framePoller.idle();
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            return;
         }
+        executor.schedule(this::capture, delay, TimeUnit.MILLISECONDS);
+    }
 
-        ImageIcon icon = new ImageIcon(
-                img.getScaledInstance(
-                        (int) ((float) img.getWidth() * scalingFactor),
-                        (int) ((float) img.getHeight() * scalingFactor),
-                        SCALE_SMOOTH
-                )
-        );
-
-        // Callback to the UI thread
-        EventQueue.invokeLater(() -> {
-            label.setIcon(icon);
-            frame.revalidate();
-            frame.repaint();
-        });
+    public void redraw(byte[] jpeg) throws IOException {
+        framePipeline.render(jpeg);
+        // Thread safe, and the RepaintManager merges the calls the EDT didn't get to yet
+        view.repaint();
     }
 
 }
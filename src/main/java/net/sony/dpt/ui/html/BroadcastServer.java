@@ -0,0 +1,318 @@
+package net.sony.dpt.ui.html;
+
+import net.sony.util.LogWriter;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * The HTTP side of the whiteboard, on one selector thread whatever the number of viewers.
+ *
+ * Every frame is encoded once, and written from the same immutable arrays to all the streams. A viewer has at
+ * most one frame being written, and one waiting: a newer frame replaces the waiting one, so a slow viewer skips
+ * frames instead of queueing them, and never holds back the others. A tiles viewer who skipped a frame gets the
+ * next keyframe. Only what the frontend needs is spoken: one GET per connection, closed after the response.
+ */
+public class BroadcastServer {
+
+    private static final int MAX_REQUEST_SIZE = 8192;
+    private static final long TICK_MS = 1000;
+    // A still screen gets something this often, that's how we notice the viewers who left
+    private static final long KEEP_ALIVE_MS = 10_000;
+    private static final long FIRST_FRAME_TIMEOUT_MS = 5000;
+    private static final String BOUNDARY = "dptframe";
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SSE_KEEP_ALIVE = ": keep-alive\n\n".getBytes(StandardCharsets.US_ASCII);
+
+    private enum Route { TILES, STREAM, LAST_IMAGE, RESPONSE }
+
+    private static class Client {
+        private final SocketChannel channel;
+        private final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        private final Deque<ByteBuffer> output = new ArrayDeque<>();
+        private Route route;
+        private FrameChannel.Frame waiting;
+        private FrameChannel.Frame sent;
+        private long lastWriteAt;
+        private long connectedAt;
+
+        private Client(final SocketChannel channel) {
+            this.channel = channel;
+            this.connectedAt = System.currentTimeMillis();
+        }
+    }
+
+    private final FrameChannel frameChannel;
+    private final byte[] frontendHtml;
+    private final LogWriter logWriter;
+    private final List<Client> clients;
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private volatile FrameChannel.Frame latest;
+    private FrameChannel.Frame dispatched;
+    private FrameChannel.Frame mjpegHeaderFrame;
+    private byte[] mjpegHeader;
+
+    public BroadcastServer(final FrameChannel frameChannel, final String frontendHtml, final LogWriter logWriter) {
+        this.frameChannel = frameChannel;
+        this.frontendHtml = frontendHtml == null ? null : frontendHtml.getBytes(StandardCharsets.UTF_8);
+        this.logWriter = logWriter;
+        this.clients = new ArrayList<>();
+    }
+
+    /**
+     * @param port 0 for any free port
+     * @return The port we listen on
+     */
+    public int bind(int port) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("0.0.0.0", port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        new Thread(this::serve, "whiteboard-server").start();
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public void close() throws IOException {
+        if (serverChannel != null) serverChannel.close();
+        if (selector != null) selector.close();
+    }
+
+    /**
+     * Called from the capture, the frame goes out from the selector thread
+     */
+    public void publish(FrameChannel.Frame frame) {
+        latest = frame;
+        selector.wakeup();
+    }
+
+    private void serve() {
+        long lastTick = System.currentTimeMillis();
+        try {
+            while (selector.isOpen()) {
+                selector.select(TICK_MS);
+                if (!selector.isOpen()) return;
+
+                for (Iterator<SelectionKey> keys = selector.selectedKeys().iterator(); keys.hasNext(); ) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Client client = (Client) key.attachment();
+                    try {
+                        if (key.isReadable()) read(client, key);
+                        if (key.isValid() && key.isWritable()) flush(client, key);
+                    } catch (IOException e) {
+                        close(client, key);
+                    }
+                }
+
+                FrameChannel.Frame frame = latest;
+                if (frame != null && frame != dispatched) {
+                    dispatched = frame;
+                    dispatch(frame);
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastTick >= TICK_MS) {
+                    lastTick = now;
+                    tick(now);
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (serverChannel.isOpen()) logWriter.log("The whiteboard server stopped: " + e.getMessage());
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Client client = new Client(channel);
+            channel.register(selector, SelectionKey.OP_READ, client);
+            clients.add(client);
+        }
+    }
+
+    private void read(Client client, SelectionKey key) throws IOException {
+        if (client.route != null) {
+            // We don't expect anything more, but this is how we see them leave
+            ByteBuffer ignored = ByteBuffer.allocate(512);
+            if (client.channel.read(ignored) < 0) close(client, key);
+            return;
+        }
+
+        if (client.channel.read(client.request) < 0) {
+            close(client, key);
+            return;
+        }
+        String request = new String(client.request.array(), 0, client.request.position(), StandardCharsets.ISO_8859_1);
+        if (!request.contains("\r\n\r\n")) {
+            if (!client.request.hasRemaining()) respond(client, key, "431 Request Header Fields Too Large", null, null);
+            return;
+        }
+
+        String[] requestLine = request.substring(0, request.indexOf("\r\n")).split(" ");
+        if (requestLine.length < 2 || !"GET".equals(requestLine[0])) {
+            respond(client, key, "405 Method Not Allowed", null, null);
+            return;
+        }
+        String path = requestLine[1];
+        if (path.contains("?")) path = path.substring(0, path.indexOf('?'));
+
+        switch (path) {
+            case "/tiles":
+                startStream(client, key, Route.TILES, "text/event-stream");
+                break;
+            case "/stream":
+                startStream(client, key, Route.STREAM, "multipart/x-mixed-replace; boundary=" + BOUNDARY);
+                break;
+            case "/lastImage":
+                client.route = Route.LAST_IMAGE;
+                frameChannel.polled();
+                FrameChannel.Frame last = frameChannel.last();
+                // Otherwise the capture may have been paused, we give it the time to fetch one
+                if (last != null) respond(client, key, "200 OK", "image/jpeg", last.getJpeg());
+                break;
+            case "/frontend":
+                if (frontendHtml == null) respond(client, key, "500 Internal Server Error", null, null);
+                else respond(client, key, "200 OK", "text/html; charset=utf-8", frontendHtml);
+                break;
+            default:
+                respond(client, key, "404 Not Found", null, null);
+        }
+    }
+
+    private void startStream(Client client, SelectionKey key, Route route, String contentType) throws IOException {
+        client.route = route;
+        frameChannel.subscribe();
+        client.output.add(ByteBuffer.wrap(headers("200 OK", contentType, -1)));
+        client.waiting = frameChannel.last();
+        flush(client, key);
+    }
+
+    private void respond(Client client, SelectionKey key, String status, String contentType, byte[] body) throws IOException {
+        client.route = Route.RESPONSE;
+        client.output.add(ByteBuffer.wrap(headers(status, contentType, body == null ? 0 : body.length)));
+        if (body != null) client.output.add(ByteBuffer.wrap(body));
+        flush(client, key);
+    }
+
+    private static byte[] headers(String status, String contentType, long contentLength) {
+        StringBuilder headers = new StringBuilder("HTTP/1.1 ").append(status).append("\r\n");
+        if (contentType != null) headers.append("Content-Type: ").append(contentType).append("\r\n");
+        if (contentLength >= 0) headers.append("Content-Length: ").append(contentLength).append("\r\n");
+        headers.append("Cache-Control: no-cache\r\n");
+        headers.append("Connection: close\r\n\r\n");
+        return headers.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private void dispatch(FrameChannel.Frame frame) throws IOException {
+        for (Client client : new ArrayList<>(clients)) {
+            SelectionKey key = client.channel.keyFor(selector);
+            if (key == null || !key.isValid()) continue;
+            try {
+                if (client.route == Route.TILES || client.route == Route.STREAM) {
+                    // Whatever was waiting is stale now
+                    client.waiting = frame;
+                    flush(client, key);
+                } else if (client.route == Route.LAST_IMAGE) {
+                    respond(client, key, "200 OK", "image/jpeg", frame.getJpeg());
+                }
+            } catch (IOException e) {
+                close(client, key);
+            }
+        }
+    }
+
+    private void tick(long now) {
+        for (Client client : new ArrayList<>(clients)) {
+            SelectionKey key = client.channel.keyFor(selector);
+            if (key == null || !key.isValid()) continue;
+            try {
+                if (client.route == Route.LAST_IMAGE && now - client.connectedAt > FIRST_FRAME_TIMEOUT_MS) {
+                    respond(client, key, "500 Internal Server Error", null, null);
+                } else if ((client.route == Route.TILES || client.route == Route.STREAM)
+                        && client.output.isEmpty() && now - client.lastWriteAt > KEEP_ALIVE_MS) {
+                    if (client.route == Route.TILES) client.output.add(ByteBuffer.wrap(SSE_KEEP_ALIVE));
+                    else if (client.sent != null) client.output.addAll(mjpegPart(client.sent));
+                    flush(client, key);
+                } else if (client.route == null && now - client.connectedAt > KEEP_ALIVE_MS) {
+                    // Never sent a full request
+                    close(client, key);
+                }
+            } catch (IOException e) {
+                close(client, key);
+            }
+        }
+    }
+
+    /**
+     * Writes as much as the socket takes, without ever blocking
+     */
+    private void flush(Client client, SelectionKey key) throws IOException {
+        while (true) {
+            if (client.output.isEmpty()) {
+                if (client.waiting == null) break;
+                client.output.addAll(encode(client, client.waiting));
+                client.sent = client.waiting;
+                client.waiting = null;
+            }
+
+            client.channel.write(client.output.toArray(new ByteBuffer[0]));
+            client.lastWriteAt = System.currentTimeMillis();
+            while (!client.output.isEmpty() && !client.output.peek().hasRemaining()) client.output.poll();
+            if (!client.output.isEmpty()) {
+                // The viewer is slow, we'll continue when its socket drains
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+
+        if (client.route == Route.RESPONSE) {
+            close(client, key);
+        } else {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private List<ByteBuffer> encode(Client client, FrameChannel.Frame frame) {
+        if (client.route == Route.STREAM) return mjpegPart(frame);
+
+        // A delta only applies on top of the frame right before it
+        boolean delta = client.sent != null && frame.getSequence() == client.sent.getSequence() + 1 && frame.getDeltaEvent() != null;
+        byte[] event = delta ? frame.getDeltaEvent() : frame.getKeyframeEvent();
+        return event == null ? List.of() : List.of(ByteBuffer.wrap(event));
+    }
+
+    private List<ByteBuffer> mjpegPart(FrameChannel.Frame frame) {
+        if (frame != mjpegHeaderFrame) {
+            mjpegHeaderFrame = frame;
+            mjpegHeader = ("--" + BOUNDARY + "\r\n"
+                    + "Content-Type: image/jpeg\r\n"
+                    + "Content-Length: " + frame.getJpeg().length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+        return List.of(ByteBuffer.wrap(mjpegHeader), ByteBuffer.wrap(frame.getJpeg()), ByteBuffer.wrap(CRLF));
+    }
+
+    private void close(Client client, SelectionKey key) {
+        if (!clients.remove(client)) return;
+        if (client.route == Route.TILES || client.route == Route.STREAM) frameChannel.unsubscribe();
+        key.cancel();
+        try {
+            client.channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
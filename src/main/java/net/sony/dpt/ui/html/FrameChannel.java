@@ -0,0 +1,111 @@
+package net.sony.dpt.ui.html;
+
+/**
+ * The last frame captured from the device, handed to whoever is watching.
+ *
+ * Someone is watching while a stream is subscribed, or for a few seconds after a poll of /lastImage:
+ * the capture waits on awaitViewers() so that it doesn't load the device for nobody.
+ */
+public class FrameChannel {
+
+    // A client polling /lastImage counts as a viewer for this long
+    private static final long POLL_VIEWER_MS = 5000;
+
+    private final Object lock = new Object();
+    private Frame frame;
+    private int subscribers;
+    private long lastPolledAt;
+
+    public static class Frame {
+        private final long sequence;
+        private final byte[] jpeg;
+        private final byte[] keyframeEvent;
+        private final byte[] deltaEvent;
+
+        private Frame(final long sequence, final byte[] jpeg, final byte[] keyframeEvent, final byte[] deltaEvent) {
+            this.sequence = sequence;
+            this.jpeg = jpeg;
+            this.keyframeEvent = keyframeEvent;
+            this.deltaEvent = deltaEvent;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public byte[] getJpeg() {
+            return jpeg;
+        }
+
+        /**
+         * @return The whole frame, encoded once for all the tile viewers
+         */
+        public byte[] getKeyframeEvent() {
+            return keyframeEvent;
+        }
+
+        /**
+         * @return The changes from the previous frame, null if the viewers need the keyframe
+         */
+        public byte[] getDeltaEvent() {
+            return deltaEvent;
+        }
+    }
+
+    public Frame publish(byte[] jpeg) {
+        return publish(jpeg, null, null);
+    }
+
+    public Frame publish(byte[] jpeg, byte[] keyframeEvent, byte[] deltaEvent) {
+        synchronized (lock) {
+            frame = new Frame(frame == null ? 1 : frame.sequence + 1, jpeg, keyframeEvent, deltaEvent);
+            return frame;
+        }
+    }
+
+    /**
+     * @return The last frame, null if there is none yet
+     */
+    public Frame last() {
+        synchronized (lock) {
+            return frame;
+        }
+    }
+
+    public void subscribe() {
+        synchronized (lock) {
+            subscribers++;
+            lock.notifyAll();
+        }
+    }
+
+    public void unsubscribe() {
+        synchronized (lock) {
+            subscribers--;
+        }
+    }
+
+    public void polled() {
+        synchronized (lock) {
+            lastPolledAt = System.currentTimeMillis();
+            lock.notifyAll();
+        }
+    }
+
+    public boolean hasViewers() {
+        synchronized (lock) {
+            return subscribers > 0 || System.currentTimeMillis() - lastPolledAt < POLL_VIEWER_MS;
+        }
+    }
+
+    /**
+     * Blocks until someone is watching
+     */
+    public void awaitViewers() throws InterruptedException {
+        synchronized (lock) {
+            while (!hasViewers()) {
+                lock.wait();
+            }
+        }
+    }
+}
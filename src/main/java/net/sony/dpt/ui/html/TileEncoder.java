@@ -0,0 +1,133 @@
+package net.sony.dpt.ui.html;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits the frames in tiles and compares them with the previous frame, so that viewers only get what changed.
+ *
+ * The tiles are aligned on the 16 pixels JPEG blocks of the device: a part of the screen that didn't change
+ * decodes to the very same pixels. Changed tiles next to each other on a row are sent as one JPEG patch.
+ * Not thread safe, the capture loop owns it.
+ */
+public class TileEncoder {
+
+    public static final int TILE_SIZE = 64;
+    private static final float PATCH_QUALITY = 0.9f;
+
+    private int[] lastPixels;
+    private int lastWidth;
+    private int lastHeight;
+
+    public static class Patch {
+        private final int x;
+        private final int y;
+        private final byte[] image;
+
+        public Patch(final int x, final int y, final byte[] image) {
+            this.x = x;
+            this.y = y;
+            this.image = image;
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public int getY() {
+            return y;
+        }
+
+        public byte[] getImage() {
+            return image;
+        }
+    }
+
+    /**
+     * @return The patches from the previous frame to this one, or null if the viewers need the whole frame:
+     * there was no previous frame, its size changed, or the patches would weigh more than half of the frame
+     */
+    public List<Patch> encode(byte[] jpeg) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        if (image == null) throw new IOException("The frame is not a readable image");
+
+        List<Patch> patches = encode(image);
+        if (patches == null) return null;
+        long size = 0;
+        for (Patch patch : patches) size += patch.image.length;
+        return size > jpeg.length / 2 ? null : patches;
+    }
+
+    public List<Patch> encode(BufferedImage image) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+
+        List<Patch> patches = null;
+        if (lastPixels != null && width == lastWidth && height == lastHeight) {
+            patches = new ArrayList<>();
+            for (int y = 0; y < height; y += TILE_SIZE) {
+                int runStart = -1;
+                for (int x = 0; x < width; x += TILE_SIZE) {
+                    boolean changed = changed(pixels, x, y, width, height);
+                    if (changed && runStart < 0) runStart = x;
+                    if (!changed && runStart >= 0) {
+                        patches.add(patch(image, runStart, y, x - runStart));
+                        runStart = -1;
+                    }
+                }
+                if (runStart >= 0) patches.add(patch(image, runStart, y, width - runStart));
+            }
+        }
+
+        lastPixels = pixels;
+        lastWidth = width;
+        lastHeight = height;
+        return patches;
+    }
+
+    private boolean changed(int[] pixels, int x, int y, int width, int height) {
+        int tileWidth = Math.min(TILE_SIZE, width - x);
+        int tileHeight = Math.min(TILE_SIZE, height - y);
+        for (int row = y; row < y + tileHeight; row++) {
+            int from = row * width + x;
+            if (!Arrays.equals(pixels, from, from + tileWidth, lastPixels, from, from + tileWidth)) return true;
+        }
+        return false;
+    }
+
+    private Patch patch(BufferedImage image, int x, int y, int width) throws IOException {
+        int height = Math.min(TILE_SIZE, image.getHeight() - y);
+        return new Patch(x, y, toJpeg(image.getSubimage(x, y, width, height)));
+    }
+
+    private static byte[] toJpeg(BufferedImage image) throws IOException {
+        // The writer doesn't take alpha, and a sub image shares the raster of the whole frame
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(),
+                image.getType() == BufferedImage.TYPE_BYTE_GRAY ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB);
+        copy.getGraphics().drawImage(image, 0, 0, null);
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (ImageOutputStream imageOutput = ImageIO.createImageOutputStream(output)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(PATCH_QUALITY);
+            writer.setOutput(imageOutput);
+            writer.write(null, new IIOImage(copy, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return output.toByteArray();
+    }
+}
@@ -1,8 +1,7 @@
 package net.sony.dpt.ui.html;
 
-import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpHandler;
-import com.sun.net.httpserver.HttpServer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.sony.dpt.command.device.FramePoller;
 import net.sony.dpt.command.device.TakeScreenshotCommand;
 import net.sony.dpt.ui.gui.whiteboard.Orientation;
 import net.sony.util.LogWriter;
@@ -10,115 +9,113 @@ import org.apache.commons.io.IOUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.nio.charset.StandardCharsets;
-import java.util.Base64;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-
-public class WhiteboardBackend implements HttpHandler {
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves the screen of the DPT to browsers, see BroadcastServer:
+ *  /tiles     server-sent events: a keyframe on connection, then only the tiles that changed, see TileEncoder
+ *  /stream    multipart MJPEG, a part is pushed for every new frame
+ *  /lastImage the last frame, as a plain JPEG
+ *  /frontend  the page showing the tiles
+ * We only capture while someone is watching, and only push the frames that changed.
+ */
+public class WhiteboardBackend {
 
     private final TakeScreenshotCommand takeScreenshotCommand;
-    private String lastScreenshotBase64;
-    private final Object screenshotLock;
-    private String frontendHtml;
+    private final FrameChannel frameChannel;
+    private final TileEncoder tileEncoder;
+    private final ObjectMapper objectMapper;
+    private final BroadcastServer broadcastServer;
 
     private final LogWriter logWriter;
 
     public WhiteboardBackend(final TakeScreenshotCommand takeScreenshotCommand, final LogWriter logWriter, Orientation orientation) throws IOException {
         this.logWriter = logWriter;
         this.takeScreenshotCommand = takeScreenshotCommand;
-        this.screenshotLock = new Object();
+        this.frameChannel = new FrameChannel();
+        this.tileEncoder = new TileEncoder();
+        this.objectMapper = new ObjectMapper();
 
+        String frontendHtml = null;
         String resource = orientation == Orientation.PORTRAIT ? "whiteboard/frontend-portrait.html" : "whiteboard/frontend-landscape.html";
         try (InputStream frontendHtmlStream = WhiteboardBackend.class.getClassLoader().getResourceAsStream(resource)) {
             if (frontendHtmlStream != null) {
-                this.frontendHtml = IOUtils.toString(frontendHtmlStream, StandardCharsets.UTF_8);
+                frontendHtml = IOUtils.toString(frontendHtmlStream, StandardCharsets.UTF_8);
             }
         }
+        this.broadcastServer = new BroadcastServer(frameChannel, frontendHtml, logWriter);
     }
 
     /**
      * Open a server distributing both screenshot from the DPT and an html frontend to read them
+     *
+     * @param port 0 for any free port
+     * @return The port we listen on
      */
-    public void bind(int port) throws IOException {
-        logWriter.log("We will open a new server binding on 0.0.0.0:" + port);
-
-        HttpServer server = HttpServer.create(new InetSocketAddress("0.0.0.0", port), 0);
-        server.createContext("/lastImage", this);
-        server.createContext("/frontend", this);
-        server.setExecutor(Executors.newFixedThreadPool(10));
-        server.start();
+    public int bind(int port) throws IOException {
+        int boundPort = broadcastServer.bind(port);
+        logWriter.log("We opened a new server binding on 0.0.0.0:" + boundPort);
 
-        logWriter.log("We will regularly poll the DPT for new image data... press Ctrl+C to stop the server");
-        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
-        executor.scheduleAtFixedRate(() -> {
-            try(InputStream imageStream = takeScreenshotCommand.fastScreenshot()) {
-                writeLastScreenshotBase64(IOUtils.toByteArray(imageStream));
-            } catch (IOException | InterruptedException ignored) {
-            }
-        }, 0, 500, TimeUnit.MILLISECONDS);
+        logWriter.log("We will poll the DPT for new image data while someone is watching... press Ctrl+C to stop the server");
+        new Thread(this::capture, "whiteboard-capture").start();
+        return boundPort;
     }
 
     public int bind() throws IOException {
-        ServerSocket serverSocket = new ServerSocket(0);
-        int port = serverSocket.getLocalPort();
-        serverSocket.close();
-        bind(port);
-        return port;
-    }
-
-    public String getLastScreenshotBase64() {
-        synchronized (screenshotLock) {
-            return lastScreenshotBase64;
-        }
+        return bind(0);
     }
 
-    public void writeLastScreenshotBase64(byte[] jpegContent) {
-        String temp = Base64.getEncoder().encodeToString(jpegContent);
-        if (temp != null) {
-            synchronized (screenshotLock) {
-                lastScreenshotBase64 = temp;
+    private void capture() {
+        FramePoller framePoller = new FramePoller(takeScreenshotCommand::fastScreenshot);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                frameChannel.awaitViewers();
+                long delay;
+                try {
+                    delay = framePoller.poll(this::publish);
+                } catch (IOException e) {
+                    delay = framePoller.idle();
+                }
+                Thread.sleep(delay);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    @Override
-    public void handle(HttpExchange httpExchange) throws IOException {
-        if (!"GET".equals(httpExchange.getRequestMethod())) return;
-
-        switch (httpExchange.getRequestURI().getPath()) {
-            case "/lastImage":
-                String lastImage = getLastScreenshotBase64();
-                if (lastImage == null || lastImage.isEmpty()) {
-                    error(httpExchange);
-                } else {
-                    httpExchange.getResponseHeaders().add("content-type", "image/jpeg");
-                    writeString(httpExchange, lastImage);
-                }
-                break;
-            case "/frontend":
-                writeString(httpExchange, frontendHtml);
-                break;
-            default:
-                error(httpExchange);
+    /**
+     * Encodes the frame once for all the viewers, whatever they watch
+     */
+    private void publish(byte[] jpeg) throws IOException {
+        List<TileEncoder.Patch> patches;
+        try {
+            patches = tileEncoder.encode(jpeg);
+        } catch (IOException e) {
+            patches = null;
         }
-    }
 
-    public void error(HttpExchange httpExchange) throws IOException {
-        httpExchange.sendResponseHeaders(500, 0);
+        byte[] keyframeEvent = tilesEvent(true, List.of(new TileEncoder.Patch(0, 0, jpeg)));
+        byte[] deltaEvent = patches == null ? null : tilesEvent(false, patches);
+        broadcastServer.publish(frameChannel.publish(jpeg, keyframeEvent, deltaEvent));
     }
 
-    public void writeString(HttpExchange httpExchange, String content) throws IOException {
-        if (content == null) {
-            error(httpExchange);
-            return;
+    private byte[] tilesEvent(boolean keyframe, List<TileEncoder.Patch> patches) throws IOException {
+        List<Map<String, Object>> tiles = new ArrayList<>();
+        for (TileEncoder.Patch patch : patches) {
+            Map<String, Object> tile = new HashMap<>();
+            tile.put("x", patch.getX());
+            tile.put("y", patch.getY());
+            // Base64 by Jackson
+            tile.put("image", patch.getImage());
+            tiles.add(tile);
         }
-        httpExchange.sendResponseHeaders(200, content.length());
-        httpExchange.getResponseBody().write(content.getBytes());
-        httpExchange.getResponseBody().flush();
-        httpExchange.getResponseBody().close();
+        Map<String, Object> event = new HashMap<>();
+        event.put("keyframe", keyframe);
+        event.put("tiles", tiles);
+        return ("data: " + objectMapper.writeValueAsString(event) + "\n\n").getBytes(StandardCharsets.UTF_8);
     }
 }
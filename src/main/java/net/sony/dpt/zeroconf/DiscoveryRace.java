@@ -0,0 +1,72 @@
+package net.sony.dpt.zeroconf;
+
+import net.sony.util.LogWriter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Runs all the ways we know to find the device at once, and keeps the first one answering.
+ * The others are interrupted: their sockets and JmDNS instances are closed as soon as we have a winner.
+ */
+public class DiscoveryRace {
+
+    /**
+     * @return The address of the device, or null if this probe did not find it
+     */
+    @FunctionalInterface
+    public interface Probe {
+        String probe() throws Exception;
+    }
+
+    private final LogWriter logWriter;
+    private final Map<String, Probe> probes;
+
+    public DiscoveryRace(final LogWriter logWriter) {
+        this.logWriter = logWriter;
+        this.probes = new LinkedHashMap<>();
+    }
+
+    public DiscoveryRace add(String name, Probe probe) {
+        probes.putIfAbsent(name, probe);
+        return this;
+    }
+
+    /**
+     * @return The address from the first probe succeeding, null if none did within the timeout
+     */
+    public String run(long timeoutMs) throws InterruptedException {
+        if (probes.isEmpty()) return null;
+
+        ExecutorService executor = Executors.newFixedThreadPool(probes.size(), runnable -> {
+            Thread thread = new Thread(runnable, "discovery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        CompletionService<String[]> completionService = new ExecutorCompletionService<>(executor);
+        try {
+            for (Map.Entry<String, Probe> probe : probes.entrySet()) {
+                completionService.submit(() -> new String[]{probe.getKey(), probe.getValue().probe()});
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            for (int pending = probes.size(); pending > 0; pending--) {
+                Future<String[]> done = completionService.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (done == null) return null;
+                try {
+                    String[] result = done.get();
+                    if (result[1] != null && !result[1].isEmpty()) {
+                        logWriter.log("Found a Digital Paper at " + result[1] + " (" + result[0] + ")");
+                        return result[1];
+                    }
+                } catch (ExecutionException ignored) {
+                    // This probe failed, the others may still succeed
+                }
+            }
+            return null;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
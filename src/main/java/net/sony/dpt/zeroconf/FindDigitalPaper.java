@@ -1,6 +1,5 @@
 package net.sony.dpt.zeroconf;
 
-import net.sony.dpt.command.ping.PingCommand;
 import net.sony.dpt.persistence.DeviceInfoStore;
 import net.sony.util.LogWriter;
 import net.sony.dpt.network.SimpleHttpClient;
@@ -11,11 +10,11 @@ import javax.jmdns.ServiceListener;
 import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.*;
 
 public class FindDigitalPaper {
     public final static String ZEROCONF_HOST = "digitalpaper.local";
@@ -23,11 +22,19 @@ public class FindDigitalPaper {
     private final static String SERVICE_TYPE = "_digitalpaper._tcp.local.";
     private static final String BIND_IP = "0.0.0.0";
     private static final String SERVICE_NAME = "Digital Paper DPT-RP1";
+    private static final int DISCOVERY_TIMEOUT_MS = 20000;
+    // How long we give digitalpaper.local to resolve once another probe already found the device
+    private static final int ZEROCONF_GRACE_MS = 300;
+    private static final int INSECURE_PORT = 8080;
+    private static final String SERIAL_NUMBER_URL = "/register/serial_number";
+    // The device's own address on a Bluetooth PAN and on USB ethernet
+    private static final String[] DEFAULT_ADDRESSES = {"172.25.47.1", "203.0.113.1"};
     private final LogWriter logWriter;
     private final DigitalPaperServiceListener digitalPaperServiceListener;
     private final DeviceInfoStore deviceInfoStore;
     private final String cliMatchSerial;
     private final String cliAddr;
+    private final SimpleHttpClient simpleHttpClient;
 
     public FindDigitalPaper(LogWriter logWriter,
                             DeviceInfoStore deviceInfoStore,
@@ -38,6 +45,7 @@ public class FindDigitalPaper {
         this.deviceInfoStore = deviceInfoStore;
         this.cliAddr = addr;
         this.cliMatchSerial = matchSerial;
+        this.simpleHttpClient = simpleHttpClient;
         digitalPaperServiceListener = new DigitalPaperServiceListener(logWriter, simpleHttpClient, matchSerial);
     }
 
@@ -48,20 +56,21 @@ public class FindDigitalPaper {
         // Add a service listener
         jmdns.addServiceListener(SERVICE_TYPE, digitalPaperServiceListener);
 
-        // Wait a bit
-        int currentWaitTime = 0;
-        while (currentWaitTime < timeoutMs) {
-            if (stopOnFirstIpv4Found && digitalPaperServiceListener.ipv4Found()) {
+        // Wait a bit, when racing other probes we get interrupted and must not leave JmDNS running
+        try {
+            int currentWaitTime = 0;
+            while (currentWaitTime < timeoutMs) {
+                if (stopOnFirstIpv4Found && digitalPaperServiceListener.ipv4Found()) {
+                    return digitalPaperServiceListener.firstIpv4Found();
+                }
 
-                kill(jmdns);
-                return digitalPaperServiceListener.firstIpv4Found();
+                Thread.sleep(TIMEOUT_SLICES_MS);
+                currentWaitTime += TIMEOUT_SLICES_MS;
             }
-
-            Thread.sleep(TIMEOUT_SLICES_MS);
-            currentWaitTime += TIMEOUT_SLICES_MS;
+        } finally {
+            kill(jmdns);
         }
 
-        kill(jmdns);
         digitalPaperServiceListener.digitalPapersDiscovered.forEach((inetAddress, ignored) -> logWriter.log("Ready to connect to " + inetAddress));
         return digitalPaperServiceListener.digitalPapersDiscovered;
     }
@@ -72,12 +81,11 @@ public class FindDigitalPaper {
     }
 
     public String findOneIpv4() throws IOException, InterruptedException {
-        Map<InetAddress, ServiceEvent> inetAddresses = find(20000, true);
+        Map<InetAddress, ServiceEvent> inetAddresses = find(DISCOVERY_TIMEOUT_MS, true);
         if (!inetAddresses.isEmpty()) {
             for (InetAddress inetAddress : inetAddresses.keySet()) {
                 if (inetAddress instanceof Inet4Address) {
                     Inet4Address inet4Address = (Inet4Address) inetAddress;
-                    logWriter.log("Found a Digital Paper at " + inet4Address.getHostAddress());
                     return inet4Address.getHostAddress();
                 }
             }
@@ -158,26 +166,67 @@ public class FindDigitalPaper {
 
     private String findAddress(DeviceInfoStore deviceInfoStore, LogWriter logWriter, String address, String serial) throws IOException, InterruptedException {
         String addr;
+        CompletableFuture<String> zeroconfIp = resolveZeroconf();
         if (address != null && !address.isEmpty()) {
             addr = address;
         } else {
-            // Before trying autoconfig, we can try loading the last ip
-            String lastIp = deviceInfoStore.retrieveLastIp();
-            if (lastIp != null && new PingCommand().ping(lastIp)) {
-                addr = lastIp;
-            } else {
-                addr = findOneIpv4();
-            }
+            addr = race(deviceInfoStore.retrieveLastIp(), zeroconfIp);
         }
         if (addr == null || addr.isEmpty()) throw new IllegalStateException("No device found or reachable.");
         // We store the last address
+        if (ZEROCONF_HOST.equals(addr)) {
+            deviceInfoStore.storeLastIp(zeroconfIp.getNow(addr));
+            return addr;
+        }
         deviceInfoStore.storeLastIp(addr);
 
-        // We test if the zeroconf digitalpaper.local is setup
+        // We test if the zeroconf digitalpaper.local is setup, it allows to check the device certificate
         try {
-            String zeroconfIp = new PingCommand().pingAndResolve(FindDigitalPaper.ZEROCONF_HOST);
-            if (addr.equals(zeroconfIp)) return FindDigitalPaper.ZEROCONF_HOST;
-        } catch (Exception ignored) {}
+            if (addr.equals(zeroconfIp.get(ZEROCONF_GRACE_MS, TimeUnit.MILLISECONDS))) return ZEROCONF_HOST;
+        } catch (ExecutionException | TimeoutException ignored) {
+        } finally {
+            zeroconfIp.cancel(true);
+        }
         return addr;
     }
+
+    /**
+     * Everything at once: the last address, digitalpaper.local, the fixed Bluetooth and USB addresses, and JmDNS.
+     * Before, each step waited for the previous one to fail, up to tens of seconds when the address had changed.
+     */
+    private String race(String lastIp, CompletableFuture<String> zeroconfIp) throws InterruptedException {
+        DiscoveryRace discoveryRace = new DiscoveryRace(logWriter);
+        if (lastIp != null && !lastIp.isEmpty()) {
+            discoveryRace.add("last known address", () -> isDigitalPaper(lastIp) ? lastIp : null);
+        }
+        discoveryRace.add(ZEROCONF_HOST, () -> isDigitalPaper(zeroconfIp.get()) ? ZEROCONF_HOST : null);
+        for (String defaultAddress : DEFAULT_ADDRESSES) {
+            discoveryRace.add(defaultAddress, () -> isDigitalPaper(defaultAddress) ? defaultAddress : null);
+        }
+        discoveryRace.add("mDNS", this::findOneIpv4);
+        return discoveryRace.run(DISCOVERY_TIMEOUT_MS);
+    }
+
+    private static CompletableFuture<String> resolveZeroconf() {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return InetAddress.getByName(ZEROCONF_HOST).getHostAddress();
+            } catch (UnknownHostException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Only a Digital Paper answers this, with its serial number: better than a ping, which any host could answer
+     */
+    private boolean isDigitalPaper(String address) {
+        String host = address.contains(":") ? "[" + address + "]" : address;
+        try {
+            String serialNumber = simpleHttpClient.get("http://" + host + ":" + INSECURE_PORT + SERIAL_NUMBER_URL);
+            return cliMatchSerial == null || cliMatchSerial.isEmpty() || cliMatchSerial.equals(serialNumber);
+        } catch (Exception e) {
+            return false;
+        }
+    }
 }
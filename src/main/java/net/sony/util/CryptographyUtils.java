@@ -117,13 +117,19 @@ public class CryptographyUtils {
     }
 
     public byte[] decryptAES(byte[] data, byte[] key, byte[] iv) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        return decryptAESCipher(key, iv).doFinal(data);
+    }
+
+    /**
+     * For decrypting a stream, with a CipherInputStream
+     */
+    public Cipher decryptAESCipher(byte[] key, byte[] iv) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException {
         AlgorithmParameterSpec ivSpec = new IvParameterSpec(iv);
         SecretKeySpec skey = new SecretKeySpec(key, "AES");
 
         Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
         cipher.init(Cipher.DECRYPT_MODE, skey, ivSpec);
-
-        return cipher.doFinal(data);
+        return cipher;
     }
 
     public byte[] unwrap(byte[] data, byte[] authKey, byte[] keyWrapKey) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
@@ -215,12 +221,20 @@ public class CryptographyUtils {
 
     public boolean verifySignature(byte[] input, byte[] signature, PublicKey publicKey) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
 
-        Signature sig = Signature.getInstance("SHA256withRSA");
-        sig.initVerify(publicKey);
+        Signature sig = signatureVerifier(publicKey);
         sig.update(input);
         return sig.verify(signature);
     }
 
+    /**
+     * For verifying a signature as the input goes by: update() with every chunk, then verify()
+     */
+    public Signature signatureVerifier(PublicKey publicKey) throws NoSuchAlgorithmException, InvalidKeyException {
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initVerify(publicKey);
+        return sig;
+    }
+
     public byte[] decryptRsa(PrivateKey privateKey, byte[] data) throws NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, IllegalBlockSizeException, InvalidKeyException {
         Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
         cipher.init(Cipher.DECRYPT_MODE, privateKey);
@@ -1,6 +1,10 @@
 package net.sony.util;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -18,4 +22,21 @@ public class HashUtils {
 
     }
 
+    /**
+     * Streams the file through the digest, so hashing a big pdf does not load it in memory
+     */
+    public static String sha256Hex(final Path file) throws IOException {
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            return ByteUtils.bytesToHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Are you running this on a computer or a coffee machine ?", e);
+        }
+    }
+
 }
@@ -14,5 +14,34 @@ public class HttpUtils {
     public static final String DELETE = "DELETE";
 
     public static final String CONTENT_TYPE = "Content-Type";
+    public static final String CONTENT_LENGTH = "Content-Length";
+    public static final String CONTENT_RANGE = "Content-Range";
+    public static final String RANGE = "Range";
+
+    public static final int PARTIAL_CONTENT = 206;
+    public static final int RANGE_NOT_SATISFIABLE = 416;
+
+    /**
+     * @param to The last byte included, or a negative value to read until the end
+     */
+    public static String range(long from, long to) {
+        return "bytes=" + from + "-" + (to < 0 ? "" : String.valueOf(to));
+    }
+
+    /**
+     * @return The full size of the resource, from the Content-Range of a partial response or the Content-Length
+     * of a complete one, -1 if the server did not tell
+     */
+    public static <T> long totalLength(HttpResponse<T> response) {
+        if (response.statusCode() == PARTIAL_CONTENT) {
+            String contentRange = response.headers().firstValue(CONTENT_RANGE).orElse("");
+            int slash = contentRange.lastIndexOf('/');
+            if (slash >= 0 && !contentRange.endsWith("*")) {
+                return Long.parseLong(contentRange.substring(slash + 1).strip());
+            }
+            return -1;
+        }
+        return response.headers().firstValueAsLong(CONTENT_LENGTH).orElse(-1);
+    }
 
 }
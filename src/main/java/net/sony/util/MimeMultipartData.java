@@ -1,20 +1,28 @@
 package net.sony.util;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
 import java.math.BigInteger;
 import java.net.http.HttpRequest;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 
 public class MimeMultipartData {
 
     private String boundary;
+    private long contentLength;
     private HttpRequest.BodyPublisher bodyPublisher;
 
     private MimeMultipartData() {
@@ -32,11 +40,24 @@ public class MimeMultipartData {
         return "multipart/form-data; boundary=" + boundary;
     }
 
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Opens the content of a part, called again for every attempt at sending the body
+     */
+    @FunctionalInterface
+    public interface StreamSupplier {
+        InputStream open() throws IOException;
+    }
+
     public static class Builder {
 
         private final String boundary;
         private final List<MimedFile> files = new ArrayList<>();
         private final List<MimedBytes> blobs = new ArrayList<>();
+        private final List<MimedStream> streams = new ArrayList<>();
         private Charset charset = StandardCharsets.UTF_8;
 
         private Builder() {
@@ -58,39 +79,81 @@ public class MimeMultipartData {
             return this;
         }
 
+        public Builder addStream(String name, String fileName, StreamSupplier content, long length, String mimeType) {
+            this.streams.add(new MimedStream(name, fileName, content, length, mimeType));
+            return this;
+        }
+
+        private byte[] partHeader(String name, String fileName, String mimeType) {
+            return ("--" + boundary + "\r\n"
+                    + "Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + fileName + "\"\r\n"
+                    + "Content-Type: " + mimeType + "\r\n"
+                    + "\r\n").getBytes(charset);
+        }
+
+        /**
+         * The body is never materialized: the publisher chains the part headers, the files read from
+         * their FileChannel and the trailer, so uploading a 300MB pdf costs a few buffers of heap.
+         * The content length is computed upfront so the device still receives a non-chunked request.
+         */
         public MimeMultipartData build() throws IOException {
             MimeMultipartData mimeMultipartData = new MimeMultipartData();
             mimeMultipartData.boundary = boundary;
 
-            var newline = "\r\n".getBytes(charset);
-            var byteArrayOutputStream = new ByteArrayOutputStream();
-            for (var f : files) {
-                byteArrayOutputStream.write(("--" + boundary).getBytes(charset));
-                byteArrayOutputStream.write(newline);
-                byteArrayOutputStream.write(("Content-Disposition: form-data; name=\"" + f.name + "\"; filename=\"" + f.path.getFileName() + "\"").getBytes(charset));
-                byteArrayOutputStream.write(newline);
-                byteArrayOutputStream.write(("Content-Type: " + f.mimeType).getBytes(charset));
-                byteArrayOutputStream.write(newline);
-                byteArrayOutputStream.write(newline);
-                byteArrayOutputStream.write(Files.readAllBytes(f.path));
-                byteArrayOutputStream.write(newline);
+            byte[] newline = "\r\n".getBytes(charset);
+            byte[] trailer = ("--" + boundary + "--").getBytes(charset);
+
+            List<byte[]> fileHeaders = new ArrayList<>();
+            long contentLength = trailer.length;
+            for (MimedFile f : files) {
+                byte[] header = partHeader(f.name, f.path.getFileName().toString(), f.mimeType);
+                fileHeaders.add(header);
+                contentLength += header.length + Files.size(f.path) + newline.length;
             }
 
-            for (var b : blobs) {
-                byteArrayOutputStream.write(("--" + boundary).getBytes(charset));
-                byteArrayOutputStream.write(newline);
-                byteArrayOutputStream.write(("Content-Disposition: form-data; name=\"" + b.name + "\"; filename=\"" + b.fileName + "\"").getBytes(charset));
-                byteArrayOutputStream.write(newline);
-                byteArrayOutputStream.write(("Content-Type: " + b.mimeType).getBytes(charset));
-                byteArrayOutputStream.write(newline);
-                byteArrayOutputStream.write(newline);
-                byteArrayOutputStream.write(b.content);
-                byteArrayOutputStream.write(newline);
+            List<byte[]> blobHeaders = new ArrayList<>();
+            for (MimedBytes b : blobs) {
+                byte[] header = partHeader(b.name, b.fileName, b.mimeType);
+                blobHeaders.add(header);
+                contentLength += header.length + b.content.length + newline.length;
             }
 
-            byteArrayOutputStream.write(("--" + boundary + "--").getBytes(charset));
+            List<byte[]> streamHeaders = new ArrayList<>();
+            for (MimedStream m : streams) {
+                byte[] header = partHeader(m.name, m.fileName, m.mimeType);
+                streamHeaders.add(header);
+                contentLength += header.length + m.length + newline.length;
+            }
 
-            mimeMultipartData.bodyPublisher = HttpRequest.BodyPublishers.ofByteArray(byteArrayOutputStream.toByteArray());
+            // The supplier may be called more than once (e.g. on retry), each call opens fresh channels
+            HttpRequest.BodyPublisher streamPublisher = HttpRequest.BodyPublishers.ofInputStream(() -> {
+                List<InputStream> parts = new ArrayList<>();
+                try {
+                    for (int i = 0; i < files.size(); i++) {
+                        parts.add(new ByteArrayInputStream(fileHeaders.get(i)));
+                        parts.add(Channels.newInputStream(FileChannel.open(files.get(i).path, StandardOpenOption.READ)));
+                        parts.add(new ByteArrayInputStream(newline));
+                    }
+                    for (int i = 0; i < streams.size(); i++) {
+                        parts.add(new ByteArrayInputStream(streamHeaders.get(i)));
+                        parts.add(streams.get(i).content.open());
+                        parts.add(new ByteArrayInputStream(newline));
+                    }
+                } catch (IOException e) {
+                    parts.forEach(MimeMultipartData::closeQuietly);
+                    throw new UncheckedIOException(e);
+                }
+                for (int i = 0; i < blobs.size(); i++) {
+                    parts.add(new ByteArrayInputStream(blobHeaders.get(i)));
+                    parts.add(new ByteArrayInputStream(blobs.get(i).content));
+                    parts.add(new ByteArrayInputStream(newline));
+                }
+                parts.add(new ByteArrayInputStream(trailer));
+                return new SequenceInputStream(Collections.enumeration(parts));
+            });
+
+            mimeMultipartData.contentLength = contentLength;
+            mimeMultipartData.bodyPublisher = HttpRequest.BodyPublishers.fromPublisher(streamPublisher, contentLength);
             return mimeMultipartData;
         }
 
@@ -107,6 +170,23 @@ public class MimeMultipartData {
             }
         }
 
+        public static class MimedStream {
+
+            public final String name;
+            public final String fileName;
+            public final StreamSupplier content;
+            public final long length;
+            public final String mimeType;
+
+            public MimedStream(String name, String fileName, StreamSupplier content, long length, String mimeType) {
+                this.name = name;
+                this.fileName = fileName;
+                this.content = content;
+                this.length = length;
+                this.mimeType = mimeType;
+            }
+        }
+
         public static class MimedBytes {
 
             public final String name;
@@ -123,4 +203,11 @@ public class MimeMultipartData {
         }
     }
 
+    private static void closeQuietly(InputStream inputStream) {
+        try {
+            inputStream.close();
+        } catch (IOException ignored) {
+        }
+    }
+
 }
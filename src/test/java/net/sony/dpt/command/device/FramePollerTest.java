@@ -0,0 +1,30 @@
+package net.sony.dpt.command.device;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class FramePollerTest {
+
+    @Test
+    public void dropsUnchangedFramesAndBacksOff() throws Exception {
+        byte[][] screens = {{1}, {1}, {1}, {1}, {1}, {2}};
+        int[] next = {0};
+        FramePoller framePoller = new FramePoller(() -> new ByteArrayInputStream(screens[next[0]++]), 100, 500);
+
+        List<byte[]> frames = new ArrayList<>();
+        List<Long> delays = new ArrayList<>();
+        for (int i = 0; i < screens.length; i++) {
+            delays.add(framePoller.poll(frames::add));
+        }
+
+        assertThat(frames.size(), is(2));
+        assertThat(frames.get(1)[0], is((byte) 2));
+        assertThat(delays, is(List.of(100L, 200L, 400L, 500L, 500L, 100L)));
+    }
+}
@@ -0,0 +1,43 @@
+package net.sony.dpt.command.device;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Path;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ScreenshotBurstTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void framesAreNumberedNextToTheTarget() {
+        Path target = Path.of("/tmp/notes.png");
+        assertThat(ScreenshotBurst.framePath(target, 1), is(Path.of("/tmp/notes-00001.png")));
+        assertThat(ScreenshotBurst.framePath(Path.of("/tmp/notes"), 42), is(Path.of("/tmp/notes-00042.png")));
+    }
+
+    @Test
+    public void everyFrameIsWrittenAsPng() throws Exception {
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB), "jpg", jpeg);
+
+        Path target = temporaryFolder.getRoot().toPath().resolve("notes.png");
+        int written = new ScreenshotBurst(() -> new ByteArrayInputStream(jpeg.toByteArray()), 2, message -> {})
+                .capture(target, 12, 0);
+
+        assertThat(written, is(12));
+        for (int i = 1; i <= 12; i++) {
+            BufferedImage frame = ImageIO.read(ScreenshotBurst.framePath(target, i).toFile());
+            assertThat(frame.getWidth(), is(40));
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package net.sony.dpt.command.documents;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class EntryIdCacheTest {
+
+    private static final Path DOCUMENT = Path.of("Document/Computer Science/3a4a16c8-7b1f-4e87-8fbb-ebc8e9cd9e66hidden.pdf");
+
+    private EntryIdCache entryIdCache;
+
+    @Before
+    public void setup() throws IOException {
+        String pdf_list = new String(getClass().getClassLoader().getResourceAsStream("pdf_list.json").readAllBytes());
+        entryIdCache = new EntryIdCache();
+        entryIdCache.seed(DocumentCommand.fromJson(pdf_list).getEntryList());
+    }
+
+    @Test
+    public void seedingKnowsDocumentsAndTheirFolders() {
+        assertThat(entryIdCache.get(DOCUMENT), is("3a4a16c8-7b1f-4e87-8fbb-ebc8e9cd9e66"));
+        assertThat(entryIdCache.get(DOCUMENT.getParent()), is("d6450eb3-6845-4c0e-94e3-b1772a8dd6a5"));
+        assertThat(entryIdCache.get(Path.of("Document/Unknown.pdf")), is(nullValue()));
+
+        assertThat(entryIdCache.getHits(), is(2L));
+        assertThat(entryIdCache.getMisses(), is(1L));
+    }
+
+    @Test
+    public void moveKeepsIdsUnderTheNewPath() {
+        Path renamed = Path.of("Document/CS");
+        entryIdCache.moved(DOCUMENT.getParent(), renamed);
+
+        assertThat(entryIdCache.contains(DOCUMENT), is(false));
+        assertThat(entryIdCache.get(renamed.resolve(DOCUMENT.getFileName())), is("3a4a16c8-7b1f-4e87-8fbb-ebc8e9cd9e66"));
+        assertThat(entryIdCache.get(renamed), is("d6450eb3-6845-4c0e-94e3-b1772a8dd6a5"));
+    }
+
+    @Test
+    public void invalidateForgetsTheWholeSubtree() {
+        entryIdCache.invalidate(DOCUMENT.getParent());
+
+        assertThat(entryIdCache.contains(DOCUMENT.getParent()), is(false));
+        assertThat(entryIdCache.contains(DOCUMENT), is(false));
+    }
+
+}
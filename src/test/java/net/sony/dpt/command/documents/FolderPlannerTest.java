@@ -0,0 +1,58 @@
+package net.sony.dpt.command.documents;
+
+import net.sony.dpt.error.SonyException;
+import net.sony.dpt.network.DigitalPaperEndpoint;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.*;
+
+public class FolderPlannerTest {
+
+    @Test
+    public void planListsEachFolderOnceParentsFirst() {
+        List<Path> folders = new ArrayList<>(FolderPlanner.plan(List.of(
+                Path.of("Document/Papers/2020/b.pdf"),
+                Path.of("Document/Papers/2020/a.pdf"),
+                Path.of("Document/Papers/2019/c.pdf"),
+                Path.of("Document/Books/d.pdf")
+        )));
+
+        assertThat(folders, is(List.of(
+                Path.of("Document"),
+                Path.of("Document/Books"),
+                Path.of("Document/Papers"),
+                Path.of("Document/Papers/2019"),
+                Path.of("Document/Papers/2020")
+        )));
+    }
+
+    @Test
+    public void aFolderDeletedOnTheDeviceIsCreatedAgain() throws Exception {
+        DigitalPaperEndpoint digitalPaperEndpoint = mock(DigitalPaperEndpoint.class);
+        EntryIdCache entryIdCache = new EntryIdCache();
+        entryIdCache.put(Path.of("Document"), "root-doc");
+        entryIdCache.put(Path.of("Document/A"), "stale");
+
+        when(digitalPaperEndpoint.createDirectory(Path.of("Document/A/B"), "stale"))
+                .thenThrow(new SonyException("40401", "not found"));
+        when(digitalPaperEndpoint.resolveObjectByPath(Path.of("Document"))).thenReturn("root-doc");
+        when(digitalPaperEndpoint.createDirectory(Path.of("Document/A"), "root-doc")).thenReturn("fresh-a");
+        when(digitalPaperEndpoint.createDirectory(Path.of("Document/A/B"), "fresh-a")).thenReturn("fresh-b");
+
+        Map<Path, String> folderIds = new FolderPlanner(digitalPaperEndpoint, entryIdCache)
+                .createFolders(List.of(Path.of("Document/A/B/c.pdf")));
+
+        assertThat(folderIds.get(Path.of("Document/A")), is("fresh-a"));
+        assertThat(folderIds.get(Path.of("Document/A/B")), is("fresh-b"));
+        assertThat(entryIdCache.get(Path.of("Document/A")), is("fresh-a"));
+        verify(digitalPaperEndpoint).resolveObjectByPath(Path.of("Document/A"));
+    }
+
+}
@@ -0,0 +1,101 @@
+package net.sony.dpt.command.print;
+
+import net.sony.dpt.command.ping.PingCommand;
+import net.sony.dpt.persistence.PrintQueueStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.*;
+
+public class PrintServerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static int post(int port, String token, String name, byte[] pdf) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/print").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("X-Dpt-Token", token);
+        connection.setRequestProperty("X-File-Name", name);
+        try (OutputStream outputStream = connection.getOutputStream()) {
+            outputStream.write(pdf);
+        }
+        int status = connection.getResponseCode();
+        connection.disconnect();
+        return status;
+    }
+
+    @Test
+    public void aBurstOfJobsIsPrintedInBatches() throws Exception {
+        Path storageRoot = temporaryFolder.newFolder().toPath();
+        PrintQueueStore printQueueStore = new PrintQueueStore(storageRoot);
+        PrintCommand printCommand = mock(PrintCommand.class);
+        List<String> printed = new ArrayList<>();
+        doAnswer(invocation -> {
+            Path job = invocation.getArgument(0);
+            synchronized (printed) {
+                printed.add(job.getFileName() + ":" + Files.size(job));
+            }
+            return null;
+        }).when(printCommand).print(any(), anyBoolean());
+        PingCommand pingCommand = mock(PingCommand.class);
+        when(pingCommand.pingQuiet()).thenReturn(true);
+
+        PrintSpooler printSpooler = new PrintSpooler(printCommand, pingCommand, printQueueStore, message -> {}, 4, 10);
+        PrintServer printServer = new PrintServer(printSpooler, printQueueStore, message -> {});
+        int port = printServer.bind(0, "daemon-token");
+        try {
+            for (int i = 0; i < 10; i++) {
+                assertThat(post(port, "daemon-token", "/tmp/job" + i + ".pdf", new byte[]{1, 2, 3}), is(202));
+            }
+            for (int i = 0; i < 500 && printSpooler.pending() > 0; i++) Thread.sleep(10);
+
+            assertThat(printed.size(), is(10));
+            assertThat(printed.contains("job3.pdf:3"), is(true));
+            // Far fewer pings than jobs, they went out in batches
+            verify(pingCommand, atMost(5)).pingQuiet();
+            // Nothing left in the spool
+            try (var spool = Files.list(storageRoot.resolve(".dpt").resolve("print_spool"))) {
+                assertThat(spool.count(), is(0L));
+            }
+        } finally {
+            printServer.close();
+        }
+    }
+
+    @Test
+    public void aJobWithoutTheTokenIsRefused() throws Exception {
+        Path storageRoot = temporaryFolder.newFolder().toPath();
+        PrintQueueStore printQueueStore = new PrintQueueStore(storageRoot);
+        PrintSpooler printSpooler = mock(PrintSpooler.class);
+        PrintServer printServer = new PrintServer(printSpooler, printQueueStore, message -> {});
+        int port = printServer.bind(0, "daemon-token");
+        try {
+            assertThat(post(port, "wrong", "a.pdf", new byte[]{1}), is(403));
+            verify(printSpooler, never()).submit(any());
+        } finally {
+            printServer.close();
+        }
+    }
+
+    @Test
+    public void theFileNameIsNeverAPath() {
+        assertThat(PrintServer.fileName("../../.bashrc").startsWith("print-"), is(true));
+        assertThat(PrintServer.fileName("/var/spool/cups-pdf-dpt/job_1-report.pdf"), is("job_1-report.pdf"));
+        assertThat(PrintServer.fileName("C:\\Users\\me\\notes"), is("notes.pdf"));
+        assertThat(PrintServer.fileName(null).startsWith("print-"), is(true));
+    }
+}
@@ -0,0 +1,134 @@
+package net.sony.dpt.command.print;
+
+import net.sony.dpt.command.ping.PingCommand;
+import net.sony.dpt.persistence.PrintQueueStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.*;
+
+public class PrintSpoolerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static void awaitEmpty(PrintSpooler printSpooler) throws InterruptedException {
+        for (int i = 0; i < 500 && printSpooler.pending() > 0; i++) Thread.sleep(10);
+    }
+
+    @Test
+    public void jobsWaitForTheDevice() throws Exception {
+        Path pdf = Files.write(temporaryFolder.getRoot().toPath().resolve("a.pdf"), new byte[]{1});
+        PrintQueueStore printQueueStore = new PrintQueueStore(temporaryFolder.newFolder().toPath());
+        PrintCommand printCommand = mock(PrintCommand.class);
+        PingCommand pingCommand = mock(PingCommand.class);
+        when(pingCommand.pingQuiet()).thenReturn(false, false, true);
+
+        PrintSpooler printSpooler = new PrintSpooler(printCommand, pingCommand, printQueueStore, message -> {}, 2, 100);
+        printSpooler.submit(pdf);
+        // Queued on disk until printed
+        assertThat(printQueueStore.retrieveQueue(), is(List.of(pdf.toAbsolutePath())));
+
+        awaitEmpty(printSpooler);
+        verify(printCommand, times(1)).print(pdf, false);
+        verify(pingCommand, times(3)).pingQuiet();
+        assertThat(printQueueStore.retrieveQueue().isEmpty(), is(true));
+        printSpooler.stop();
+    }
+
+    @Test
+    public void jobsOfThePreviousRunArePrinted() throws Exception {
+        Path first = Files.write(temporaryFolder.getRoot().toPath().resolve("a.pdf"), new byte[]{1});
+        Path second = Files.write(temporaryFolder.getRoot().toPath().resolve("b.pdf"), new byte[]{1});
+        PrintQueueStore printQueueStore = new PrintQueueStore(temporaryFolder.newFolder().toPath());
+        printQueueStore.storeQueue(List.of(first, second));
+        PrintCommand printCommand = mock(PrintCommand.class);
+        PingCommand pingCommand = mock(PingCommand.class);
+        when(pingCommand.pingQuiet()).thenReturn(true);
+
+        PrintSpooler printSpooler = new PrintSpooler(printCommand, pingCommand, printQueueStore, message -> {}, 2, 10);
+        printSpooler.start();
+
+        awaitEmpty(printSpooler);
+        // A batch goes in quietly
+        verify(printCommand).print(first.toAbsolutePath(), true);
+        verify(printCommand).print(second.toAbsolutePath(), true);
+        printSpooler.stop();
+    }
+
+    @Test
+    public void aFileIsPrintedOnceItStopsChanging() throws Exception {
+        Path pdf = temporaryFolder.getRoot().toPath().resolve("a.pdf");
+        PrintCommand printCommand = mock(PrintCommand.class);
+        PingCommand pingCommand = mock(PingCommand.class);
+        when(pingCommand.pingQuiet()).thenReturn(true);
+        PrintSpooler printSpooler = new PrintSpooler(printCommand, pingCommand,
+                new PrintQueueStore(temporaryFolder.newFolder().toPath()), message -> {}, 2, 10);
+
+        Files.write(pdf, new byte[]{1});
+        printSpooler.fileChanged(pdf);
+        Thread.sleep(500);
+        // Still being written
+        Files.write(pdf, new byte[]{1, 2});
+        printSpooler.fileChanged(pdf);
+        verify(printCommand, never()).print(any(), anyBoolean());
+
+        Thread.sleep(4000);
+        awaitEmpty(printSpooler);
+        verify(printCommand, times(1)).print(pdf, false);
+        printSpooler.stop();
+    }
+
+    @Test
+    public void anUnexpectedFailureIsRetried() throws Exception {
+        Path pdf = Files.write(temporaryFolder.getRoot().toPath().resolve("a.pdf"), new byte[]{1});
+        PrintCommand printCommand = mock(PrintCommand.class);
+        doThrow(new IllegalStateException("unexpected answer")).doNothing().when(printCommand).print(any(), anyBoolean());
+        PingCommand pingCommand = mock(PingCommand.class);
+        when(pingCommand.pingQuiet()).thenReturn(true);
+        PrintSpooler printSpooler = new PrintSpooler(printCommand, pingCommand,
+                new PrintQueueStore(temporaryFolder.newFolder().toPath()), message -> {}, 2, 10);
+
+        printSpooler.submit(pdf);
+        awaitEmpty(printSpooler);
+
+        verify(printCommand, times(2)).print(pdf, false);
+        assertThat(printSpooler.pending(), is(0));
+        printSpooler.stop();
+    }
+
+    @Test
+    public void jobsWithTheSameNameAreNotSentTogether() throws Exception {
+        Path first = Files.write(temporaryFolder.newFolder().toPath().resolve("report.pdf"), new byte[]{1});
+        Path second = Files.write(temporaryFolder.newFolder().toPath().resolve("report.pdf"), new byte[]{2});
+        PrintCommand printCommand = mock(PrintCommand.class);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger mostRunning = new AtomicInteger();
+        doAnswer(invocation -> {
+            mostRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            Thread.sleep(100);
+            running.decrementAndGet();
+            return null;
+        }).when(printCommand).print(any(), anyBoolean());
+        PingCommand pingCommand = mock(PingCommand.class);
+        when(pingCommand.pingQuiet()).thenReturn(true);
+        PrintSpooler printSpooler = new PrintSpooler(printCommand, pingCommand,
+                new PrintQueueStore(temporaryFolder.newFolder().toPath()), message -> {}, 4, 10);
+
+        printSpooler.submit(first);
+        printSpooler.submit(second);
+        awaitEmpty(printSpooler);
+
+        verify(printCommand, times(2)).print(any(), anyBoolean());
+        assertThat(mostRunning.get(), is(1));
+        printSpooler.stop();
+    }
+}
@@ -1,7 +1,9 @@
 package net.sony.dpt.command.sync;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import net.sony.dpt.command.documents.DocumentEntry;
 import net.sony.dpt.command.documents.DocumentListResponse;
+import net.sony.util.HashUtils;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -10,6 +12,7 @@ import java.net.URISyntaxException;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 import static org.hamcrest.CoreMatchers.is;
@@ -101,4 +104,91 @@ public class SyncCommandTest {
 
     }
 
+    private SyncCommand wipedDevice(List<String> messages) throws IOException, URISyntaxException {
+        Path localRoot = Path.of(Objects.requireNonNull(this.getClass().getClassLoader().getResource("sync")).toURI());
+        SyncCommand syncCommand = new SyncCommand(localRoot, null, null, null, messages::add, null, null);
+
+        syncCommand.loadLocalDocuments(localRoot, true);
+
+        // Both files were synced last time, the device is now empty
+        SyncManifest manifest = new SyncManifest();
+        for (String name : List.of("sample1.pdf", "sample2.pdf")) {
+            DocumentEntry remote = new DocumentEntry();
+            remote.setEntryId(name);
+            remote.setFileRevisiion("1");
+            Path localFile = localRoot.resolve(name);
+            manifest.put(Path.of(name), SyncManifest.entry(localFile, remote, HashUtils.sha256Hex(localFile)));
+        }
+        syncCommand.setManifest(manifest);
+
+        DocumentListResponse empty = new DocumentListResponse();
+        empty.setEntryList(new ArrayList<>());
+        syncCommand.loadRemoteDocuments(empty);
+        return syncCommand;
+    }
+
+    @Test
+    public void deviceWipedAfterASyncDeletesNothingWithoutForce() throws IOException, InterruptedException, URISyntaxException {
+        List<String> messages = new ArrayList<>();
+        SyncCommand syncCommand = wipedDevice(messages);
+
+        syncCommand.sync(null, true);
+        assertThat(messages.contains("Initial sync, sending all to remote..."), is(false));
+        assertThat(messages.contains("We will send 0 files to the Digital Paper"), is(true));
+        assertThat(messages.contains("We will delete 0 files locally"), is(true));
+        assertThat(messages.contains("  would delete locally sample1.pdf"), is(true));
+    }
+
+    @Test
+    public void deviceWipedAfterASyncDeletesLocallyWithForce() throws IOException, InterruptedException, URISyntaxException {
+        List<String> messages = new ArrayList<>();
+        SyncCommand syncCommand = wipedDevice(messages);
+        syncCommand.setForce(true);
+
+        syncCommand.sync(null, true);
+        assertThat(messages.contains("We will delete 2 files locally"), is(true));
+    }
+
+    private SyncCommand emptiedLocalFolder(List<String> messages) throws IOException, URISyntaxException {
+        SyncCommand syncCommand = new SyncCommand(null, null, null, null, messages::add, null, null);
+
+        syncCommand.loadLocalDocuments(Path.of(
+                Objects.requireNonNull(this.getClass().getClassLoader().getResource("empty")).toURI()
+        ), true);
+        Map<Path, DocumentEntry> remote = syncCommand.loadRemoteDocuments(documentListResponse);
+
+        // Every document was synced last time, at the revision the device still has
+        SyncManifest manifest = new SyncManifest();
+        for (Map.Entry<Path, DocumentEntry> entry : remote.entrySet()) {
+            SyncManifest.Entry known = new SyncManifest.Entry();
+            known.setEntryId(entry.getValue().getEntryId());
+            known.setFileRevision(entry.getValue().getFileRevisiion());
+            manifest.put(entry.getKey(), known);
+        }
+        syncCommand.setManifest(manifest);
+        return syncCommand;
+    }
+
+    @Test
+    public void localFolderEmptiedAfterASyncDeletesNothingWithoutForce() throws IOException, InterruptedException, URISyntaxException {
+        List<String> messages = new ArrayList<>();
+        SyncCommand syncCommand = emptiedLocalFolder(messages);
+
+        syncCommand.sync(null, true);
+        assertThat(messages.contains("Initial sync, fetching all from remote..."), is(false));
+        assertThat(messages.contains("We will receive 0 files from the Digital Paper"), is(true));
+        assertThat(messages.contains("We will delete 0 files remotely"), is(true));
+        assertThat(messages.stream().anyMatch(message -> message.startsWith("Refusing to delete 622 of the 622")), is(true));
+    }
+
+    @Test
+    public void localFolderEmptiedAfterASyncDeletesRemotelyWithForce() throws IOException, InterruptedException, URISyntaxException {
+        List<String> messages = new ArrayList<>();
+        SyncCommand syncCommand = emptiedLocalFolder(messages);
+        syncCommand.setForce(true);
+
+        syncCommand.sync(null, true);
+        assertThat(messages.contains("We will delete 622 files remotely"), is(true));
+    }
+
 }
@@ -0,0 +1,60 @@
+package net.sony.dpt.command.sync;
+
+import net.sony.dpt.command.documents.DocumentEntry;
+import net.sony.util.HashUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class SyncManifestTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path pdf;
+    private DocumentEntry remote;
+    private SyncManifest.Entry entry;
+
+    @Before
+    public void setup() throws IOException {
+        pdf = temporaryFolder.newFile("sample.pdf").toPath();
+        Files.writeString(pdf, "first version");
+        Files.setLastModifiedTime(pdf, FileTime.fromMillis(1_000_000));
+
+        remote = new DocumentEntry();
+        remote.setEntryId("3a4a16c8-7b1f-4e87-8fbb-ebc8e9cd9e66");
+        remote.setFileRevisiion("rev-1");
+
+        entry = SyncManifest.entry(pdf, remote, HashUtils.sha256Hex(pdf));
+    }
+
+    @Test
+    public void sameSizeEditIsDetected() throws IOException {
+        Files.writeString(pdf, "other version");
+        assertThat(SyncManifest.localChanged(entry, pdf), is(true));
+    }
+
+    @Test
+    public void touchIsNotAChange() throws IOException {
+        Files.setLastModifiedTime(pdf, FileTime.fromMillis(2_000_000));
+        assertThat(SyncManifest.localChanged(entry, pdf), is(false));
+        assertThat(entry.getModified(), is(2_000_000L));
+    }
+
+    @Test
+    public void newRevisionIsARemoteChange() {
+        assertThat(SyncManifest.remoteChanged(entry, remote), is(false));
+        remote.setFileRevisiion("rev-2");
+        assertThat(SyncManifest.remoteChanged(entry, remote), is(true));
+    }
+
+}
@@ -0,0 +1,77 @@
+package net.sony.dpt.command.sync;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class TransferSchedulerTest {
+
+    private static TransferScheduler.Listener recordingStarts(List<String> started) {
+        return new TransferScheduler.Listener() {
+            @Override
+            public void started(TransferScheduler.Transfer transfer) {
+                started.add(transfer.getDescription());
+            }
+
+            @Override
+            public void completed(TransferScheduler.Transfer transfer, int done, int total, long bytesDone, long bytesPerSecond, int concurrency) {
+            }
+
+            @Override
+            public void retrying(TransferScheduler.Transfer transfer, Throwable cause) {
+            }
+        };
+    }
+
+    @Test
+    public void largestFirstInterleavedWithDeletes() throws IOException, InterruptedException {
+        TransferScheduler scheduler = new TransferScheduler(1);
+        scheduler.add("small", "Sending", 10, () -> {});
+        scheduler.add("big", "Sending", 1000, () -> {});
+        scheduler.add("delete", "Deleting", 0, () -> {});
+        scheduler.add("medium", "Fetching", 100, () -> {});
+
+        List<String> started = new ArrayList<>();
+        scheduler.run(recordingStarts(started));
+
+        assertThat(started, is(List.of("delete", "big", "medium", "small")));
+    }
+
+    @Test
+    public void transientFailureIsRetried() throws IOException, InterruptedException {
+        TransferScheduler scheduler = new TransferScheduler(4);
+        int[] attempts = new int[1];
+        scheduler.add("flaky", "Sending", 10, () -> {
+            if (attempts[0]++ == 0) throw new IOException("Connection reset");
+        });
+
+        List<String> started = new ArrayList<>();
+        scheduler.run(recordingStarts(started));
+
+        assertThat(started, is(List.of("flaky", "flaky")));
+    }
+
+    @Test
+    public void anActionRetryingOnItsOwnIsNotRetriedAgain() throws InterruptedException {
+        TransferScheduler scheduler = new TransferScheduler(4);
+        scheduler.addRetriedByAction("download", "Fetching", 10, () -> {
+            throw new IOException("Connection closed after 5 of 10 bytes");
+        });
+
+        List<String> started = new ArrayList<>();
+        String failure = null;
+        try {
+            scheduler.run(recordingStarts(started));
+        } catch (IOException e) {
+            failure = e.getMessage();
+        }
+        assertThat(failure, is("Connection closed after 5 of 10 bytes"));
+        assertThat(started, is(List.of("download")));
+    }
+
+}
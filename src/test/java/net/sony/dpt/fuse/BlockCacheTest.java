@@ -0,0 +1,65 @@
+package net.sony.dpt.fuse;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class BlockCacheTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static byte[] block(int size, int value) {
+        byte[] block = new byte[size];
+        Arrays.fill(block, (byte) value);
+        return block;
+    }
+
+    @Test
+    public void spillsToDiskAndStaysBounded() throws IOException {
+        Path disk = temporaryFolder.newFolder().toPath();
+        BlockCache blockCache = new BlockCache(disk, 200, 300);
+
+        for (int i = 0; i < 6; i++) blockCache.put("doc", "1", i, block(100, i));
+
+        assertThat(blockCache.getMemoryBytes() <= 200, is(true));
+        assertThat(blockCache.getDiskBytes() <= 300, is(true));
+        // The oldest block is gone, a spilled one comes back from disk
+        assertThat(blockCache.get("doc", "1", 0), nullValue());
+        assertThat(blockCache.get("doc", "1", 2)[0], is((byte) 2));
+        assertThat(blockCache.get("doc", "1", 5)[0], is((byte) 5));
+    }
+
+    @Test
+    public void revisionsAreSeparate() throws IOException {
+        BlockCache blockCache = new BlockCache(null, 1000, 0);
+        blockCache.put("doc", "1", 0, block(10, 1));
+
+        assertThat(blockCache.get("doc", "2", 0), nullValue());
+        assertThat(blockCache.get("doc", "1", 0)[0], is((byte) 1));
+
+        blockCache.invalidate("doc");
+        assertThat(blockCache.get("doc", "1", 0), nullValue());
+        assertThat(blockCache.getMemoryBytes(), is(0L));
+    }
+
+    @Test
+    public void diskTierIsReloaded() throws IOException {
+        Path disk = temporaryFolder.newFolder().toPath();
+        BlockCache blockCache = new BlockCache(disk, 100, 1000);
+        blockCache.put("3a4a16c8-7b1f", "rev", 0, block(100, 7));
+        blockCache.put("3a4a16c8-7b1f", "rev", 1, block(100, 8));
+
+        BlockCache reloaded = new BlockCache(disk, 100, 1000);
+        assertThat(reloaded.getDiskBytes(), is(100L));
+        assertThat(reloaded.get("3a4a16c8-7b1f", "rev", 0)[0], is((byte) 7));
+    }
+}
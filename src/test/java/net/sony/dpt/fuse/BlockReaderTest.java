@@ -0,0 +1,85 @@
+package net.sony.dpt.fuse;
+
+import net.sony.dpt.command.documents.DocumentEntry;
+import net.sony.dpt.command.documents.EntryType;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static net.sony.dpt.fuse.BlockCache.BLOCK_SIZE;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class BlockReaderTest {
+
+    private static DocumentEntry document(long size) {
+        DocumentEntry documentEntry = new DocumentEntry(EntryType.DOCUMENT);
+        documentEntry.setEntryId("doc");
+        documentEntry.setFileRevisiion("1");
+        documentEntry.setFileSize(size);
+        return documentEntry;
+    }
+
+    private static byte[] content(long from, long to) {
+        byte[] content = new byte[(int) (to - from + 1)];
+        for (int i = 0; i < content.length; i++) content[i] = (byte) ((from + i) / BLOCK_SIZE);
+        return content;
+    }
+
+    @Test
+    public void onlyTheBlockReadIsDownloaded() throws IOException, InterruptedException {
+        List<long[]> requests = new CopyOnWriteArrayList<>();
+        BlockReader blockReader = new BlockReader((entryId, from, to) -> {
+            requests.add(new long[]{from, to});
+            return content(from, to);
+        }, new BlockCache(null, Long.MAX_VALUE, 0));
+
+        byte[] block = blockReader.read(document(10L * BLOCK_SIZE + 10), 10);
+
+        assertThat(block.length, is(10));
+        assertThat(block[0], is((byte) 10));
+        assertThat(requests.size(), is(1));
+        assertThat(requests.get(0)[0], is(10L * BLOCK_SIZE));
+        assertThat(blockReader.read(document(10L * BLOCK_SIZE + 10), 11).length, is(0));
+    }
+
+    @Test
+    public void sequentialReadsArePrefetched() throws IOException, InterruptedException {
+        CountDownLatch prefetched = new CountDownLatch(1);
+        BlockReader blockReader = new BlockReader((entryId, from, to) -> {
+            if (from == 2L * BLOCK_SIZE) prefetched.countDown();
+            return content(from, to);
+        }, new BlockCache(null, Long.MAX_VALUE, 0));
+        DocumentEntry documentEntry = document(100L * BLOCK_SIZE);
+
+        blockReader.read(documentEntry, 0);
+        blockReader.read(documentEntry, 1);
+
+        assertThat(prefetched.await(5, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void concurrentReadsShareOneRequest() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<long[]> requests = new CopyOnWriteArrayList<>();
+        BlockReader blockReader = new BlockReader((entryId, from, to) -> {
+            requests.add(new long[]{from, to});
+            release.await();
+            return content(from, to);
+        }, new BlockCache(null, Long.MAX_VALUE, 0));
+        DocumentEntry documentEntry = document(4L * BLOCK_SIZE);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<byte[]>> reads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) reads.add(executor.submit(() -> blockReader.read(documentEntry, 3)));
+        Thread.sleep(200);
+        release.countDown();
+        for (Future<byte[]> read : reads) assertThat(read.get()[0], is((byte) 3));
+        executor.shutdown();
+
+        assertThat(requests.size(), is(1));
+    }
+}
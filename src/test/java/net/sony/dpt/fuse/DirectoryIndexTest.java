@@ -0,0 +1,55 @@
+package net.sony.dpt.fuse;
+
+import net.sony.dpt.command.documents.DocumentEntry;
+import net.sony.dpt.command.documents.EntryType;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class DirectoryIndexTest {
+
+    private static DirectoryIndex library() {
+        DirectoryIndex directoryIndex = new DirectoryIndex();
+        directoryIndex.put(Path.of("/Books"), new DocumentEntry(EntryType.FOLDER));
+        directoryIndex.put(Path.of("/Books/a.pdf"), new DocumentEntry(EntryType.DOCUMENT));
+        directoryIndex.put(Path.of("/Books/Novels/b.pdf"), new DocumentEntry(EntryType.DOCUMENT));
+        directoryIndex.put(Path.of("/c.pdf"), new DocumentEntry(EntryType.DOCUMENT));
+        return directoryIndex;
+    }
+
+    @Test
+    public void listsOnlyDirectChildren() {
+        DirectoryIndex directoryIndex = library();
+
+        assertThat(directoryIndex.children(Path.of("/")), is(Set.of("Books", "c.pdf")));
+        assertThat(directoryIndex.children(Path.of("/Books")), is(Set.of("a.pdf", "Novels")));
+        // Known through its child only
+        assertThat(directoryIndex.hasChildren(Path.of("/Books/Novels")), is(true));
+    }
+
+    @Test
+    public void movesTheWholeSubtree() {
+        DirectoryIndex directoryIndex = library();
+
+        directoryIndex.moveSubtree(Path.of("/Books"), Path.of("/Library/Books"), (path, entry) -> entry.setEntryPath(path.toString()));
+
+        assertThat(directoryIndex.children(Path.of("/")), is(Set.of("Library", "c.pdf")));
+        assertThat(directoryIndex.get(Path.of("/Books/Novels/b.pdf")), nullValue());
+        assertThat(directoryIndex.get(Path.of("/Library/Books/Novels/b.pdf")).getEntryPath(), is("/Library/Books/Novels/b.pdf"));
+        assertThat(directoryIndex.children(Path.of("/Library/Books")), is(Set.of("a.pdf", "Novels")));
+    }
+
+    @Test
+    public void removesTheWholeSubtree() {
+        DirectoryIndex directoryIndex = library();
+
+        assertThat(directoryIndex.removeSubtree(Path.of("/Books")).size(), is(3));
+        assertThat(directoryIndex.children(Path.of("/")), is(Set.of("c.pdf")));
+        assertThat(directoryIndex.size(), is(1));
+    }
+}
@@ -0,0 +1,109 @@
+package net.sony.dpt.fuse;
+
+import net.sony.dpt.command.documents.DocumentCommand;
+import net.sony.dpt.command.documents.DocumentEntry;
+import net.sony.dpt.command.documents.DocumentListResponse;
+import net.sony.dpt.command.documents.EntryType;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.*;
+
+public class MountRefresherTest {
+
+    private static DocumentEntry entry(EntryType entryType, String id, String path, String revision) {
+        DocumentEntry documentEntry = new DocumentEntry(entryType);
+        documentEntry.setEntryId(id);
+        documentEntry.setEntryPath(path);
+        documentEntry.setFileRevisiion(revision);
+        return documentEntry;
+    }
+
+    private static DocumentListResponse listing(String hash, DocumentEntry... entries) {
+        DocumentListResponse documentListResponse = new DocumentListResponse();
+        documentListResponse.setEntryList(List.of(entries));
+        documentListResponse.setEntryListHash(hash);
+        return documentListResponse;
+    }
+
+    @Test
+    public void appliesTheChangesOfAFolder() throws Exception {
+        DirectoryIndex directoryIndex = new DirectoryIndex();
+        directoryIndex.put(Path.of("/Books"), entry(EntryType.FOLDER, "books", "Document/Books", null));
+        DocumentEntry annotated = entry(EntryType.DOCUMENT, "a", "Document/Books/a.pdf", "1");
+        DocumentEntry deleted = entry(EntryType.DOCUMENT, "b", "Document/Books/b.pdf", "1");
+        directoryIndex.put(Path.of("/Books/a.pdf"), annotated);
+        directoryIndex.put(Path.of("/Books/b.pdf"), deleted);
+
+        DocumentCommand documentCommand = mock(DocumentCommand.class);
+        when(documentCommand.listContent("books")).thenReturn(listing("h1",
+                entry(EntryType.DOCUMENT, "a", "Document/Books/a.pdf", "2"),
+                entry(EntryType.DOCUMENT, "c", "Document/Books/c.pdf", "1")
+        ));
+
+        List<DocumentEntry> forgotten = new ArrayList<>();
+        new MountRefresher(documentCommand, directoryIndex, forgotten::add, message -> {}, 1000)
+                .refreshFolder(Path.of("/Books"));
+
+        assertThat(directoryIndex.children(Path.of("/Books")), is(Set.of("a.pdf", "c.pdf")));
+        assertThat(directoryIndex.get(Path.of("/Books/a.pdf")).getFileRevisiion(), is("2"));
+        assertThat(forgotten, is(List.of(annotated, deleted)));
+    }
+
+    @Test
+    public void unchangedListingsAreSkipped() throws Exception {
+        DirectoryIndex directoryIndex = new DirectoryIndex();
+        directoryIndex.put(Path.of("/Books"), entry(EntryType.FOLDER, "books", "Document/Books", null));
+
+        DocumentCommand documentCommand = mock(DocumentCommand.class);
+        when(documentCommand.listContent("books")).thenReturn(
+                listing("h1", entry(EntryType.DOCUMENT, "a", "Document/Books/a.pdf", "1")),
+                listing("h1")
+        );
+
+        MountRefresher mountRefresher = new MountRefresher(documentCommand, directoryIndex, entry -> {}, message -> {}, 1000);
+        mountRefresher.refreshFolder(Path.of("/Books"));
+        mountRefresher.refreshFolder(Path.of("/Books"));
+
+        // The second listing is empty but has the same hash, it's not applied
+        assertThat(directoryIndex.children(Path.of("/Books")), is(Set.of("a.pdf")));
+    }
+
+    @Test
+    public void revalidatesASnapshotAgainstTheDevice() throws Exception {
+        DirectoryIndex directoryIndex = new DirectoryIndex();
+        directoryIndex.put(Path.of("/"), entry(EntryType.FOLDER, "root", "Document", null));
+        directoryIndex.put(Path.of("/Books"), entry(EntryType.FOLDER, "books", "Document/Books", null));
+        DocumentEntry annotated = entry(EntryType.DOCUMENT, "a", "Document/Books/a.pdf", "1");
+        DocumentEntry deleted = entry(EntryType.DOCUMENT, "b", "Document/Old/b.pdf", "1");
+        directoryIndex.put(Path.of("/Books/a.pdf"), annotated);
+        directoryIndex.put(Path.of("/Old"), entry(EntryType.FOLDER, "old", "Document/Old", null));
+        directoryIndex.put(Path.of("/Old/b.pdf"), deleted);
+        // Created through the mount, the device didn't list it yet
+        directoryIndex.put(Path.of("/New"), new DocumentEntry(EntryType.FOLDER));
+
+        DocumentCommand documentCommand = mock(DocumentCommand.class);
+        when(documentCommand.listDocuments(EntryType.ALL)).thenReturn(listing(null,
+                entry(EntryType.FOLDER, "root", "Document", null),
+                entry(EntryType.FOLDER, "books", "Document/Books", null),
+                entry(EntryType.DOCUMENT, "a", "Document/Books/a.pdf", "2"),
+                entry(EntryType.DOCUMENT, "c", "Document/Books/c.pdf", "1")
+        ));
+
+        List<DocumentEntry> forgotten = new ArrayList<>();
+        int changes = new MountRefresher(documentCommand, directoryIndex, forgotten::add, message -> {}, 1000).revalidate();
+
+        assertThat(changes, is(3));
+        assertThat(directoryIndex.children(Path.of("/")), is(Set.of("Books", "New")));
+        assertThat(directoryIndex.children(Path.of("/Books")), is(Set.of("a.pdf", "c.pdf")));
+        assertThat(directoryIndex.get(Path.of("/Books/a.pdf")).getFileRevisiion(), is("2"));
+        assertThat(forgotten.contains(annotated), is(true));
+        assertThat(forgotten.contains(deleted), is(true));
+    }
+}
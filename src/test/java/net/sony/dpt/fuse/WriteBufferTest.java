@@ -0,0 +1,91 @@
+package net.sony.dpt.fuse;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class WriteBufferTest {
+
+    private static byte[] pattern(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) content[i] = (byte) (i * 31);
+        return content;
+    }
+
+    private static void writeInSlices(WriteBuffer writeBuffer, byte[] content, int slice) throws IOException {
+        for (int offset = 0; offset < content.length; offset += slice) {
+            int start = offset;
+            int length = Math.min(slice, content.length - offset);
+            writeBuffer.write(offset, length, (from, target, targetOffset, count) ->
+                    System.arraycopy(content, (int) (start + from), target, targetOffset, count));
+        }
+    }
+
+    private static byte[] streamed(WriteBuffer writeBuffer) throws IOException {
+        try (InputStream stream = writeBuffer.openStream()) {
+            return IOUtils.toByteArray(stream);
+        }
+    }
+
+    @Test
+    public void sequentialWritesInMemory() throws IOException {
+        byte[] content = pattern(3 * WriteBuffer.CHUNK_SIZE + 1234);
+        try (WriteBuffer writeBuffer = new WriteBuffer(Long.MAX_VALUE)) {
+            writeInSlices(writeBuffer, content, 128 * 1024);
+
+            assertThat(writeBuffer.size(), is((long) content.length));
+            assertThat(streamed(writeBuffer), is(content));
+        }
+    }
+
+    @Test
+    public void spillsToAFilePastTheThreshold() throws IOException {
+        byte[] content = pattern(5 * 100_000 + 17);
+        try (WriteBuffer writeBuffer = new WriteBuffer(200_000)) {
+            writeInSlices(writeBuffer, content, 100_000);
+
+            byte[] readBack = new byte[10];
+            assertThat(writeBuffer.read(150_000, readBack, 10), is(10));
+            assertThat(readBack[0], is(content[150_000]));
+            assertThat(streamed(writeBuffer), is(content));
+        }
+    }
+
+    @Test
+    public void truncateCutsAndGrowsWithZeroes() throws IOException {
+        byte[] content = pattern(WriteBuffer.CHUNK_SIZE + 100);
+        for (long spillThreshold : new long[]{Long.MAX_VALUE, 1000}) {
+            try (WriteBuffer writeBuffer = new WriteBuffer(spillThreshold)) {
+                writeInSlices(writeBuffer, content, 64 * 1024);
+
+                writeBuffer.truncate(10);
+                assertThat(writeBuffer.size(), is(10L));
+                assertThat(streamed(writeBuffer), is(Arrays.copyOf(content, 10)));
+
+                // The bytes cut off don't come back
+                writeBuffer.truncate(20);
+                byte[] expected = Arrays.copyOf(content, 20);
+                Arrays.fill(expected, 10, 20, (byte) 0);
+                assertThat(streamed(writeBuffer), is(expected));
+            }
+        }
+    }
+
+    @Test
+    public void holesReadAsZeroes() throws IOException {
+        try (WriteBuffer writeBuffer = new WriteBuffer(Long.MAX_VALUE)) {
+            writeBuffer.write(10, 1, (from, target, targetOffset, count) -> target[targetOffset] = 7);
+
+            byte[] readBack = new byte[20];
+            assertThat(writeBuffer.read(0, readBack, 20), is(11));
+            assertThat(readBack[0], is((byte) 0));
+            assertThat(readBack[10], is((byte) 7));
+        }
+    }
+}
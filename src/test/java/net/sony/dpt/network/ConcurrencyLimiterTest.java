@@ -0,0 +1,49 @@
+package net.sony.dpt.network;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ConcurrencyLimiterTest {
+
+    private static void fullWindow(ConcurrencyLimiter concurrencyLimiter, long latency) throws InterruptedException {
+        int limit = concurrencyLimiter.getLimit();
+        for (int i = 0; i < limit; i++) concurrencyLimiter.acquire();
+        concurrencyLimiter.onSuccess("GET /documents/*/file", latency);
+        for (int i = 0; i < limit; i++) concurrencyLimiter.release();
+    }
+
+    @Test
+    public void growsWhileTheDeviceKeepsUp() throws InterruptedException {
+        ConcurrencyLimiter concurrencyLimiter = new ConcurrencyLimiter(2, 1, 4);
+        for (int i = 0; i < 20; i++) fullWindow(concurrencyLimiter, 1_000_000);
+        assertThat(concurrencyLimiter.getLimit(), is(4));
+    }
+
+    @Test
+    public void halvesOnOverload() throws InterruptedException {
+        ConcurrencyLimiter concurrencyLimiter = new ConcurrencyLimiter(4, 1, 4);
+        concurrencyLimiter.onOverload();
+        assertThat(concurrencyLimiter.getLimit(), is(2));
+    }
+
+    @Test
+    public void backsOffWhenLatencyClimbs() throws InterruptedException {
+        ConcurrencyLimiter concurrencyLimiter = new ConcurrencyLimiter(4, 1, 8);
+        fullWindow(concurrencyLimiter, 1_000_000);
+        int limit = concurrencyLimiter.getLimit();
+        fullWindow(concurrencyLimiter, 10_000_000);
+        assertThat(concurrencyLimiter.getLimit() < limit, is(true));
+    }
+
+    @Test
+    public void routesAreComparedWithThemselves() {
+        assertThat(
+                LimitedHttpClient.route("GET", "https://192.168.0.5:8443/documents/3a4a16c8-7b1f-4e87-8fbb-ebc8e9cd9e66/file"),
+                is("GET /documents/*/file")
+        );
+        assertThat(LimitedHttpClient.route("POST", "https://192.168.0.5:8443/folders2"), is("POST /folders2"));
+    }
+
+}
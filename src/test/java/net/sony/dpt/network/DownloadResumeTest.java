@@ -0,0 +1,195 @@
+package net.sony.dpt.network;
+
+import net.sony.dpt.error.SonyException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class DownloadResumeTest {
+
+    private static final byte[] CONTENT = "0123456789".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private SimpleHttpClient device;
+    private DigitalPaperEndpoint digitalPaperEndpoint;
+    private Path target;
+
+    @Before
+    public void setup() {
+        device = mock(SimpleHttpClient.class);
+        digitalPaperEndpoint = new DigitalPaperEndpoint("JUNIT", device);
+        digitalPaperEndpoint.setDownloadResumeDelay(0);
+        target = temporaryFolder.getRoot().toPath().resolve("a.pdf");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static HttpResponse<InputStream> response(int status, String header, String value, InputStream body) {
+        HttpResponse<InputStream> response = mock(HttpResponse.class);
+        when(response.statusCode()).thenReturn(status);
+        when(response.headers()).thenReturn(HttpHeaders.of(Map.of(header, List.of(value)), (name, v) -> true));
+        when(response.body()).thenReturn(body);
+        return response;
+    }
+
+    /**
+     * The bytes from..from+length, then the connection drops
+     */
+    private static InputStream dropsAfter(int from, int length) {
+        return new SequenceInputStream(new ByteArrayInputStream(CONTENT, from, length), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Connection reset");
+            }
+        });
+    }
+
+    private static InputStream from(int from) {
+        return new ByteArrayInputStream(CONTENT, from, CONTENT.length - from);
+    }
+
+    @Test
+    public void resumesWhereTheConnectionDropped() throws Exception {
+        when(device.getFileWithResponse(anyString()))
+                .thenReturn(response(200, "Content-Length", "10", dropsAfter(0, 4)));
+        when(device.getFileRangeWithResponse(anyString(), eq(4L), eq(-1L)))
+                .thenReturn(response(206, "Content-Range", "bytes 4-9/10", from(4)));
+
+        digitalPaperEndpoint.downloadTo(target, "doc-id", "rev-2", 10);
+
+        assertThat(Files.readAllBytes(target), is(CONTENT));
+        assertThat(Files.exists(target.resolveSibling("a.pdf.part")), is(false));
+        verify(device, times(1)).getFileWithResponse(anyString());
+    }
+
+    @Test
+    public void aLaterCallResumesFromThePart() throws Exception {
+        when(device.getFileWithResponse(anyString()))
+                .thenReturn(response(200, "Content-Length", "10", dropsAfter(0, 4)));
+        when(device.getFileRangeWithResponse(anyString(), eq(4L), eq(-1L)))
+                .thenThrow(new IOException("Network is unreachable"));
+
+        try {
+            digitalPaperEndpoint.downloadTo(target, "doc-id", "rev-2", 10);
+        } catch (IOException expected) {
+        }
+        assertThat(Files.exists(target), is(false));
+        assertThat(Files.size(target.resolveSibling("a.pdf.part")), is(4L));
+
+        // The Wi-Fi is back
+        reset(device);
+        when(device.getFileRangeWithResponse(anyString(), eq(4L), eq(-1L)))
+                .thenReturn(response(206, "Content-Range", "bytes 4-9/10", from(4)));
+
+        digitalPaperEndpoint.downloadTo(target, "doc-id", "rev-2", 10);
+
+        assertThat(Files.readAllBytes(target), is(CONTENT));
+        verify(device, never()).getFileWithResponse(anyString());
+    }
+
+    private void leftPartial(String content, String key) throws IOException {
+        Files.write(target.resolveSibling("a.pdf.part"), content.getBytes(StandardCharsets.UTF_8));
+        Files.writeString(target.resolveSibling("a.pdf.part.key"), key);
+    }
+
+    @Test
+    public void theDeviceIgnoringTheRangeStartsOver() throws Exception {
+        leftPartial("0123xx", "doc-id rev-2 10");
+        when(device.getFileRangeWithResponse(anyString(), eq(6L), eq(-1L)))
+                .thenReturn(response(200, "Content-Length", "10", from(0)));
+
+        digitalPaperEndpoint.downloadTo(target, "doc-id", "rev-2", 10);
+
+        assertThat(Files.readAllBytes(target), is(CONTENT));
+    }
+
+    @Test
+    public void aMalformedContentRangeIsRetried() throws Exception {
+        InputStream malformedBody = spy(from(4));
+        when(device.getFileWithResponse(anyString()))
+                .thenReturn(response(200, "Content-Length", "10", dropsAfter(0, 4)));
+        when(device.getFileRangeWithResponse(anyString(), eq(4L), eq(-1L)))
+                .thenReturn(response(206, "Content-Range", "bytes 4-9/ten", malformedBody))
+                .thenReturn(response(206, "Content-Range", "bytes 4-9/10", from(4)));
+
+        digitalPaperEndpoint.downloadTo(target, "doc-id", "rev-2", 10);
+
+        assertThat(Files.readAllBytes(target), is(CONTENT));
+        // Closing the body gives the connection back
+        verify(malformedBody).close();
+    }
+
+    @Test
+    public void aPartFromAnotherRevisionIsDiscarded() throws Exception {
+        leftPartial("xxxx", "doc-id rev-1 10");
+        when(device.getFileWithResponse(anyString()))
+                .thenReturn(response(200, "Content-Length", "10", from(0)));
+
+        digitalPaperEndpoint.downloadTo(target, "doc-id", "rev-2", 10);
+
+        assertThat(Files.readAllBytes(target), is(CONTENT));
+        assertThat(Files.exists(target.resolveSibling("a.pdf.part.key")), is(false));
+        verify(device, never()).getFileRangeWithResponse(anyString(), anyLong(), anyLong());
+    }
+
+    @Test
+    public void aPartLongerThanTheDocumentStartsOver() throws Exception {
+        leftPartial("0123456789xx", "doc-id rev-2 10");
+        when(device.getFileRangeWithResponse(anyString(), eq(12L), eq(-1L)))
+                .thenReturn(response(416, "Content-Range", "bytes */10", InputStream.nullInputStream()));
+        when(device.getFileWithResponse(anyString()))
+                .thenReturn(response(200, "Content-Length", "10", from(0)));
+
+        digitalPaperEndpoint.downloadTo(target, "doc-id", "rev-2", 10);
+
+        assertThat(Files.readAllBytes(target), is(CONTENT));
+    }
+
+    @Test
+    public void aRangeOfAnotherSizeIsNotAppended() throws Exception {
+        leftPartial("0123", "doc-id rev-2 10");
+        when(device.getFileRangeWithResponse(anyString(), eq(4L), eq(-1L)))
+                .thenReturn(response(206, "Content-Range", "bytes 4-11/12", from(4)));
+        when(device.getFileWithResponse(anyString()))
+                .thenReturn(response(200, "Content-Length", "10", from(0)));
+
+        digitalPaperEndpoint.downloadTo(target, "doc-id", "rev-2", 10);
+
+        assertThat(Files.readAllBytes(target), is(CONTENT));
+    }
+
+    @Test
+    public void aDeviceErrorIsNotRetried() throws Exception {
+        leftPartial("0123", "doc-id rev-2 10");
+        when(device.getFileRangeWithResponse(anyString(), eq(4L), eq(-1L)))
+                .thenThrow(new SonyException("40401", "not found"));
+
+        try {
+            digitalPaperEndpoint.downloadTo(target, "doc-id", "rev-2", 10);
+        } catch (SonyException expected) {
+        }
+        verify(device, times(1)).getFileRangeWithResponse(anyString(), anyLong(), anyLong());
+        verify(device, never()).getFileWithResponse(anyString());
+    }
+}
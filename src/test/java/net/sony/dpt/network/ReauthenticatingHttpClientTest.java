@@ -0,0 +1,61 @@
+package net.sony.dpt.network;
+
+import org.junit.Test;
+
+import java.net.http.HttpResponse;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.*;
+
+public class ReauthenticatingHttpClientTest {
+
+    private static final String URL = "https://192.168.0.5:8443/documents2";
+
+    @SuppressWarnings("unchecked")
+    private static HttpResponse<String> response(int status, String body) {
+        HttpResponse<String> response = mock(HttpResponse.class);
+        when(response.statusCode()).thenReturn(status);
+        when(response.body()).thenReturn(body);
+        return response;
+    }
+
+    @Test
+    public void authenticatesAgainAndRetriesOnce() throws Exception {
+        SimpleHttpClient device = mock(SimpleHttpClient.class);
+        HttpResponse<String> refused = response(401, "{\"error_code\":\"40101\",\"message\":\"Authentication is required\"}");
+        HttpResponse<String> accepted = response(200, "{}");
+        when(device.getWithResponse(URL)).thenReturn(refused, accepted);
+
+        AtomicInteger authentications = new AtomicInteger();
+        ReauthenticatingHttpClient client = new ReauthenticatingHttpClient(device);
+        client.setAuthenticator(authentications::incrementAndGet);
+
+        assertThat(client.getWithResponse(URL), is(accepted));
+        assertThat(authentications.get(), is(1));
+        verify(device, times(2)).getWithResponse(URL);
+    }
+
+    @Test
+    public void otherErrorsAreReturnedAsTheyAre() throws Exception {
+        SimpleHttpClient device = mock(SimpleHttpClient.class);
+        HttpResponse<String> notFound = response(404, "{\"error_code\":\"40401\",\"message\":\"Not found\"}");
+        when(device.getWithResponse(URL)).thenReturn(notFound);
+
+        AtomicInteger authentications = new AtomicInteger();
+        ReauthenticatingHttpClient client = new ReauthenticatingHttpClient(device);
+        client.setAuthenticator(authentications::incrementAndGet);
+
+        assertThat(client.getWithResponse(URL), is(notFound));
+        assertThat(authentications.get(), is(0));
+    }
+
+    @Test
+    public void recognizesTheDeviceAuthenticationCodes() {
+        assertThat(ReauthenticatingHttpClient.unauthorized(response(401, "")), is(true));
+        assertThat(ReauthenticatingHttpClient.unauthorized(response(400, "{\"error_code\": \"40102\"}")), is(true));
+        assertThat(ReauthenticatingHttpClient.unauthorized(response(400, "{\"error_code\": \"40001\"}")), is(false));
+        assertThat(ReauthenticatingHttpClient.unauthorized(response(200, "{\"error_code\": \"40101\"}")), is(false));
+    }
+}
@@ -18,6 +18,8 @@ import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.*;
+import java.util.Arrays;
+import java.util.Random;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -149,6 +151,32 @@ public class FirmwarePackerTest {
         assertThat(Files.size(targetAnimation), is(644593L));
     }
 
+    @Test
+    public void unpackStreamsAMappedPackage() throws Exception {
+        CryptographyUtils cryptographyUtils = new CryptographyUtils();
+        FirmwarePacker firmwarePacker = new FirmwarePacker(cryptographyUtils, System.out::println);
+
+        byte[] data = new byte[3_000_001];
+        byte[] animation = new byte[70_001];
+        new Random(1).nextBytes(data);
+        new Random(2).nextBytes(animation);
+
+        Path pkg = temporaryFolder.getRoot().toPath().resolve("firmware.pkg");
+        firmwarePacker.pack(new ByteArrayInputStream(data), new ByteArrayInputStream(animation), pkg);
+
+        // The mapped package reads the same as the one loaded in memory
+        PkgWrap mapped = PkgWrap.map(pkg);
+        assertTrue(mapped.equals(new PkgWrap(Files.readAllBytes(pkg))));
+        assertThat(mapped.animationDataSize(), is(70_001));
+
+        Path targetData = temporaryFolder.getRoot().toPath().resolve("decryptedData.tar.gz");
+        Path targetAnimation = temporaryFolder.getRoot().toPath().resolve("decryptedAnimation.tar.gz");
+        firmwarePacker.unpack(pkg, targetData, targetAnimation);
+
+        assertThat(Arrays.equals(Files.readAllBytes(targetData), data), is(true));
+        assertThat(Arrays.equals(Files.readAllBytes(targetAnimation), animation), is(true));
+    }
+
     // The hack at https://github.com/HappyZ/dpt-tools/blob/master/fw_updater_packer_by_shankerzhiwu/pkg_example/hack_basics/Makefile
     // makes the injection in the IV
     // dd if=$1 bs=$(($DATA_OFFSET)) skip=1 2>/dev/null | head -c $(($BODY_SIZE)) | i<-- that's where it uses "55 -none[...]" | tar -xz -C $2
@@ -0,0 +1,154 @@
+package net.sony.dpt.ui.daemon;
+
+import net.sony.dpt.command.print.PrintServer;
+import net.sony.dpt.command.print.PrintSpooler;
+import net.sony.dpt.persistence.DaemonStore;
+import net.sony.dpt.persistence.PrintQueueStore;
+import net.sony.dpt.ui.cli.DigitalPaperCLI;
+import net.sony.util.LogWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class DaemonServerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private DaemonStore daemonStore;
+    private DaemonServer daemonServer;
+    private List<String[]> executed;
+    private List<Path> workingDirectories;
+
+    @Before
+    public void startDaemon() throws Exception {
+        daemonStore = new DaemonStore(temporaryFolder.getRoot().toPath());
+        executed = new ArrayList<>();
+        workingDirectories = new ArrayList<>();
+
+        // The device side is a stub, the protocol and the server are real
+        DigitalPaperCLI session = mock(DigitalPaperCLI.class);
+        when(session.forClient(any(), any())).thenAnswer(invocation -> {
+            LogWriter clientLogWriter = invocation.getArgument(0);
+            workingDirectories.add(invocation.getArgument(1));
+            DigitalPaperCLI client = mock(DigitalPaperCLI.class);
+            doAnswer(execution -> {
+                String[] args = execution.getArgument(0);
+                executed.add(args);
+                if (args[0].equals("delete")) throw new IOException("no such document");
+                clientLogWriter.log("ran " + String.join(" ", args));
+                return null;
+            }).when(client).execute(any());
+            return client;
+        });
+
+        daemonServer = new DaemonServer(session, daemonStore, message -> {});
+        start(daemonServer, daemonStore);
+    }
+
+    private static void start(DaemonServer daemonServer, DaemonStore daemonStore) throws InterruptedException {
+        Thread serving = new Thread(() -> {
+            try {
+                daemonServer.serve();
+            } catch (IOException ignored) {
+            }
+        });
+        serving.setDaemon(true);
+        serving.start();
+        for (int i = 0; i < 500 && daemonStore.retrieveSession() == null; i++) Thread.sleep(10);
+    }
+
+    @After
+    public void stopDaemon() throws IOException {
+        daemonServer.close();
+    }
+
+    @Test
+    public void aCommandRunsInTheDaemon() {
+        List<String> logs = new ArrayList<>();
+        List<String> errors = new ArrayList<>();
+        DaemonClient daemonClient = new DaemonClient(daemonStore, logs::add, errors::add);
+
+        assertThat(daemonClient.forward(new String[]{"list-documents"}), is(0));
+        assertThat(logs, is(List.of("ran list-documents")));
+        assertThat(errors.isEmpty(), is(true));
+        assertThat(workingDirectories, is(List.of(Path.of(System.getProperty("user.dir")))));
+    }
+
+    @Test
+    public void aFailureComesBackAsAnExitCode() {
+        List<String> errors = new ArrayList<>();
+        DaemonClient daemonClient = new DaemonClient(daemonStore, message -> {}, errors::add);
+
+        assertThat(daemonClient.forward(new String[]{"delete", "Document/a.pdf"}), is(1));
+        assertThat(errors.size(), is(1));
+        assertThat(errors.get(0).contains("no such document"), is(true));
+    }
+
+    @Test
+    public void aWrongTokenIsRefused() throws IOException {
+        String[] session = daemonStore.retrieveSession();
+        daemonStore.storeSession(Integer.parseInt(session[0]), "wrong");
+        List<String> errors = new ArrayList<>();
+        DaemonClient daemonClient = new DaemonClient(daemonStore, message -> {}, errors::add);
+
+        assertThat(daemonClient.forward(new String[]{"list-documents"}), is(1));
+        assertThat(errors, is(List.of("Invalid daemon token")));
+        assertThat(executed.isEmpty(), is(true));
+    }
+
+    @Test
+    public void anotherDeviceIsNotForwarded() {
+        DaemonClient daemonClient = new DaemonClient(daemonStore, message -> {}, message -> {});
+
+        assertThat(DaemonClient.forwardable(new String[]{"list-documents"}), is(true));
+        assertThat(DaemonClient.forwardable(new String[]{"-addr", "10.0.0.2", "list-documents"}), is(false));
+        assertThat(DaemonClient.forwardable(new String[]{"--serial=5012345", "list-documents"}), is(false));
+        // We run it ourselves instead
+        assertThat(daemonClient.forward(new String[]{"-addr", "10.0.0.2", "list-documents"}) == null, is(true));
+        assertThat(executed.isEmpty(), is(true));
+    }
+
+    @Test
+    public void printJobsComeInWithTheDaemonToken() throws Exception {
+        Path storageRoot = temporaryFolder.newFolder().toPath();
+        DaemonStore printingStore = new DaemonStore(storageRoot);
+        PrintSpooler printSpooler = mock(PrintSpooler.class);
+        PrintServer printServer = new PrintServer(printSpooler, new PrintQueueStore(storageRoot), message -> {});
+        DaemonServer printingDaemon = new DaemonServer(mock(DigitalPaperCLI.class), printingStore, printServer, message -> {});
+        start(printingDaemon, printingStore);
+        try {
+            // The port, the token, and the port of the print jobs
+            String[] session = printingStore.retrieveSession();
+            assertThat(session.length, is(3));
+
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + session[2] + "/print").openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("X-Dpt-Token", session[1]);
+            connection.setRequestProperty("X-File-Name", "report.pdf");
+            try (OutputStream outputStream = connection.getOutputStream()) {
+                outputStream.write(new byte[]{1, 2, 3});
+            }
+            assertThat(connection.getResponseCode(), is(202));
+            verify(printSpooler).submit(any());
+        } finally {
+            printingDaemon.close();
+        }
+    }
+}
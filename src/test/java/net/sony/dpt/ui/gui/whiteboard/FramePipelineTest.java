@@ -0,0 +1,76 @@
+package net.sony.dpt.ui.gui.whiteboard;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class FramePipelineTest {
+
+    // White, with a black top left quarter
+    private static byte[] frame(int width, int height) throws Exception {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics graphics = image.getGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, width, height);
+        graphics.setColor(Color.BLACK);
+        graphics.fillRect(0, 0, width / 2, height / 2);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", output);
+        return output.toByteArray();
+    }
+
+    private static boolean dark(BufferedImage image, int x, int y) {
+        return (image.getRGB(x, y) & 0xFF) < 64;
+    }
+
+    @Test
+    public void scalesInPortrait() throws Exception {
+        FramePipeline framePipeline = new FramePipeline(Orientation.PORTRAIT, 0.5f, null);
+        assertThat(framePipeline.take(), is(nullValue()));
+
+        framePipeline.render(frame(160, 240));
+        BufferedImage image = framePipeline.take();
+        assertThat(image.getWidth(), is(80));
+        assertThat(image.getHeight(), is(120));
+        assertThat(dark(image, 10, 10), is(true));
+        assertThat(dark(image, 70, 10), is(false));
+    }
+
+    @Test
+    public void rotatesClockwiseInLandscape() throws Exception {
+        FramePipeline framePipeline = new FramePipeline(Orientation.LANDSCAPE, 0.5f, null);
+        framePipeline.render(frame(160, 240));
+        BufferedImage image = framePipeline.take();
+        assertThat(image.getWidth(), is(120));
+        assertThat(image.getHeight(), is(80));
+        // The top left corner of the device is now on the top right
+        assertThat(dark(image, 110, 10), is(true));
+        assertThat(dark(image, 10, 10), is(false));
+    }
+
+    @Test
+    public void staleFramesAreDroppedAndTheirBuffersReused() throws Exception {
+        FramePipeline framePipeline = new FramePipeline(Orientation.PORTRAIT, 0.5f, null);
+        Set<BufferedImage> buffers = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < 20; i++) {
+            framePipeline.render(frame(160, 240));
+            // The EDT only gets to every third frame
+            if (i % 3 == 0) buffers.add(framePipeline.take());
+        }
+        assertThat(buffers.size() <= 3, is(true));
+
+        // Nothing new, the same frame stays on screen
+        BufferedImage newest = framePipeline.take();
+        assertThat(framePipeline.take() == newest, is(true));
+    }
+}
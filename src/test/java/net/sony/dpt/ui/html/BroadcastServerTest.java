@@ -0,0 +1,89 @@
+package net.sony.dpt.ui.html;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class BroadcastServerTest {
+
+    private static byte[] event(String data) {
+        return ("data: " + data + "\n\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static Socket get(int port, String path) throws Exception {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setSoTimeout(5000);
+        socket.getOutputStream().write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        return socket;
+    }
+
+    private static String nextEvent(BufferedReader reader) throws Exception {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("data: ")) return line.substring("data: ".length());
+        }
+        return null;
+    }
+
+    @Test
+    public void everyViewerGetsAKeyframeThenTheDeltas() throws Exception {
+        FrameChannel frameChannel = new FrameChannel();
+        BroadcastServer broadcastServer = new BroadcastServer(frameChannel, "<html></html>", message -> {});
+        int port = broadcastServer.bind(0);
+        try {
+            broadcastServer.publish(frameChannel.publish(new byte[]{1}, event("key1"), null));
+
+            List<Socket> viewers = new ArrayList<>();
+            List<BufferedReader> readers = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                Socket viewer = get(port, "/tiles");
+                viewers.add(viewer);
+                readers.add(new BufferedReader(new InputStreamReader(viewer.getInputStream(), StandardCharsets.US_ASCII)));
+            }
+            for (BufferedReader reader : readers) {
+                assertThat(nextEvent(reader), is("key1"));
+            }
+            assertThat(frameChannel.hasViewers(), is(true));
+
+            broadcastServer.publish(frameChannel.publish(new byte[]{2}, event("key2"), event("delta2")));
+            for (BufferedReader reader : readers) {
+                assertThat(nextEvent(reader), is("delta2"));
+            }
+
+            for (Socket viewer : viewers) viewer.close();
+        } finally {
+            broadcastServer.close();
+        }
+    }
+
+    @Test
+    public void theLastImageIsPlainJpeg() throws Exception {
+        FrameChannel frameChannel = new FrameChannel();
+        BroadcastServer broadcastServer = new BroadcastServer(frameChannel, "<html></html>", message -> {});
+        int port = broadcastServer.bind(0);
+        try {
+            broadcastServer.publish(frameChannel.publish(new byte[]{(byte) 0xFF, (byte) 0xD8, 0}, null, null));
+            Thread.sleep(100);
+
+            try (Socket socket = get(port, "/lastImage")) {
+                byte[] response = socket.getInputStream().readAllBytes();
+                String headers = new String(response, StandardCharsets.ISO_8859_1);
+                assertThat(headers.startsWith("HTTP/1.1 200 OK"), is(true));
+                assertThat(headers.contains("Content-Type: image/jpeg\r\n"), is(true));
+                assertThat(headers.contains("Content-Length: 3\r\n"), is(true));
+                assertThat(response[response.length - 3], is((byte) 0xFF));
+            }
+        } finally {
+            broadcastServer.close();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package net.sony.dpt.ui.html;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class FrameChannelTest {
+
+    @Test
+    public void framesAreNumberedInOrder() {
+        FrameChannel frameChannel = new FrameChannel();
+        assertThat(frameChannel.last(), is(nullValue()));
+
+        FrameChannel.Frame first = frameChannel.publish(new byte[]{1});
+        FrameChannel.Frame second = frameChannel.publish(new byte[]{2});
+        assertThat(second.getSequence(), is(first.getSequence() + 1));
+        assertThat(frameChannel.last().getJpeg()[0], is((byte) 2));
+    }
+
+    @Test
+    public void captureWaitsForViewers() throws Exception {
+        FrameChannel frameChannel = new FrameChannel();
+        assertThat(frameChannel.hasViewers(), is(false));
+
+        CompletableFuture<Void> capture = CompletableFuture.runAsync(() -> {
+            try {
+                frameChannel.awaitViewers();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(50);
+        assertThat(capture.isDone(), is(false));
+
+        frameChannel.subscribe();
+        capture.get(5, TimeUnit.SECONDS);
+        frameChannel.unsubscribe();
+        assertThat(frameChannel.hasViewers(), is(false));
+
+        frameChannel.polled();
+        assertThat(frameChannel.hasViewers(), is(true));
+    }
+}
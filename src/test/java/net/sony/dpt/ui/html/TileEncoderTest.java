@@ -0,0 +1,51 @@
+package net.sony.dpt.ui.html;
+
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class TileEncoderTest {
+
+    private static BufferedImage blank(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics graphics = image.getGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, width, height);
+        return image;
+    }
+
+    @Test
+    public void onlyTheChangedTilesAreSent() throws Exception {
+        TileEncoder tileEncoder = new TileEncoder();
+        // Nothing to diff against yet
+        assertThat(tileEncoder.encode(blank(300, 200)), is(nullValue()));
+        assertThat(tileEncoder.encode(blank(300, 200)).isEmpty(), is(true));
+
+        BufferedImage stroke = blank(300, 200);
+        Graphics graphics = stroke.getGraphics();
+        graphics.setColor(Color.BLACK);
+        // One dot in the second tile of the second row, a line across the first three tiles of the last row
+        graphics.fillRect(70, 70, 2, 2);
+        graphics.fillRect(10, 150, 150, 2);
+
+        List<TileEncoder.Patch> patches = tileEncoder.encode(stroke);
+        assertThat(patches.size(), is(2));
+        assertThat(patches.get(0).getX(), is(64));
+        assertThat(patches.get(0).getY(), is(64));
+        assertThat(patches.get(1).getX(), is(0));
+        assertThat(patches.get(1).getY(), is(128));
+    }
+
+    @Test
+    public void aNewSizeNeedsAKeyframe() throws Exception {
+        TileEncoder tileEncoder = new TileEncoder();
+        tileEncoder.encode(blank(300, 200));
+        assertThat(tileEncoder.encode(blank(200, 300)), is(nullValue()));
+    }
+}
@@ -0,0 +1,53 @@
+package net.sony.dpt.zeroconf;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class DiscoveryRaceTest {
+
+    @Test
+    public void firstAnswerWinsAndLosersAreInterrupted() throws InterruptedException {
+        CountDownLatch interrupted = new CountDownLatch(1);
+        String address = new DiscoveryRace(message -> {})
+                .add("slow", () -> {
+                    try {
+                        Thread.sleep(10000);
+                        return "10.0.0.1";
+                    } catch (InterruptedException e) {
+                        interrupted.countDown();
+                        throw e;
+                    }
+                })
+                .add("failing", () -> {
+                    throw new IllegalStateException("unreachable");
+                })
+                .add("missing", () -> null)
+                .add("fast", () -> {
+                    Thread.sleep(50);
+                    return "192.168.0.5";
+                })
+                .run(5000);
+
+        assertThat(address, is("192.168.0.5"));
+        assertThat(interrupted.await(1, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void nothingFoundWithinTheTimeout() throws InterruptedException {
+        String address = new DiscoveryRace(message -> {})
+                .add("missing", () -> null)
+                .add("slow", () -> {
+                    Thread.sleep(10000);
+                    return "10.0.0.1";
+                })
+                .run(100);
+
+        assertThat(address, nullValue());
+    }
+}
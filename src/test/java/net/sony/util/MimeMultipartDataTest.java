@@ -0,0 +1,81 @@
+package net.sony.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class MimeMultipartDataTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static byte[] publish(HttpRequest.BodyPublisher bodyPublisher) throws ExecutionException, InterruptedException {
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        CompletableFuture<byte[]> done = new CompletableFuture<>();
+        bodyPublisher.subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+                byte[] chunk = new byte[item.remaining()];
+                item.get(chunk);
+                received.write(chunk, 0, chunk.length);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                done.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                done.complete(received.toByteArray());
+            }
+        });
+        return done.get();
+    }
+
+    @Test
+    public void streamedBodyMatchesAnnouncedLength() throws IOException, ExecutionException, InterruptedException {
+        Path pdf = temporaryFolder.newFile("sample.pdf").toPath();
+        byte[] content = new byte[3 * 65536 + 17];
+        for (int i = 0; i < content.length; i++) content[i] = (byte) i;
+        Files.write(pdf, content);
+
+        MimeMultipartData mimeMultipartData = MimeMultipartData.newBuilder()
+                .withCharset(StandardCharsets.UTF_8)
+                .addFile("sample.pdf", pdf, "application/pdf")
+                .build();
+
+        assertThat(mimeMultipartData.getBodyPublisher().contentLength(), is(mimeMultipartData.getContentLength()));
+
+        byte[] body = publish(mimeMultipartData.getBodyPublisher());
+        assertThat((long) body.length, is(mimeMultipartData.getContentLength()));
+
+        String bodyString = new String(body, StandardCharsets.ISO_8859_1);
+        assertThat(bodyString, containsString("filename=\"sample.pdf\""));
+        assertThat(bodyString, containsString(new String(content, StandardCharsets.ISO_8859_1)));
+
+        // A second subscription, as done on retries, must replay the whole body
+        assertThat(publish(mimeMultipartData.getBodyPublisher()).length, is(body.length));
+    }
+
+}